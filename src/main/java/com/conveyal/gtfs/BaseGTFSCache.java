@@ -4,22 +4,43 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.S3Object;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
+import com.conveyal.gtfs.storage.StringDictionary;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.zip.ZipFile;
 
@@ -30,22 +51,59 @@ import java.util.zip.ZipFile;
  * class and override the processFeed function with a function that transforms a GTFSFeed object into whatever objects
  * you need. If you just need to store GTFSFeeds without any additional data, see the GTFSCache class.
  *
- * This uses a soft-values cache because (it is assumed) you do not want to have multiple copies of the same GTFS feed
- * in memory. When you are storing a reference to the original GTFS feed, it may be retrieved from the cache and held
- * by the caller for some finite amount of time. If, during that time, it is removed from the cache and requested again,
- * we would connect another GTFSFeed to the same mapdb, which seems like an ideal way to corrupt mapdbs. SoftReferences
- * prevent this as it cannot be removed if it is referenced elsewhere.
+ * We must never have more than one copy of the same GTFS feed open at once, as that would connect several GTFSFeeds to
+ * the same MapDB, which seems like an ideal way to corrupt it. Each feed is therefore loaded only once, however many
+ * threads ask for it at the same time, and a feed is only evicted (and closed) while no caller holds a lease on it.
+ * Callers using a feed for some time should hold it with lease() and close the lease when done.
+ *
+ * Values returned by get() and put() are not pinned, but as their callers may hold on to them they are never closed by
+ * the cache. Once evicted they are only held weakly, and are reused if they are needed again while still reachable,
+ * rather than opening a second copy of the feed. Once unreachable they are left to be closed by finalization, as with
+ * the soft values of earlier versions of this cache, and their local files are then deleted if using S3.
+ *
+ * Feeds are weighed by the size of their MapDB files on disk (see weigh()). When the total weight of the cached feeds
+ * exceeds maximumWeight, the least recently used feeds that are not leased are evicted until it no longer does. Feeds
+ * in use are never evicted, so the total weight may exceed the maximum while they are leased.
  */
 public abstract class BaseGTFSCache<T> {
     private static final Logger LOG = LoggerFactory.getLogger(BaseGTFSCache.class);
 
+    /** The default maximum total weight of the cached feeds, in bytes of MapDB files on disk. */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 16L * 1024 * 1024 * 1024;
+
     public final String bucket;
     public final String bucketFolder;
 
     public final File cacheDir;
 
+    /** Idle feeds are evicted when the total weight of the cached feeds is above this, see weigh(). */
+    public final long maximumWeight;
+
     private static final AmazonS3 s3 = new AmazonS3Client();
-    private LoadingCache<String, T> cache;
+
+    /** The cached feeds, including those being loaded, from least to most recently used. Guarded by this. */
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The total weight of the feeds in entries. Guarded by this, like the fields below. */
+    private long totalWeight = 0;
+
+    /** The IDs of the feeds that have been evicted, so that loading one of them again is counted as a reload. */
+    private final Set<String> evictedIds = new HashSet<>();
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long loadFailureCount = 0;
+    private long evictionCount = 0;
+    private long reloadCount = 0;
+
+    /** Evicted values that were returned by get() or put(), see Detached. Guarded by this. */
+    private final Map<String, Detached> detached = new HashMap<>();
+
+    /** The detached values that have become unreachable. */
+    private final ReferenceQueue<T> unreachable = new ReferenceQueue<>();
+
+    /** One lock per cleaned feed ID, see fileLock(). */
+    private final ConcurrentHashMap<String, Object> fileLocks = new ConcurrentHashMap<>();
 
     public BaseGTFSCache(String bucket, File cacheDir) {
         this(bucket, null, cacheDir);
@@ -53,6 +111,14 @@ public abstract class BaseGTFSCache<T> {
 
     /** If bucket is null, work offline and do not use S3 */
     public BaseGTFSCache(String bucket, String bucketFolder, File cacheDir) {
+        this(bucket, bucketFolder, cacheDir, DEFAULT_MAXIMUM_WEIGHT);
+    }
+
+    /**
+     * If bucket is null, work offline and do not use S3.
+     * @param maximumWeight the total weight of the cached feeds above which idle feeds are evicted, see weigh().
+     */
+    public BaseGTFSCache(String bucket, String bucketFolder, File cacheDir, long maximumWeight) {
         if (bucket == null) LOG.info("No bucket specified; GTFS Cache will run locally");
         else LOG.info("Using bucket {} for GTFS Cache", bucket);
 
@@ -60,39 +126,110 @@ public abstract class BaseGTFSCache<T> {
         this.bucketFolder = bucketFolder != null ? bucketFolder.replaceAll("\\/","") : null;
 
         this.cacheDir = cacheDir;
+        this.maximumWeight = maximumWeight;
 
         if (bucket != null) {
-            LOG.warn("Local cache files (including .zip) will be deleted when removed from cache.");
-        }
-        RemovalListener<String, GTFSFeed> removalListener = removalNotification -> {
-            // delete local files ONLY if using s3
-            if (bucket != null) {
-                String id = removalNotification.getKey();
-                String[] extensions = {".db", ".db.p", ".zip"};
-                // delete local cache files (including zip) when feed removed from cache
-                for (String type : extensions) {
-                    File file = new File(cacheDir, id + type);
-                    file.delete();
-                }
-            }
-        };
-        this.cache = (LoadingCache<String, T>) CacheBuilder.newBuilder()
-                // we use SoftReferenced values because we have the constraint that we don't want more than one
-                // copy of a particular GTFSFeed object around; that would mean multiple MapDBs are pointing at the same
-                // file, which is bad.
-                .softValues()
-                .removalListener(removalListener)
-                .build(new CacheLoader() {
-                    public T load(Object s) throws Exception {
-                        // Thanks, java, for making me use a cast here. If I put generic arguments to new CacheLoader
-                        // due to type erasure it can't be sure I'm using types correctly.
-                        return retrieveAndProcessFeed((String) s);
-                    }
-                });
-    }
-
-    public long getCurrentCacheSize() {
-        return this.cache.size();
+            LOG.warn("Local cache files (including .zip) will be deleted when evicted from cache.");
+        }
+    }
+
+    /** A cached feed, which may still be loading. */
+    private class CacheEntry {
+        final String id;
+        final CompletableFuture<T> value = new CompletableFuture<>();
+        /** The fields below are guarded by the enclosing cache. */
+        long weight = 0;
+        int leases = 0;
+        /** True once the entry has been evicted or replaced, after which it is closed when its last lease ends. */
+        boolean removed = false;
+        /** True once the value has been returned by get() or put(), after which it is never closed by the cache. */
+        boolean handedOut = false;
+
+        CacheEntry (String id) {
+            this.id = id;
+        }
+
+        /** @return whether the value has been loaded and so may need closing. */
+        boolean loaded () {
+            return value.isDone() && !value.isCompletedExceptionally();
+        }
+    }
+
+    /**
+     * An evicted value that was returned by get() or put() and may still be in use. It is held weakly, so that it can
+     * be reused if the feed is needed again while it is still reachable.
+     */
+    private class Detached extends WeakReference<T> {
+        final String id;
+        final long weight;
+
+        Detached (CacheEntry entry) {
+            super(entry.value.join(), unreachable);
+            this.id = entry.id;
+            this.weight = entry.weight;
+        }
+    }
+
+    /**
+     * A cached feed held by a caller. The feed will not be evicted until the lease is closed, so use this in a
+     * try-with-resources block around any use of the feed that may take a while.
+     */
+    public class Lease implements AutoCloseable {
+        private final CacheEntry entry;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease (CacheEntry entry) {
+            this.entry = entry;
+        }
+
+        public T get () {
+            return entry.value.join();
+        }
+
+        /** Release the feed, allowing it to be evicted. Closing a lease more than once has no effect. */
+        @Override
+        public void close () {
+            if (released.compareAndSet(false, true)) release(entry);
+        }
+    }
+
+    /** A snapshot of the counts of cache operations since the cache was created. */
+    public static class Stats {
+        public final long hitCount;
+        public final long missCount;
+        public final long loadFailureCount;
+        /** The number of feeds evicted to keep the total weight under the maximum. */
+        public final long evictionCount;
+        /** The number of misses for feeds that had been evicted, which each required the feed to be reopened. */
+        public final long reloadCount;
+        public final long size;
+        public final long totalWeight;
+
+        private Stats (long hitCount, long missCount, long loadFailureCount, long evictionCount, long reloadCount,
+                       long size, long totalWeight) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.loadFailureCount = loadFailureCount;
+            this.evictionCount = evictionCount;
+            this.reloadCount = reloadCount;
+            this.size = size;
+            this.totalWeight = totalWeight;
+        }
+
+        @Override
+        public String toString () {
+            return String.format("%d hits, %d misses, %d load failures, %d evictions, %d reloads, %d feeds weighing %d",
+                    hitCount, missCount, loadFailureCount, evictionCount, reloadCount, size, totalWeight);
+        }
+    }
+
+    public synchronized Stats getStats () {
+        return new Stats(hitCount, missCount, loadFailureCount, evictionCount, reloadCount, entries.size(),
+                totalWeight);
+    }
+
+    public synchronized long getCurrentCacheSize() {
+        return entries.size();
     }
 
     /**
@@ -109,13 +246,47 @@ public abstract class BaseGTFSCache<T> {
     }
 
     private T put (String id, File feedFile, Function<GTFSFeed, String> idGenerator) throws Exception {
-        // generate temporary ID to name files
-        String tempId = id != null ? id : UUID.randomUUID().toString();
+        // Load the feed under a temporary ID that nothing else can be using and then move it into place, so that the
+        // files of a feed that is replaced while it is leased are not overwritten while they are open.
+        String fileId = UUID.randomUUID().toString();
+        // With an ID generator, the ID is only known once the feed has been loaded.
+        if (idGenerator != null) id = loadFeedFile(fileId, feedFile, idGenerator);
+        // Register the load in the cache before touching the files of the feed, so that anyone asking for the feed
+        // meanwhile waits for this load rather than starting another one.
+        CacheEntry entry = replace(id);
+        String finalId = id;
+        try {
+            load(entry, () -> {
+                if (idGenerator == null) loadFeedFile(fileId, feedFile, null);
+                publish(fileId, finalId, feedFile);
+                // reconnect to feed database
+                return processFeed(new GTFSFeed(new File(cacheDir, cleanId(finalId) + ".db").getAbsolutePath()));
+            });
+            T value = Uninterruptibles.getUninterruptibly(entry.value);
+            synchronized (this) {
+                entry.handedOut = true;
+            }
+            return value;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        } finally {
+            release(entry);
+        }
+    }
 
+    /**
+     * Load the given feed into a MapDB in the cache directory under the given file ID.
+     * @return the ID of the feed, which is generated from the feed if an idGenerator is given.
+     */
+    private String loadFeedFile (String fileId, File feedFile, Function<GTFSFeed, String> idGenerator)
+            throws Exception {
         // read the feed
-        String cleanTempId = cleanId(tempId);
-        File dbFile = new File(cacheDir, cleanTempId + ".db");
-        File movedFeedFile = new File(cacheDir, cleanTempId + ".zip");
+        String cleanFileId = cleanId(fileId);
+        File dbFile = new File(cacheDir, cleanFileId + ".db");
+        File movedFeedFile = new File(cacheDir, cleanFileId + ".zip");
 
         // don't copy if we're loading from a locally-cached feed
         if (!feedFile.equals(movedFeedFile)) Files.copy(feedFile, movedFeedFile);
@@ -123,16 +294,21 @@ public abstract class BaseGTFSCache<T> {
         GTFSFeed feed = new GTFSFeed(dbFile.getAbsolutePath());
         feed.loadFromFile(new ZipFile(movedFeedFile));
 
-        if (idGenerator != null) id = idGenerator.apply(feed);
-
-        String cleanId = cleanId(id);
+        String id = idGenerator != null ? idGenerator.apply(feed) : fileId;
 
         feed.close(); // make sure everything is written to disk
+        return id;
+    }
 
-        if (idGenerator != null) {
-            new File(cacheDir, cleanTempId + ".zip").renameTo(new File(cacheDir, cleanId + ".zip"));
-            new File(cacheDir, cleanTempId + ".db").renameTo(new File(cacheDir, cleanId + ".db"));
-            new File(cacheDir, cleanTempId + ".db.p").renameTo(new File(cacheDir, cleanId + ".db.p"));
+    /** Move the files of a feed loaded under the given file ID to those of its ID, and upload them to S3. */
+    private void publish (String fileId, String id, File feedFile) {
+        String cleanFileId = cleanId(fileId);
+        String cleanId = cleanId(id);
+
+        if (!cleanFileId.equals(cleanId)) {
+            new File(cacheDir, cleanFileId + ".zip").renameTo(new File(cacheDir, cleanId + ".zip"));
+            new File(cacheDir, cleanFileId + ".db").renameTo(new File(cacheDir, cleanId + ".db"));
+            new File(cacheDir, cleanFileId + ".db.p").renameTo(new File(cacheDir, cleanId + ".db.p"));
         }
 
         // upload feed
@@ -153,17 +329,240 @@ public abstract class BaseGTFSCache<T> {
             s3.putObject(bucket, key + ".db.p", new File(cacheDir, cleanId + ".db.p"));
             LOG.info("db files written.");
         }
+    }
 
-        // reconnect to feed database
-        feed = new GTFSFeed(new File(cacheDir, cleanId + ".db").getAbsolutePath());
-        T processed = processFeed(feed);
-        cache.put(id, processed);
-        return processed;
+    /**
+     * Register a new load of the given feed, holding one lease on it, in place of any entry for the same ID. The
+     * replaced entry is closed now if it is idle, or when its last lease ends.
+     */
+    private CacheEntry replace (String id) {
+        CacheEntry entry = new CacheEntry(id);
+        entry.leases = 1;
+        CacheEntry replaced;
+        synchronized (this) {
+            replaced = entries.put(id, entry);
+            // An evicted copy of the feed must not be reused in place of the new one.
+            detached.remove(id);
+            if (replaced != null) {
+                replaced.removed = true;
+                totalWeight -= replaced.weight;
+                if (replaced.leases > 0 || replaced.handedOut) replaced = null;
+            }
+        }
+        if (replaced != null && replaced.loaded()) close(replaced.value.join());
+        return entry;
     }
 
-    public T get (String id) {
+    /**
+     * Get a feed and hold it until the returned lease is closed, loading it if it is not already cached. If another
+     * thread is already loading the feed, this waits for that load rather than starting another one.
+     * @throws ExecutionException if loading the feed threw a checked exception.
+     * @throws UncheckedExecutionException if loading the feed threw an unchecked exception, for example because it
+     * does not exist.
+     * @throws ExecutionError if loading the feed in another thread threw an error.
+     */
+    public Lease lease (String id) throws ExecutionException {
+        CacheEntry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = entries.get(id);
+            if (entry == null) {
+                entry = new CacheEntry(id);
+                entries.put(id, entry);
+                Detached evicted = detached.remove(id);
+                T value = evicted != null ? evicted.get() : null;
+                if (value != null) {
+                    // The feed was evicted but is still in use by a caller of get(), so it is still open.
+                    entry.value.complete(value);
+                    entry.weight = evicted.weight;
+                    entry.handedOut = true;
+                    totalWeight += entry.weight;
+                    hitCount++;
+                } else {
+                    missCount++;
+                    if (evictedIds.remove(id)) reloadCount++;
+                    load = true;
+                }
+            } else {
+                hitCount++;
+            }
+            entry.leases++;
+        }
+        try {
+            if (load) load(entry, () -> retrieveAndProcessFeed(id));
+            Uninterruptibles.getUninterruptibly(entry.value);
+        } catch (ExecutionException e) {
+            release(entry);
+            // Like a Guava LoadingCache, distinguish unchecked exceptions and errors thrown while loading.
+            if (e.getCause() instanceof RuntimeException) throw new UncheckedExecutionException(e.getCause());
+            if (e.getCause() instanceof Error) throw new ExecutionError((Error) e.getCause());
+            throw e;
+        } catch (Error e) {
+            release(entry);
+            throw e;
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * Load the value of the given entry while holding the file lock of its feed, so that the files of a feed are never
+     * downloaded, written or opened by two loads at once.
+     */
+    private void load (CacheEntry entry, Callable<T> loader) {
         try {
-            return cache.get(id);
+            T value;
+            synchronized (fileLock(entry.id)) {
+                value = loader.call();
+            }
+            long weight = weigh(entry.id, value);
+            synchronized (this) {
+                entry.weight = weight;
+                if (!entry.removed) totalWeight += weight;
+            }
+            entry.value.complete(value);
+        } catch (Throwable t) {
+            synchronized (this) {
+                // The failed entry is removed so that the next request tries again.
+                if (!entry.removed) entries.remove(entry.id);
+                entry.removed = true;
+                loadFailureCount++;
+            }
+            // Complete the entry even for errors, as otherwise everyone waiting for it would wait forever.
+            entry.value.completeExceptionally(t);
+            if (t instanceof Error) throw (Error) t;
+        }
+        evictIdle();
+    }
+
+    /** @return the lock held while the files of the given feed are downloaded, written, opened or deleted. */
+    private Object fileLock (String id) {
+        return fileLocks.computeIfAbsent(cleanId(id), cleanId -> new Object());
+    }
+
+    /**
+     * Load the given feeds in the background, at most parallelism at a time, so that they are ready when they are
+     * first used, for example after a deploy. Feeds that are already cached are not loaded again, and feeds that are
+     * already being loaded are waited for. Prefetching more feeds than fit under the maximum weight evicts the
+     * earlier ones.
+     * @return a future that completes when every feed has been loaded or has failed to load. Failures are logged.
+     */
+    public CompletableFuture<Void> prefetch (Collection<String> ids, int parallelism) {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gtfs-cache-prefetch-%d").build());
+        CompletableFuture<?>[] futures = ids.stream()
+                .map(id -> CompletableFuture.runAsync(() -> prefetch(id), executor))
+                .toArray(CompletableFuture[]::new);
+        // The feeds already submitted are still loaded.
+        executor.shutdown();
+        return CompletableFuture.allOf(futures);
+    }
+
+    private void prefetch (String id) {
+        try {
+            lease(id).close();
+        } catch (ExecutionException | RuntimeException e) {
+            LOG.warn("Could not prefetch feed {}.", id, e);
+        }
+    }
+
+    private void release (CacheEntry entry) {
+        boolean close;
+        synchronized (this) {
+            entry.leases--;
+            close = entry.removed && entry.leases == 0 && !entry.handedOut;
+        }
+        if (close && entry.loaded()) close(entry.value.join());
+        evictIdle();
+    }
+
+    /**
+     * Evict the least recently used feeds that are not leased until the total weight is under the maximum, and delete
+     * the files of evicted feeds returned by get() that have since become unreachable.
+     */
+    private void evictIdle () {
+        deleteUnreachable();
+        for (CacheEntry entry = evictionCandidate(); entry != null; entry = evictionCandidate()) evict(entry);
+    }
+
+    /**
+     * @return the least recently used feed that is not leased if the total weight is over the maximum, otherwise null.
+     * The most recently used feed is never evicted, so that a feed weighing more than the maximum on its own can still
+     * be used.
+     */
+    private synchronized CacheEntry evictionCandidate () {
+        if (totalWeight <= maximumWeight) return null;
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        for (int remaining = entries.size(); remaining > 1; remaining--) {
+            CacheEntry entry = iterator.next();
+            if (entry.leases == 0 && entry.loaded()) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Evict the given feed if it is still the candidate for eviction. The file lock of the feed is held until it has
+     * been closed and its files deleted, so that a new load of the same feed cannot open it in the meantime.
+     */
+    private void evict (CacheEntry entry) {
+        synchronized (fileLock(entry.id)) {
+            synchronized (this) {
+                if (evictionCandidate() != entry) return;
+                entries.remove(entry.id);
+                entry.removed = true;
+                totalWeight -= entry.weight;
+                evictionCount++;
+                evictedIds.add(entry.id);
+                if (entry.handedOut) {
+                    // Callers of get() may still be using the feed, so it is left open and its files in place.
+                    LOG.info("Evicting feed {} from the cache, leaving it open as it may be in use.", entry.id);
+                    detached.put(entry.id, new Detached(entry));
+                    return;
+                }
+            }
+            LOG.info("Evicting feed {} from the cache.", entry.id);
+            close(entry.value.join());
+            deleteLocalFiles(entry.id);
+        }
+    }
+
+    /** Delete the local files of detached feeds that have become unreachable, unless they have been loaded again. */
+    private void deleteUnreachable () {
+        for (Reference<? extends T> reference; (reference = unreachable.poll()) != null; ) {
+            Detached collected = (Detached) reference;
+            synchronized (fileLock(collected.id)) {
+                synchronized (this) {
+                    if (detached.get(collected.id) != collected) continue;
+                    detached.remove(collected.id);
+                }
+                deleteLocalFiles(collected.id);
+            }
+        }
+    }
+
+    /**
+     * Delete the local files of a feed that has been evicted, if using S3 and it has not been loaded again. This must
+     * be called while holding the file lock of the feed.
+     */
+    private void deleteLocalFiles (String id) {
+        // delete local files ONLY if using s3
+        if (bucket == null) return;
+        synchronized (this) {
+            if (entries.containsKey(id)) return;
+        }
+        String[] extensions = {".db", ".db.p", ".zip"};
+        // delete local cache files (including zip) when feed removed from cache
+        for (String type : extensions) {
+            File file = new File(cacheDir, cleanId(id) + type);
+            file.delete();
+        }
+    }
+
+    public T get (String id) {
+        try (Lease lease = lease(id)) {
+            synchronized (this) {
+                lease.entry.handedOut = true;
+            }
+            return lease.get();
         } catch (ExecutionException e) {
             LOG.error("Error loading local MapDB.", e);
             deleteLocalDBFiles(id);
@@ -174,7 +573,7 @@ public abstract class BaseGTFSCache<T> {
     public boolean containsId (String id) {
         T feed;
         try {
-            feed = cache.get(id);
+            feed = get(id);
         } catch (Exception e) {
             return false;
         }
@@ -196,6 +595,11 @@ public abstract class BaseGTFSCache<T> {
                 if (feed != null) {
                     return processFeed(feed);
                 }
+            } catch (StringDictionary.AlreadyOpenException e) {
+                // A feed evicted from this cache (or opened outside it) is still using these files, which are valid.
+                // Deleting or rebuilding them would pull them out from under that feed, so fail this load instead.
+                throw new IllegalStateException("Feed " + originalId + " is still open elsewhere and cannot be " +
+                        "loaded again until it is closed.", e);
             } catch (Exception e) {
                 LOG.warn("Error loading local MapDB.", e);
                 deleteLocalDBFiles(id);
@@ -205,19 +609,9 @@ public abstract class BaseGTFSCache<T> {
         if (bucket != null) {
             try {
                 LOG.info("Attempting to download cached GTFS MapDB from S3: {}/{}.db", bucket, key);
-                S3Object db = s3.getObject(bucket, key + ".db");
-                InputStream is = db.getObjectContent();
-                FileOutputStream fos = new FileOutputStream(dbFile);
-                ByteStreams.copy(is, fos);
-                is.close();
-                fos.close();
-
-                S3Object dbp = s3.getObject(bucket, key + ".db.p");
-                InputStream isp = dbp.getObjectContent();
-                FileOutputStream fosp = new FileOutputStream(new File(cacheDir, id + ".db.p"));
-                ByteStreams.copy(isp, fosp);
-                isp.close();
-                fosp.close();
+                // The .db file is checked for above, so it is downloaded last.
+                download(key + ".db.p", new File(cacheDir, id + ".db.p"));
+                download(key + ".db", dbFile);
 
                 LOG.info("Returning processed GTFS from S3");
                 feed = new GTFSFeed(dbFile.getAbsolutePath());
@@ -241,12 +635,7 @@ public abstract class BaseGTFSCache<T> {
         if (!feedFile.exists() && bucket != null) {
             LOG.info("Feed not found locally, downloading from S3.");
             try {
-                S3Object gtfs = s3.getObject(bucket, key + ".zip");
-                InputStream is = gtfs.getObjectContent();
-                FileOutputStream fos = new FileOutputStream(feedFile);
-                ByteStreams.copy(is, fos);
-                is.close();
-                fos.close();
+                download(key + ".zip", feedFile);
             } catch (Exception e) {
                 LOG.error("Could not download feed at s3://{}/{}.", bucket, key);
                 throw new RuntimeException(e);
@@ -256,7 +645,9 @@ public abstract class BaseGTFSCache<T> {
         if (feedFile.exists()) {
             // TODO this will also re-upload the original feed ZIP to S3.
             try {
-                return put(originalId, feedFile);
+                loadFeedFile(originalId, feedFile, null);
+                publish(originalId, originalId, feedFile);
+                return processFeed(new GTFSFeed(dbFile.getAbsolutePath()));
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -266,11 +657,52 @@ public abstract class BaseGTFSCache<T> {
         }
     }
 
+    /**
+     * Download an object from S3 into a temporary file and then move it into place, so that a failed download never
+     * leaves a partial file that would be taken for a cached one.
+     */
+    private void download (String key, File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".download");
+        try {
+            S3Object object = s3.getObject(bucket, key);
+            try (InputStream is = object.getObjectContent(); FileOutputStream fos = new FileOutputStream(tempFile)) {
+                ByteStreams.copy(is, fos);
+            }
+            java.nio.file.Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
     /** Convert a GTFSFeed into whatever this cache holds. */
     protected abstract T processFeed (GTFSFeed feed);
 
     public abstract GTFSFeed getFeed (String id);
 
+    /**
+     * @return the weight of a cached value, by default the size in bytes of its MapDB files on disk. Override this to
+     * weigh values by their estimated heap size instead, if processFeed builds large structures in memory.
+     */
+    protected long weigh (String id, T value) {
+        String cleanId = cleanId(id);
+        long weight = new File(cacheDir, cleanId + ".db").length() + new File(cacheDir, cleanId + ".db.p").length();
+        return Math.max(weight, 1);
+    }
+
+    /**
+     * Close a value that has been evicted or replaced and is no longer leased. By default this closes values that are
+     * Closeable, such as GTFSFeeds. Override this if processFeed wraps the feed in something else.
+     */
+    protected void close (T value) {
+        if (value instanceof Closeable) {
+            try {
+                ((Closeable) value).close();
+            } catch (IOException e) {
+                LOG.warn("Error closing evicted feed.", e);
+            }
+        }
+    }
+
     private void deleteLocalDBFiles(String id) {
         String[] extensions = {".db", ".db.p"};
         // delete ONLY local cache db files
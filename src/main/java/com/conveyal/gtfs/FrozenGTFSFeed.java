@@ -0,0 +1,565 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.model.Shape;
+import com.conveyal.gtfs.model.ShapePoint;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.gtfs.storage.CompressedStopTimes;
+import com.conveyal.gtfs.util.Util;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.LineString;
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.conveyal.gtfs.model.Entity.human;
+
+/**
+ * An immutable, read-only copy of the trips, stop times, stops and shapes of a GTFSFeed, stored in a columnar file
+ * that is memory-mapped rather than read. Opening one takes a few milliseconds and almost no heap, whereas opening a
+ * MapDB feed sets up caches and BTree accessors for every table. This is meant for workers that open many feeds at
+ * startup and only need the geometry and timing of trips.
+ *
+ * The file is written by write() from a loaded GTFSFeed. It consists of a header giving the position and length of each
+ * section, followed by the sections:
+ * - the trip and shape IDs, each sorted by their UTF-8 bytes so they can be binary searched in place, the stop IDs,
+ *   and a pool of other strings (stop headsigns). Entities refer to all of these by index.
+ * - for each trip, the index of its shape, its pattern and its time profile, and its start time.
+ * - the deduplicated patterns and time profiles, laid out as in CompressedStopTimes, each with their offsets.
+ * - columns of stop coordinates, and of shape coordinates in 1e-7 degree fixed point with the points of each shape
+ *   together and in order.
+ *
+ * Stop times and shape points are returned as the same objects GTFSFeed returns, except that their row numbers (the id
+ * field) are not retained and shape coordinates are rounded to 1e-7 degrees (about a centimeter). Stop times of trips
+ * that are not in the trips table are not retained.
+ *
+ * Reads never change the position of the mapped buffers, so this is threadsafe.
+ */
+public class FrozenGTFSFeed implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FrozenGTFSFeed.class);
+
+    private static final int MAGIC = 0x4754465A; // "GTFZ"
+    private static final int VERSION = 2;
+
+    private static final double FIXED_POINT_SCALE = 1e7;
+
+    // Sections of the file, in the order they are written.
+    private static final int TRIP_IDS = 0;
+    private static final int STOP_IDS = 1;
+    private static final int SHAPE_IDS = 2;
+    private static final int STRINGS = 3;
+    private static final int TRIP_SHAPES = 4;
+    private static final int TRIP_PATTERNS = 5;
+    private static final int TRIP_PROFILES = 6;
+    private static final int TRIP_START_TIMES = 7;
+    private static final int PATTERN_OFFSETS = 8;
+    private static final int PATTERNS = 9;
+    private static final int PROFILE_OFFSETS = 10;
+    private static final int PROFILES = 11;
+    private static final int STOP_LATS = 12;
+    private static final int STOP_LONS = 13;
+    private static final int SHAPE_POINTS = 14;
+    private static final int SHAPE_POINT_LATS = 15;
+    private static final int SHAPE_POINT_LONS = 16;
+    private static final int SHAPE_POINT_DISTANCES = 17;
+    private static final int SECTION_COUNT = 18;
+
+    private static final int HEADER_SIZE = 12 + SECTION_COUNT * 16;
+
+    /** Orders UTF-8 encoded strings by their unsigned bytes, the order in which they are binary searched. */
+    private static final Comparator<byte[]> UTF8_ORDER = (a, b) -> {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(a.length, b.length);
+    };
+
+    private final RandomAccessFile file;
+
+    private final StringTable tripIds;
+    private final StringTable stopIds;
+    private final StringTable shapeIds;
+    private final StringTable strings;
+    private final IntBuffer tripShapes;
+    private final IntBuffer tripPatterns;
+    private final IntBuffer tripProfiles;
+    private final IntBuffer tripStartTimes;
+    private final IntBuffer patternOffsets;
+    private final IntBuffer patterns;
+    private final IntBuffer profileOffsets;
+    private final IntBuffer profiles;
+    private final DoubleBuffer stopLats;
+    private final DoubleBuffer stopLons;
+    private final IntBuffer shapePoints;
+    private final IntBuffer shapePointLats;
+    private final IntBuffer shapePointLons;
+    private final DoubleBuffer shapePointDistances;
+
+    private FrozenGTFSFeed (File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) throw new IOException(path + " is not a frozen GTFS feed.");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported frozen GTFS feed version " + version);
+            if (header.getInt() != SECTION_COUNT) throw new IOException("Unexpected number of sections in " + path);
+            // Each section is mapped separately, so that only a single section is limited to 2GB.
+            ByteBuffer[] sections = new ByteBuffer[SECTION_COUNT];
+            for (int i = 0; i < SECTION_COUNT; i++) {
+                long offset = header.getLong();
+                long length = header.getLong();
+                sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            tripIds = new StringTable(sections[TRIP_IDS]);
+            stopIds = new StringTable(sections[STOP_IDS]);
+            shapeIds = new StringTable(sections[SHAPE_IDS]);
+            strings = new StringTable(sections[STRINGS]);
+            tripShapes = sections[TRIP_SHAPES].asIntBuffer();
+            tripPatterns = sections[TRIP_PATTERNS].asIntBuffer();
+            tripProfiles = sections[TRIP_PROFILES].asIntBuffer();
+            tripStartTimes = sections[TRIP_START_TIMES].asIntBuffer();
+            patternOffsets = sections[PATTERN_OFFSETS].asIntBuffer();
+            patterns = sections[PATTERNS].asIntBuffer();
+            profileOffsets = sections[PROFILE_OFFSETS].asIntBuffer();
+            profiles = sections[PROFILES].asIntBuffer();
+            stopLats = sections[STOP_LATS].asDoubleBuffer();
+            stopLons = sections[STOP_LONS].asDoubleBuffer();
+            shapePoints = sections[SHAPE_POINTS].asIntBuffer();
+            shapePointLats = sections[SHAPE_POINT_LATS].asIntBuffer();
+            shapePointLons = sections[SHAPE_POINT_LONS].asIntBuffer();
+            shapePointDistances = sections[SHAPE_POINT_DISTANCES].asDoubleBuffer();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Open a file written by write(). */
+    public static FrozenGTFSFeed open (File file) throws IOException {
+        return new FrozenGTFSFeed(file);
+    }
+
+    @Override
+    public void close () throws IOException {
+        // The mapped buffers remain valid until they are garbage collected.
+        file.close();
+    }
+
+    /** @return the number of trips in this feed. */
+    public int getTripCount () {
+        return tripIds.size();
+    }
+
+    /** @return the IDs of all the trips in this feed, sorted by their UTF-8 bytes. */
+    public Iterable<String> getTripIds () {
+        return () -> new Iterator<String>() {
+            int trip = 0;
+
+            @Override
+            public boolean hasNext () {
+                return trip < tripIds.size();
+            }
+
+            @Override
+            public String next () {
+                if (!hasNext()) throw new NoSuchElementException();
+                return tripIds.get(trip++);
+            }
+        };
+    }
+
+    /**
+     * For the given trip ID, fetch all the stop times in order of increasing stop_sequence.
+     * New StopTime objects are created each time the result is iterated over.
+     */
+    public Iterable<StopTime> getOrderedStopTimesForTrip (String trip_id) {
+        int trip = tripIds.find(trip_id);
+        if (trip < 0) return Collections.emptyList();
+        return CompressedStopTimes.stopTimes(trip_id, getPattern(trip),
+                slice(profiles, profileOffsets, tripProfiles.get(trip)), tripStartTimes.get(trip),
+                stopIds::get, strings::get);
+    }
+
+    public List<String> getOrderedStopListForTrip (String trip_id) {
+        List<String> stops = new ArrayList<>();
+        int trip = tripIds.find(trip_id);
+        if (trip < 0) return stops;
+        IntBuffer pattern = getPattern(trip);
+        // The stops are the first field of the pattern.
+        for (int i = 0; i < pattern.limit() / CompressedStopTimes.PATTERN_FIELDS; i++) {
+            stops.add(stopIds.get(pattern.get(i)));
+        }
+        return stops;
+    }
+
+    private IntBuffer getPattern (int trip) {
+        return slice(patterns, patternOffsets, tripPatterns.get(trip));
+    }
+
+    /** @return a view of the array with the given index, in a section of arrays with the given offsets. */
+    private static IntBuffer slice (IntBuffer arrays, IntBuffer offsets, int index) {
+        IntBuffer array = arrays.duplicate();
+        array.limit(offsets.get(index + 1));
+        array.position(offsets.get(index));
+        return array.slice();
+    }
+
+    /** Get the shape for the given shape ID, or null if there is no such shape. */
+    public Shape getShape (String shape_id) {
+        int shape = shapeIds.find(shape_id);
+        return shape < 0 ? null : getShape(shape);
+    }
+
+    private Shape getShape (int shape) {
+        int start = shapePoints.get(shape);
+        int end = shapePoints.get(shape + 1);
+        if (end == start) return null;
+        Coordinate[] coordinates = new Coordinate[end - start];
+        double[] distances = new double[end - start];
+        for (int point = start; point < end; point++) {
+            coordinates[point - start] = new Coordinate(shapePointLons.get(point) / FIXED_POINT_SCALE,
+                    shapePointLats.get(point) / FIXED_POINT_SCALE);
+            distances[point - start] = shapePointDistances.get(point);
+        }
+        return new Shape(Util.geometryFactory.createLineString(coordinates), distances);
+    }
+
+    /**
+     * Returns the geometry of the given trip: its shape if it has one, otherwise a straight line between its stops.
+     * @return null if the trip does not exist, or has no shape and fewer than two stops.
+     */
+    public LineString getTripGeometry (String trip_id) {
+        int trip = tripIds.find(trip_id);
+        if (trip < 0) return null;
+        int shape = tripShapes.get(trip);
+        if (shape >= 0) {
+            Shape s = getShape(shape);
+            if (s != null) return s.geometry;
+        }
+        return getStraightLineForStops(trip_id);
+    }
+
+    /** @return a line between the stops of the given trip, or null if it has fewer than two stops. */
+    public LineString getStraightLineForStops (String trip_id) {
+        int trip = tripIds.find(trip_id);
+        if (trip < 0) return null;
+        IntBuffer pattern = getPattern(trip);
+        int n = pattern.limit() / CompressedStopTimes.PATTERN_FIELDS;
+        if (n < 2) return null;
+        Coordinate[] coordinates = new Coordinate[n];
+        for (int i = 0; i < n; i++) {
+            int stop = pattern.get(i);
+            coordinates[i] = stop < 0
+                    ? new Coordinate(Double.NaN, Double.NaN)
+                    : new Coordinate(stopLons.get(stop), stopLats.get(stop));
+        }
+        return Util.geometryFactory.createLineString(coordinates);
+    }
+
+    /**
+     * Write the trips, stop times, stops and shapes of the given feed to a file that can be opened with open(). The
+     * stop times are compressed into patterns and time profiles in memory, which usually take a small fraction of the
+     * space of the stop times themselves. Shape points are read one shape at a time and written straight to their
+     * columns.
+     */
+    public static void write (GTFSFeed feed, File path) throws IOException {
+        LOG.info("Writing frozen feed to {}", path);
+
+        List<byte[]> tripIdBytes = encodeSorted(feed.trips.keySet());
+        List<String> trips = decode(tripIdBytes);
+        // This numbers the stops in the order of the stops table, then any others as they are referenced.
+        CompressedStopTimes stopTimes = CompressedStopTimes.fromFeed(feed);
+        List<String> stopList = stopTimes.getStopIds();
+        List<byte[]> stopIdBytes = encode(stopList);
+        List<byte[]> stringBytes = encode(stopTimes.getStrings());
+        List<int[]> patternList = stopTimes.getPatterns();
+        List<int[]> profileList = stopTimes.getProfiles();
+
+        // The shapes, and the number of points.
+        Set<String> shapeSet = new TreeSet<>();
+        int shapePointCount = 0;
+        for (Tuple2<String, Integer> key : feed.shape_points.keySet()) {
+            shapeSet.add(key.a);
+            shapePointCount++;
+        }
+        List<byte[]> shapeIdBytes = encodeSorted(shapeSet);
+        List<String> shapeList = decode(shapeIdBytes);
+        Map<String, Integer> shapeIndexes = indexes(shapeList);
+
+        long[] lengths = new long[SECTION_COUNT];
+        lengths[TRIP_IDS] = StringTable.size(tripIdBytes);
+        lengths[STOP_IDS] = StringTable.size(stopIdBytes);
+        lengths[SHAPE_IDS] = StringTable.size(shapeIdBytes);
+        lengths[STRINGS] = StringTable.size(stringBytes);
+        lengths[TRIP_SHAPES] = 4L * trips.size();
+        lengths[TRIP_PATTERNS] = 4L * trips.size();
+        lengths[TRIP_PROFILES] = 4L * trips.size();
+        lengths[TRIP_START_TIMES] = 4L * trips.size();
+        lengths[PATTERN_OFFSETS] = 4L * (patternList.size() + 1);
+        lengths[PATTERNS] = 4L * totalLength(patternList);
+        lengths[PROFILE_OFFSETS] = 4L * (profileList.size() + 1);
+        lengths[PROFILES] = 4L * totalLength(profileList);
+        lengths[STOP_LATS] = 8L * stopList.size();
+        lengths[STOP_LONS] = 8L * stopList.size();
+        lengths[SHAPE_POINTS] = 4L * (shapeList.size() + 1);
+        lengths[SHAPE_POINT_LATS] = 4L * shapePointCount;
+        lengths[SHAPE_POINT_LONS] = 4L * shapePointCount;
+        lengths[SHAPE_POINT_DISTANCES] = 8L * shapePointCount;
+        long[] offsets = new long[SECTION_COUNT];
+        long offset = HEADER_SIZE;
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            offset = (offset + 7) & ~7L; // Align each section for its doubles.
+            offsets[section] = offset;
+            offset += lengths[section];
+        }
+
+        try (RandomAccessFile out = new RandomAccessFile(path, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            SectionWriter[] writers = new SectionWriter[SECTION_COUNT];
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                writers[section] = new SectionWriter(channel, offsets[section]);
+            }
+            StringTable.write(writers[TRIP_IDS], tripIdBytes);
+            StringTable.write(writers[STOP_IDS], stopIdBytes);
+            StringTable.write(writers[SHAPE_IDS], shapeIdBytes);
+            StringTable.write(writers[STRINGS], stringBytes);
+
+            for (String tripId : trips) {
+                Trip trip = feed.trips.get(tripId);
+                Integer shape = trip.shape_id == null ? null : shapeIndexes.get(trip.shape_id);
+                writers[TRIP_SHAPES].putInt(shape == null ? -1 : shape);
+                int[] compressedTrip = stopTimes.getTrip(tripId);
+                writers[TRIP_PATTERNS].putInt(compressedTrip[0]);
+                writers[TRIP_PROFILES].putInt(compressedTrip[1]);
+                writers[TRIP_START_TIMES].putInt(compressedTrip[2]);
+            }
+            writeArrays(writers[PATTERN_OFFSETS], writers[PATTERNS], patternList);
+            writeArrays(writers[PROFILE_OFFSETS], writers[PROFILES], profileList);
+
+            for (String stopId : stopList) {
+                Stop stop = feed.stops.get(stopId);
+                writers[STOP_LATS].putDouble(stop == null ? Double.NaN : stop.stop_lat);
+                writers[STOP_LONS].putDouble(stop == null ? Double.NaN : stop.stop_lon);
+            }
+
+            int point = 0;
+            for (String shapeId : shapeList) {
+                writers[SHAPE_POINTS].putInt(point);
+                Map<Tuple2<String, Integer>, ShapePoint> points =
+                        feed.shape_points.subMap(new Tuple2(shapeId, null), new Tuple2(shapeId, Fun.HI));
+                for (ShapePoint shapePoint : points.values()) {
+                    writers[SHAPE_POINT_LATS].putInt((int) Math.round(shapePoint.shape_pt_lat * FIXED_POINT_SCALE));
+                    writers[SHAPE_POINT_LONS].putInt((int) Math.round(shapePoint.shape_pt_lon * FIXED_POINT_SCALE));
+                    writers[SHAPE_POINT_DISTANCES].putDouble(shapePoint.shape_dist_traveled);
+                    point++;
+                }
+            }
+            writers[SHAPE_POINTS].putInt(point);
+            for (SectionWriter writer : writers) writer.flush();
+
+            SectionWriter header = new SectionWriter(channel, 0);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(SECTION_COUNT);
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                header.putLong(offsets[section]);
+                header.putLong(lengths[section]);
+            }
+            header.flush();
+        }
+        LOG.info("Wrote {} trips with {} stop times as {} patterns and {} time profiles, and {} shape points",
+                human(trips.size()), human(stopTimes.getStopTimeCount()), human(patternList.size()),
+                human(profileList.size()), human(shapePointCount));
+    }
+
+    private static long totalLength (List<int[]> arrays) {
+        long length = 0;
+        for (int[] array : arrays) length += array.length;
+        return length;
+    }
+
+    /** Write the given arrays one after another, and the offset of each array followed by the offset of their end. */
+    private static void writeArrays (SectionWriter offsets, SectionWriter values, List<int[]> arrays)
+            throws IOException {
+        int offset = 0;
+        for (int[] array : arrays) {
+            offsets.putInt(offset);
+            for (int value : array) values.putInt(value);
+            offset += array.length;
+        }
+        offsets.putInt(offset);
+    }
+
+    private static byte[] utf8 (String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> encode (Iterable<String> strings) {
+        List<byte[]> encoded = new ArrayList<>();
+        for (String string : strings) encoded.add(utf8(string));
+        return encoded;
+    }
+
+    private static List<byte[]> encodeSorted (Iterable<String> strings) {
+        List<byte[]> encoded = encode(strings);
+        encoded.sort(UTF8_ORDER);
+        return encoded;
+    }
+
+    private static List<String> decode (List<byte[]> encoded) {
+        List<String> strings = new ArrayList<>(encoded.size());
+        for (byte[] bytes : encoded) strings.add(new String(bytes, StandardCharsets.UTF_8));
+        return strings;
+    }
+
+    private static Map<String, Integer> indexes (List<String> strings) {
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < strings.size(); i++) indexes.put(strings.get(i), i);
+        return indexes;
+    }
+
+    /**
+     * A table of strings in a mapped buffer: the number of strings, the offset of each string in the bytes that follow
+     * plus the offset of their end, then the UTF-8 bytes of all the strings.
+     */
+    private static class StringTable {
+
+        private final int size;
+        private final IntBuffer offsets;
+        private final ByteBuffer bytes;
+
+        StringTable (ByteBuffer buffer) {
+            size = buffer.getInt(0);
+            buffer.position(4);
+            offsets = buffer.slice().asIntBuffer();
+            buffer.position(4 + 4 * (size + 1));
+            bytes = buffer.slice();
+        }
+
+        int size () {
+            return size;
+        }
+
+        /** @return the string at the given index, or null if the index is negative. */
+        String get (int index) {
+            if (index < 0) return null;
+            int start = offsets.get(index);
+            byte[] string = new byte[offsets.get(index + 1) - start];
+            for (int i = 0; i < string.length; i++) string[i] = bytes.get(start + i);
+            return new String(string, StandardCharsets.UTF_8);
+        }
+
+        /** @return the index of the given string, or -1 if it is not in this table, which must be sorted. */
+        int find (String string) {
+            if (string == null) return -1;
+            byte[] key = utf8(string);
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(mid, key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        /** Compare the string at the given index to the given UTF-8 bytes, in UTF8_ORDER. */
+        private int compare (int index, byte[] key) {
+            int start = offsets.get(index);
+            int length = offsets.get(index + 1) - start;
+            for (int i = 0; i < Math.min(length, key.length); i++) {
+                int cmp = Integer.compare(bytes.get(start + i) & 0xFF, key[i] & 0xFF);
+                if (cmp != 0) return cmp;
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        static long size (List<byte[]> strings) {
+            long size = 4 + 4L * (strings.size() + 1);
+            for (byte[] string : strings) size += string.length;
+            return size;
+        }
+
+        static void write (SectionWriter writer, List<byte[]> strings) throws IOException {
+            writer.putInt(strings.size());
+            int offset = 0;
+            writer.putInt(offset);
+            for (byte[] string : strings) {
+                offset += string.length;
+                writer.putInt(offset);
+            }
+            for (byte[] string : strings) writer.put(string);
+        }
+    }
+
+    /** Writes one section of the file through its own buffer, so that many sections can be written at once. */
+    private static class SectionWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private long position;
+
+        SectionWriter (FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void putInt (int value) throws IOException {
+            if (buffer.remaining() < 4) flush();
+            buffer.putInt(value);
+        }
+
+        void putLong (long value) throws IOException {
+            if (buffer.remaining() < 8) flush();
+            buffer.putLong(value);
+        }
+
+        void putDouble (double value) throws IOException {
+            if (buffer.remaining() < 8) flush();
+            buffer.putDouble(value);
+        }
+
+        void put (byte[] bytes) throws IOException {
+            for (int i = 0; i < bytes.length; ) {
+                if (!buffer.hasRemaining()) flush();
+                int length = Math.min(buffer.remaining(), bytes.length - i);
+                buffer.put(bytes, i, length);
+                i += length;
+            }
+        }
+
+        void flush () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+            buffer.clear();
+        }
+    }
+}
@@ -13,6 +13,10 @@ public class GTFSCache extends BaseGTFSCache<GTFSFeed> {
     public GTFSCache(String bucket, String bucketFolder, File cacheDir) {
         super(bucket, bucketFolder, cacheDir);
     }
+
+    public GTFSCache(String bucket, String bucketFolder, File cacheDir, long maximumWeight) {
+        super(bucket, bucketFolder, cacheDir, maximumWeight);
+    }
     
     @Override
     protected GTFSFeed processFeed(GTFSFeed feed) {
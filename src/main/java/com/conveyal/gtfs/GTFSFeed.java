@@ -1,20 +1,39 @@
 package com.conveyal.gtfs;
 
 import com.conveyal.gtfs.error.GTFSError;
+import com.conveyal.gtfs.error.GTFSErrorSink;
+import com.conveyal.gtfs.error.MapDBErrorSink;
 import com.conveyal.gtfs.loader.FeedLoadResult;
 import com.conveyal.gtfs.loader.JdbcGTFSFeedConverter;
 import com.conveyal.gtfs.model.*;
 import com.conveyal.gtfs.model.Calendar;
+import com.conveyal.gtfs.storage.BulkTreeMapBuilder;
+import com.conveyal.gtfs.storage.CheckedReferences;
+import com.conveyal.gtfs.storage.DictionaryKeyedMap;
+import com.conveyal.gtfs.storage.OverlayMap;
+import com.conveyal.gtfs.storage.ServiceCalendar;
+import com.conveyal.gtfs.storage.ShapePointSerializer;
+import com.conveyal.gtfs.storage.StopDepartureIndex;
+import com.conveyal.gtfs.storage.StopSerializer;
+import com.conveyal.gtfs.storage.StopSpatialIndex;
+import com.conveyal.gtfs.storage.StopTimeSerializer;
+import com.conveyal.gtfs.storage.StringDictionary;
+import com.conveyal.gtfs.storage.TripSerializer;
 import com.conveyal.gtfs.validator.Validator;
+import com.conveyal.gtfs.util.PrecompressedZipWriter;
 import com.conveyal.gtfs.util.Util;
 import com.conveyal.gtfs.validator.service.GeoUtils;
 import com.google.common.collect.*;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.ExecutionError;
 import org.locationtech.jts.algorithm.ConvexHull;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+import org.mapdb.BTreeKeySerializer;
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
@@ -31,12 +50,19 @@ import java.io.FileOutputStream;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -65,36 +91,98 @@ public class GTFSFeed implements Cloneable, Closeable {
     public final Map<String, Route> routes;
     public final Map<String, Stop> stops;
     public final Map<String, Transfer> transfers;
-    public final BTreeMap<String, Trip> trips;
+    public final ConcurrentNavigableMap<String, Trip> trips;
 
-    public final Set<String> transitIds = new HashSet<>();
+    /** The referenced values that have already been checked while loading, see Entity.Loader.checkRefField. */
+    public final CheckedReferences checkedReferences;
     /** CRC32 of the GTFS file this was loaded from */
     public long checksum;
 
-    /* Map from 2-tuples of (shape_id, shape_pt_sequence) to shape points */
-    public final ConcurrentNavigableMap<Tuple2<String, Integer>, ShapePoint> shape_points;
+    /** The CRC32 of each table in the GTFS file this was loaded from, keyed on table name. See updateFromFile. */
+    private final Map<String, Long> tableCrcs;
 
-    /* Map from 2-tuples of (trip_id, stop_sequence) to stoptimes. */
-    public final BTreeMap<Tuple2, StopTime> stop_times;
+    /* Map from 2-tuples of (shape_id, shape_pt_sequence) to shape points. Not final, it is replaced by bulk loading. */
+    public ConcurrentNavigableMap<Tuple2<String, Integer>, ShapePoint> shape_points;
+
+    /*
+     * Map from 2-tuples of (trip_id, stop_sequence) to stoptimes. Not final, it is replaced by bulk loading. See
+     * CompressedStopTimes for a much smaller read-only form.
+     */
+    public ConcurrentNavigableMap<Tuple2, StopTime> stop_times;
+
+    /**
+     * If true, stop_times and shape_points are stored in BTrees keyed on longs combining a dictionary code for the
+     * trip or shape ID with the sequence number, and presented as Tuple2-keyed maps by DictionaryKeyedMap. This makes
+     * the BTrees much smaller and key comparisons much cheaper, but entries for different trips or shapes are ordered
+     * by dictionary code rather than alphabetically. The layout is chosen when the database is created.
+     */
+    public final boolean integerKeys;
 
     /* A fare is a fare_attribute and all fare_rules that reference that fare_attribute. */
     public final Map<String, Fare> fares;
 
     /* A service is a calendar entry and all calendar_dates that modify that calendar entry. */
-    public final BTreeMap<String, Service> services;
+    public final ConcurrentNavigableMap<String, Service> services;
 
     /* A place to accumulate errors while the feed is loaded. Tolerate as many errors as possible and keep on loading. */
     public final NavigableSet<GTFSError> errors;
 
+    /**
+     * Receives the errors encountered while loading. By default this is a MapDBErrorSink, which keeps exact counts of
+     * all errors but only stores a limited number of examples of each kind in the errors set above. It may be replaced
+     * before the feed is loaded.
+     */
+    public GTFSErrorSink errorSink;
+
     /* Stops spatial index which gets built lazily by getSpatialIndex() */
     private transient STRtree spatialIndex;
 
+    /** The name of the record holding the stop spatial index in the database. */
+    private static final String STOP_SPATIAL_INDEX = "stop_spatial_index";
+
+    /* Stop spatial index, built when the stops are loaded and stored in the database. See getStopSpatialIndex(). */
+    private transient StopSpatialIndex stopSpatialIndex;
+
+    /** The name of the record holding the stop departure index in the database. */
+    private static final String STOP_DEPARTURE_INDEX = "stop_departure_index";
+
+    /* Departures from each stop, built on first use and stored in the database. See getStopDepartureIndex(). */
+    private transient StopDepartureIndex stopDepartureIndex;
+
+    /* Active days of each service and the trips running on each date, built lazily by getServiceCalendar() */
+    private transient ServiceCalendar serviceCalendar;
+
     /* Convex hull of feed (based on stops) built lazily by getConvexHull() */
     private transient Polygon convexHull;
 
     /* Merged stop buffers polygon built lazily by getMergedBuffers() */
     private transient Geometry mergedBuffers;
 
+    /**
+     * The maximum number of decoded shapes kept in memory by getShape, and of simplified shapes kept by
+     * getSimplifiedShapeGeometry. Must be set before either is first called.
+     */
+    public int shapeCacheSize = 10_000;
+
+    /**
+     * The Douglas-Peucker tolerances, in degrees, at which simplified shapes are stored in the database once they have
+     * been computed. Shapes simplified at other tolerances are only cached in memory.
+     */
+    public double[] storedShapeTolerances = {0.00001, 0.0001, 0.001};
+
+    /* Decoded shapes and simplified shape geometries, built lazily by getShapeCache and getSimplifiedShapeCache. */
+    private transient LoadingCache<String, Optional<Shape>> shapeCache;
+    private transient LoadingCache<Tuple2<String, Double>, Optional<LineString>> simplifiedShapeCache;
+
+    /* The packed coordinates of shapes simplified at each of the storedShapeTolerances, keyed on (shape_id, tolerance). */
+    private final Map<Tuple2<String, Double>, double[]> simplifiedShapes;
+
+    /**
+     * The interpolated arrival times followed by the departure times of each trip that has times to interpolate, keyed
+     * on trip ID. Filled in by interpolateStopTimes.
+     */
+    private final Map<String, int[]> interpolatedTimes;
+
     /* Create geometry factory to produce LineString geometries. */
     GeometryFactory gf = new GeometryFactory();
 
@@ -102,11 +190,44 @@ public class GTFSFeed implements Cloneable, Closeable {
     // TODO: Hash Multimapping in guava (might need dependency).
     public final Map<String, Pattern> patterns;
 
-    // TODO bind this to map above so that it is kept up to date automatically
+    /** The ID of the pattern of each trip, keyed on trip ID. Filled in by findPatterns along with the patterns. */
     public final Map<String, String> tripPatternMap;
     private boolean loaded = false;
 
-    /* A place to store an event bus that is passed through constructor. */
+    /**
+     * The number of threads used by loadFromFile. With more than one thread, independent tables are parsed and
+     * stored concurrently and referential integrity is checked after all tables are loaded.
+     */
+    public int loadThreads = 1;
+
+    /**
+     * The number of threads used by toFile. With more than one thread, tables are written and compressed concurrently,
+     * each into its own temporary file, and then copied into the zip file.
+     */
+    public int writeThreads = 1;
+
+    /**
+     * If true, loadFromFile does not insert stop_times and shape_points into their BTrees one row at a time. The rows
+     * are sorted on disk and the BTrees are built bottom-up by the MapDB data pump, see BulkTreeMapBuilder.
+     */
+    public boolean bulkLoad = false;
+
+    /** The number of entries sorted in memory at once when bulk loading, before being spilled to disk. */
+    private static final int BULK_LOAD_RUN_SIZE = 500_000;
+
+    /** Codes for the ID strings stored by the compact serializers of the largest tables. */
+    private final StringDictionary dictionary;
+
+    /**
+     * The feed whose tables this one reads through to, if this is an overlay created by overlay(). Held so that the
+     * base feed is not finalized and closed while it is in use.
+     */
+    private final GTFSFeed base;
+
+    /**
+     * If set, TableProgressEvents are posted to this event bus as each table is loaded by loadFromFile and written by
+     * toFile. Null by default, in which case no events are created.
+     */
     public transient EventBus eventBus;
 
     /**
@@ -133,6 +254,7 @@ public class GTFSFeed implements Cloneable, Closeable {
         checksum = zip.stream().mapToLong(ZipEntry::getCrc).reduce((l1, l2) -> l1 ^ l2).getAsLong();
 
         db.getAtomicLong("checksum").set(checksum);
+        tableCrcs.putAll(getTableCrcs(zip));
 
         new FeedInfo.Loader(this).loadTable(zip);
         // maybe we should just point to the feed object itself instead of its ID, and null out its stoptimes map after loading
@@ -150,6 +272,31 @@ public class GTFSFeed implements Cloneable, Closeable {
 
         db.getAtomicString("feed_id").set(feedId);
 
+        if (loadThreads > 1) {
+            loadTablesInParallel(zip);
+        } else {
+            loadTablesSequentially(zip);
+        }
+        // The checked values are only needed while loading.
+        checkedReferences.clear();
+        storeStopSpatialIndex();
+        errorSink.flush();
+        LOG.info("{} errors", errorSink.getErrorCount());
+        for (Map.Entry<String, Map<String, Long>> table : errorSink.getErrorCounts().entrySet()) {
+            for (Map.Entry<String, Long> type : table.getValue().entrySet()) {
+                LOG.info("{} {}: {}", type.getValue(), type.getKey(), table.getKey());
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            for (GTFSError error : errors) {
+                LOG.debug("{}", error);
+            }
+        }
+        loaded = true;
+    }
+
+    /** Load all tables after feed_info one after another, checking references as each row is loaded. */
+    private void loadTablesSequentially (ZipFile zip) throws Exception {
         new Agency.Loader(this).loadTable(zip);
 
         // calendars and calendar dates are joined into services. This means a lot of manipulating service objects as
@@ -175,56 +322,387 @@ public class GTFSFeed implements Cloneable, Closeable {
         new Trip.Loader(this).loadTable(zip);
         new Frequency.Loader(this).loadTable(zip);
         new StopTime.Loader(this).loadTable(zip); // comment out this line for quick testing using NL feed
-        LOG.info("{} errors", errors.size());
-        for (GTFSError error : errors) {
-            LOG.info("{}", error);
+    }
+
+    /**
+     * Load tables after feed_info on several threads. Tables that depend on the contents of another table (rather than
+     * just referencing it) are loaded one after the other on the same thread: routes need the agencies to fill in a
+     * missing agency_id, and calendars/calendar_dates and fare_attributes/fare_rules are joined into services and
+     * fares as they are loaded. Everything else is independent once referential integrity checks are deferred until
+     * all tables are loaded. The deferred checks are run in the same order as a sequential load, so both produce the
+     * same errors, except that references from transfers to trips resolve (trips are loaded after transfers when
+     * loading sequentially).
+     */
+    private void loadTablesInParallel (ZipFile zip) throws Exception {
+        Map<String, Service> serviceTable = new HashMap<>();
+        Map<String, Fare> fareTable = new HashMap<>();
+        Entity.Loader<Agency> agencyLoader = new Agency.Loader(this);
+        Entity.Loader<Calendar> calendarLoader = new Calendar.Loader(this, serviceTable);
+        Entity.Loader<CalendarDate> calendarDateLoader = new CalendarDate.Loader(this, serviceTable);
+        Entity.Loader<FareAttribute> fareAttributeLoader = new FareAttribute.Loader(this, fareTable);
+        Entity.Loader<FareRule> fareRuleLoader = new FareRule.Loader(this, fareTable);
+        Entity.Loader<Route> routeLoader = new Route.Loader(this);
+        Entity.Loader<ShapePoint> shapePointLoader = new ShapePoint.Loader(this);
+        Entity.Loader<Stop> stopLoader = new Stop.Loader(this);
+        Entity.Loader<Transfer> transferLoader = new Transfer.Loader(this);
+        Entity.Loader<Trip> tripLoader = new Trip.Loader(this);
+        Entity.Loader<Frequency> frequencyLoader = new Frequency.Loader(this);
+        Entity.Loader<StopTime> stopTimeLoader = new StopTime.Loader(this);
+        // This is the order of a sequential load, which determines which row reports a given bad reference.
+        List<Entity.Loader<?>> loaders = Arrays.asList(agencyLoader, calendarLoader, calendarDateLoader,
+                fareAttributeLoader, fareRuleLoader, routeLoader, shapePointLoader, stopLoader, transferLoader,
+                tripLoader, frequencyLoader, stopTimeLoader);
+        for (Entity.Loader<?> loader : loaders) loader.deferReferenceChecks();
+
+        ExecutorService executor = Executors.newFixedThreadPool(loadThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            // Submit the biggest tables first so they are not left running alone at the end.
+            futures.add(executor.submit(() -> loadTables(zip, stopTimeLoader)));
+            futures.add(executor.submit(() -> loadTables(zip, shapePointLoader)));
+            futures.add(executor.submit(() -> loadTables(zip, tripLoader)));
+            futures.add(executor.submit(() -> loadTables(zip, stopLoader)));
+            futures.add(executor.submit(() -> loadTables(zip, agencyLoader, routeLoader)));
+            futures.add(executor.submit(() -> {
+                loadTables(zip, calendarLoader, calendarDateLoader);
+                this.services.putAll(serviceTable);
+                return null;
+            }));
+            futures.add(executor.submit(() -> {
+                loadTables(zip, fareAttributeLoader, fareRuleLoader);
+                this.fares.putAll(fareTable);
+                return null;
+            }));
+            futures.add(executor.submit(() -> loadTables(zip, transferLoader)));
+            futures.add(executor.submit(() -> loadTables(zip, frequencyLoader)));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Rethrow the exception thrown by the loader, as a sequential load would.
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
-        loaded = true;
+        for (Entity.Loader<?> loader : loaders) loader.checkDeferredReferences();
+    }
+
+    /** Load the given tables one after the other. Returns null so it can be submitted as a Callable. */
+    private static Void loadTables (ZipFile zip, Entity.Loader<?>... loaders) throws IOException {
+        for (Entity.Loader<?> loader : loaders) loader.loadTable(zip);
+        return null;
     }
 
     public void loadFromFile(ZipFile zip) throws Exception {
         loadFromFile(zip, null);
     }
 
+    /** The tables referenced by each table. A table must be reloaded to recheck its references if they change. */
+    private static final Map<String, List<String>> REFERENCED_TABLES = new HashMap<>();
+    static {
+        REFERENCED_TABLES.put("routes", Arrays.asList("agency"));
+        // Trips also reference services, but are only rechecked when those change, see updateFromFile.
+        REFERENCED_TABLES.put("trips", Arrays.asList("routes"));
+        REFERENCED_TABLES.put("stop_times", Arrays.asList("trips", "stops"));
+        REFERENCED_TABLES.put("transfers", Arrays.asList("stops", "routes", "trips"));
+        REFERENCED_TABLES.put("frequencies", Arrays.asList("trips"));
+        REFERENCED_TABLES.put("fare_rules", Arrays.asList("fare_attributes"));
+    }
+
+    /**
+     * Update a feed previously loaded into this database with a new version of the same feed, reloading only the
+     * tables whose CRCs have changed. Agencies often republish feeds in which only calendar_dates has changed, and
+     * rebuilding stop_times and shape_points for those is a waste of time.
+     *
+     * Along with the changed tables, this reloads tables that are joined with them (calendars and calendar dates into
+     * services, fare attributes and fare rules into fares) and tables that reference them, so that references are
+     * checked against the new contents. Errors recorded for the reloaded tables are replaced. Patterns are cleared if
+     * trips or stop times are reloaded, and must be found again.
+     *
+     * Trips refer to services only by service_id, and nothing is derived from those references. So when only calendars
+     * or calendar dates change, trips are not reloaded. Instead trips.txt is scanned to recheck them against the new
+     * services, which keeps patterns, interpolated stop times and the departure index.
+     */
+    public void updateFromFile (ZipFile zip) throws Exception {
+        if (tableCrcs.isEmpty()) {
+            throw new UnsupportedOperationException("Feed was loaded without table CRCs and cannot be updated.");
+        }
+        Map<String, Long> newTableCrcs = getTableCrcs(zip);
+        Set<String> changedTables = new HashSet<>();
+        for (String table : Sets.union(tableCrcs.keySet(), newTableCrcs.keySet())) {
+            if (!Objects.equals(tableCrcs.get(table), newTableCrcs.get(table))) changedTables.add(table);
+        }
+        Set<String> tables = new HashSet<>(changedTables);
+        for (Map.Entry<String, List<String>> entry : REFERENCED_TABLES.entrySet()) {
+            if (!Collections.disjoint(entry.getValue(), changedTables)) tables.add(entry.getKey());
+        }
+        if (tables.contains("calendar") || tables.contains("calendar_dates")) {
+            tables.addAll(Arrays.asList("calendar", "calendar_dates"));
+        }
+        if (tables.contains("fare_attributes") || tables.contains("fare_rules")) {
+            tables.addAll(Arrays.asList("fare_attributes", "fare_rules"));
+        }
+        boolean recheckTrips = tables.contains("calendar") && !tables.contains("trips");
+        LOG.info("Tables changed: {}. Reloading: {}. Rechecking trips: {}", changedTables, tables, recheckTrips);
+
+        for (String table : tables) errorSink.clear(table);
+        if (recheckTrips) errorSink.clear("trips");
+        checkedReferences.clear();
+        reloadTables(zip, tables);
+        if (recheckTrips) {
+            Trip.Loader tripLoader = new Trip.Loader(this);
+            tripLoader.checkOnly();
+            tripLoader.loadTable(zip);
+        }
+        checkedReferences.clear();
+
+        checksum = zip.stream().mapToLong(ZipEntry::getCrc).reduce((l1, l2) -> l1 ^ l2).getAsLong();
+        db.getAtomicLong("checksum").set(checksum);
+        tableCrcs.clear();
+        tableCrcs.putAll(newTableCrcs);
+        errorSink.flush();
+        LOG.info("{} errors", errorSink.getErrorCount());
+        loaded = true;
+    }
+
+    /** Clear the given tables and load them again, in the same order as loadTablesSequentially. */
+    private void reloadTables (ZipFile zip, Set<String> tables) throws Exception {
+        if (tables.contains("feed_info")) {
+            // Keep the existing feed ID if the new feed_info does not have one.
+            String previousFeedId = feedId;
+            feedInfo.clear();
+            new FeedInfo.Loader(this).loadTable(zip);
+            if (feedId == null || feedId.isEmpty()) feedId = previousFeedId;
+            db.getAtomicString("feed_id").set(feedId);
+        }
+        if (tables.contains("agency")) {
+            agency.clear();
+            new Agency.Loader(this).loadTable(zip);
+        }
+        if (tables.contains("calendar")) {
+            Map<String, Service> serviceTable = new HashMap<>();
+            new Calendar.Loader(this, serviceTable).loadTable(zip);
+            new CalendarDate.Loader(this, serviceTable).loadTable(zip);
+            services.clear();
+            services.putAll(serviceTable);
+        }
+        if (tables.contains("fare_attributes")) {
+            Map<String, Fare> fareTable = new HashMap<>();
+            new FareAttribute.Loader(this, fareTable).loadTable(zip);
+            new FareRule.Loader(this, fareTable).loadTable(zip);
+            fares.clear();
+            fares.putAll(fareTable);
+        }
+        if (tables.contains("routes")) {
+            routes.clear();
+            new Route.Loader(this).loadTable(zip);
+        }
+        if (tables.contains("shapes")) {
+            // Deleting the whole BTree is much faster than removing its entries one by one.
+            db.delete("shape_points");
+            shape_points = getTupleKeyedMap("shape_points", new ShapePointSerializer(dictionary.dictionaryId));
+            new ShapePoint.Loader(this).loadTable(zip);
+            clearShapes();
+        }
+        if (tables.contains("stops")) {
+            stops.clear();
+            new Stop.Loader(this).loadTable(zip);
+            storeStopSpatialIndex();
+        }
+        if (tables.contains("transfers")) {
+            transfers.clear();
+            new Transfer.Loader(this).loadTable(zip);
+        }
+        if (tables.contains("trips")) {
+            trips.clear();
+            new Trip.Loader(this).loadTable(zip);
+        }
+        if (tables.contains("frequencies")) {
+            frequencies.clear();
+            new Frequency.Loader(this).loadTable(zip);
+        }
+        if (tables.contains("stop_times")) {
+            db.delete("stop_times");
+            stop_times = getTupleKeyedMap("stop_times", new StopTimeSerializer(dictionary.dictionaryId));
+            new StopTime.Loader(this).loadTable(zip);
+        }
+        if (tables.contains("trips") || tables.contains("stop_times")) {
+            patterns.clear();
+            tripPatternMap.clear();
+        }
+        if (tables.contains("trips") || tables.contains("stops") || tables.contains("stop_times")) {
+            interpolatedTimes.clear();
+        }
+        if (tables.contains("calendar") || tables.contains("trips")) {
+            synchronized (this) {
+                serviceCalendar = null;
+            }
+        }
+        if (tables.contains("trips") || tables.contains("stops") || tables.contains("stop_times") ||
+                tables.contains("frequencies")) {
+            synchronized (this) {
+                if (db.exists(STOP_DEPARTURE_INDEX)) db.delete(STOP_DEPARTURE_INDEX);
+                stopDepartureIndex = null;
+            }
+        }
+    }
+
+    /** @return the CRC32 of each table in the given GTFS file, keyed on table name. */
+    private static Map<String, Long> getTableCrcs (ZipFile zip) {
+        Map<String, Long> crcs = new HashMap<>();
+        zip.stream()
+                .filter(entry -> !entry.isDirectory() && entry.getName().endsWith(".txt"))
+                .forEach(entry -> crcs.put(new File(entry.getName()).getName().replaceAll("\\.txt$", ""),
+                        entry.getCrc()));
+        return crcs;
+    }
+
+    /**
+     * Create a builder to accumulate the entries of one of this feed's Tuple2-keyed tree maps (stop_times or
+     * shape_points) for bulk loading. The entries are sorted in the order of the map's keys.
+     */
+    public <K extends Tuple2, V> BulkTreeMapBuilder<K, V> createBulkTreeMapBuilder () {
+        if (integerKeys) {
+            return new BulkTreeMapBuilder<K, V>(db.getDefaultSerializer(), db.getDefaultSerializer(),
+                    DictionaryKeyedMap.keyOrder(dictionary), BULK_LOAD_RUN_SIZE);
+        }
+        return new BulkTreeMapBuilder<K, V>(db.getDefaultSerializer(), db.getDefaultSerializer(), BULK_LOAD_RUN_SIZE);
+    }
+
+    /** Replace the stop_times map with one built by the MapDB data pump from the entries in the given builder. */
+    public void bulkLoadStopTimes (BulkTreeMapBuilder<Tuple2, StopTime> builder) throws IOException {
+        stop_times = pumpTupleKeyedMap("stop_times", builder, new StopTimeSerializer(dictionary.dictionaryId));
+    }
+
+    /** Replace the shape_points map with one built by the MapDB data pump from the entries in the given builder. */
+    public void bulkLoadShapePoints (BulkTreeMapBuilder<Tuple2<String, Integer>, ShapePoint> builder) throws IOException {
+        shape_points = pumpTupleKeyedMap("shape_points", builder, new ShapePointSerializer(dictionary.dictionaryId));
+    }
+
+    /**
+     * Replace the named tree map with one built bottom-up by the MapDB data pump, which is much faster than inserting
+     * the same entries one by one and leaves the BTree nodes densely packed and in key order on disk.
+     */
+    private <K extends Tuple2, V> ConcurrentNavigableMap<K, V> pumpTupleKeyedMap (String name,
+            BulkTreeMapBuilder<K, V> builder, Serializer<V> valueSerializer) throws IOException {
+        try {
+            // The pump cannot build an empty map, and the existing map is still empty.
+            if (builder.isEmpty()) return getTupleKeyedMap(name, valueSerializer);
+            LOG.info("Building {} from {} sorted entries", name, Entity.human(builder.size()));
+            db.delete(name);
+            if (integerKeys) {
+                // The builder sorted the keys in the order of their encoded form, so encoding them keeps them sorted.
+                Iterator<Tuple2<Long, V>> source = Iterators.transform(builder.iterator(),
+                        entry -> new Tuple2<>(DictionaryKeyedMap.encodeKey(dictionary, entry.a), entry.b));
+                BTreeMap<Long, V> map = db.createTreeMap(name)
+                        .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                        .valueSerializer(valueSerializer)
+                        .pumpSource(source)
+                        .make();
+                return new DictionaryKeyedMap<>(map, dictionary);
+            }
+            return db.createTreeMap(name)
+                    .valueSerializer(valueSerializer)
+                    .pumpSource(builder.iterator())
+                    .make();
+        } finally {
+            builder.close();
+        }
+    }
+
     public FeedLoadResult toSQL (DataSource dataSource) {
         JdbcGTFSFeedConverter converter = new JdbcGTFSFeedConverter(this, dataSource);
         return converter.loadTables();
     }
 
     public void toFile (String file) {
-        try {
-            File out = new File(file);
-            OutputStream os = new FileOutputStream(out);
-            ZipOutputStream zip = new ZipOutputStream(os);
-
+        try (OutputStream os = new FileOutputStream(new File(file))) {
             // write everything
             // TODO: shapes
+            List<Entity.Writer<?>> writers = new ArrayList<>();
 
             // don't write empty feed_info.txt
-            if (!this.feedInfo.isEmpty()) new FeedInfo.Writer(this).writeTable(zip);
-
-            new Agency.Writer(this).writeTable(zip);
-            new Calendar.Writer(this).writeTable(zip);
-            new CalendarDate.Writer(this).writeTable(zip);
-            new FareAttribute.Writer(this).writeTable(zip);
-            new FareRule.Writer(this).writeTable(zip);
-            new Frequency.Writer(this).writeTable(zip);
-            new Route.Writer(this).writeTable(zip);
-            new Stop.Writer(this).writeTable(zip);
-            new ShapePoint.Writer(this).writeTable(zip);
-            new Transfer.Writer(this).writeTable(zip);
-            new Trip.Writer(this).writeTable(zip);
-            new StopTime.Writer(this).writeTable(zip);
-
-            zip.close();
+            if (!this.feedInfo.isEmpty()) writers.add(new FeedInfo.Writer(this));
+
+            writers.add(new Agency.Writer(this));
+            writers.add(new Calendar.Writer(this));
+            writers.add(new CalendarDate.Writer(this));
+            writers.add(new FareAttribute.Writer(this));
+            writers.add(new FareRule.Writer(this));
+            writers.add(new Frequency.Writer(this));
+            writers.add(new Route.Writer(this));
+            writers.add(new Stop.Writer(this));
+            writers.add(new ShapePoint.Writer(this));
+            writers.add(new Transfer.Writer(this));
+            writers.add(new Trip.Writer(this));
+            writers.add(new StopTime.Writer(this));
+
+            if (writeThreads > 1) {
+                writeTablesInParallel(writers, os);
+            } else {
+                ZipOutputStream zip = new ZipOutputStream(os);
+                for (Entity.Writer<?> writer : writers) writer.writeTable(zip);
+                zip.close();
+            }
 
             LOG.info("GTFS file written");
         } catch (Exception e) {
             LOG.error("Error saving GTFS: {}", e.getMessage());
+            // Do not leave a partial feed behind that could be taken for a complete one.
+            new File(file).delete();
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Write each table into its own deflate stream on writeThreads threads, then copy the compressed tables into the
+     * zip file in the given order as soon as each one is ready.
+     */
+    private void writeTablesInParallel (List<Entity.Writer<?>> writers, OutputStream os) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(writeThreads);
+        Map<Entity.Writer<?>, Future<PrecompressedZipWriter.CompressedEntry>> futures = new HashMap<>();
+        try {
+            // The biggest tables are last in the file. Submit them first so they are not left running alone at the end.
+            for (Entity.Writer<?> writer : Lists.reverse(writers)) {
+                futures.put(writer, executor.submit(() ->
+                        PrecompressedZipWriter.compress(writer.getFileName(), writer::writeCsv)));
+            }
+            PrecompressedZipWriter zip = new PrecompressedZipWriter(os);
+            try {
+                for (Entity.Writer<?> writer : writers) {
+                    try {
+                        zip.addEntry(futures.get(writer).get());
+                    } catch (ExecutionException e) {
+                        // Rethrow the exception thrown by the writer, as a sequential write would.
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) throw (Exception) cause;
+                        throw e;
+                    }
+                }
+                zip.close();
+            } finally {
+                // If a table could not be written, do not write a central directory listing the others.
+                zip.abort();
+            }
+        } finally {
+            executor.shutdownNow();
+            // Delete the compressed tables that were not copied into the zip file because of an error.
+            for (Future<PrecompressedZipWriter.CompressedEntry> future : futures.values()) {
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        future.get().delete();
+                    } catch (ExecutionException e) {
+                        // This table was not written, so there is nothing to delete.
+                    }
+                }
+            }
+        }
+    }
+
     public void validate (boolean repair, Validator... validators) {
         long startValidation = System.currentTimeMillis();
         for (Validator validator : validators) {
@@ -304,8 +782,135 @@ public class GTFSFeed implements Cloneable, Closeable {
     }
 
     /**
-     * TODO rename getStopSpatialIndex to make it clear what the index contains.
+     * Every trip in this feed with its stop times in order of increasing stop_sequence, or an empty list if it has
+     * none. The stop times are read in sequential scans over ranges of the stop_times map rather than with a lookup
+     * per trip, and the stream can be made parallel, in which case each range is scanned on its own thread.
+     */
+    public Stream<Tuple2<Trip, List<StopTime>>> tripsWithStopTimes () {
+        // Sort the trips in the order of the stop_times keys, which with integerKeys is dictionary code order, and in an
+        // overlay also places the trips added to the overlay, see DictionaryKeyedMap.comparator().
+        Comparator<? super Tuple2> keyOrder = stop_times.comparator();
+        Comparator<String> tripOrder = keyOrder == null ? Comparator.naturalOrder()
+                : (tripId1, tripId2) -> keyOrder.compare(new Tuple2<>(tripId1, null), new Tuple2<>(tripId2, null));
+        String[] tripIds = trips.keySet().toArray(new String[0]);
+        Arrays.sort(tripIds, tripOrder);
+        return StreamSupport.stream(new TripStopTimesSpliterator(this, tripIds, tripOrder), false);
+    }
+
+    /** Build the stop spatial index from the stops table and store it in the database, replacing any existing one. */
+    private synchronized void storeStopSpatialIndex () {
+        StopSpatialIndex index = new StopSpatialIndex(stops.values());
+        if (db.exists(STOP_SPATIAL_INDEX)) db.delete(STOP_SPATIAL_INDEX);
+        // Use Java serialization, as for the patterns, because MapDB serialization is very slow with JTS objects.
+        db.createAtomicVar(STOP_SPATIAL_INDEX, index, Serializer.JAVA);
+        stopSpatialIndex = index;
+        spatialIndex = null;
+    }
+
+    /**
+     * @return the spatial index of the stops in this feed. It is built when the feed is loaded and read back from the
+     * database when the feed is reopened. Feeds stored before the index existed have it built on first use.
+     */
+    public synchronized StopSpatialIndex getStopSpatialIndex () {
+        if (stopSpatialIndex == null) {
+            if (db.exists(STOP_SPATIAL_INDEX)) {
+                stopSpatialIndex = db.<StopSpatialIndex>getAtomicVar(STOP_SPATIAL_INDEX).get();
+            } else {
+                storeStopSpatialIndex();
+            }
+        }
+        return stopSpatialIndex;
+    }
+
+    /** @return the stops within the given distance in meters of the given point, nearest first. */
+    public List<Stop> findStopsWithinMeters (double lat, double lon, double radiusMeters) {
+        return getStops(getStopSpatialIndex().findStopsWithinMeters(lat, lon, radiusMeters));
+    }
+
+    /** @return the k stops nearest to the given point by great-circle distance, nearest first. */
+    public List<Stop> nearestStops (double lat, double lon, int k) {
+        return getStops(getStopSpatialIndex().nearestStops(lat, lon, k));
+    }
+
+    private List<Stop> getStops (List<String> stopIds) {
+        return stopIds.stream().map(stops::get).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the days on which each service is active and the trips running on each date, built the first time this
+     * is called. It is rebuilt when calendars or trips are reloaded by updateFromFile, but not if services or trips are
+     * modified directly.
+     */
+    public synchronized ServiceCalendar getServiceCalendar () {
+        if (serviceCalendar == null) {
+            serviceCalendar = new ServiceCalendar(services.values(), trips.values());
+        }
+        return serviceCalendar;
+    }
+
+    /** @return the IDs of the trips running on the given date. */
+    public List<String> getTripsOnDate (LocalDate date) {
+        return getServiceCalendar().getTripsOnDate(date);
+    }
+
+    /**
+     * @return the departures from the given stop on the given service day, at or after fromSeconds and before
+     * toSeconds, in order of departure time. Times are in seconds after noon minus 12 hours on the service day, so
+     * departures after midnight of trips running on the previous day are found by querying that day past 24:00:00.
      */
+    public List<StopDepartureIndex.Departure> getDepartures (String stopId, LocalDate date, int fromSeconds,
+                                                             int toSeconds) {
+        return getStopDepartureIndex().getDepartures(stopId, date, fromSeconds, toSeconds, getServiceCalendar());
+    }
+
+    /**
+     * @return the departures from each stop of this feed. This is built by one scan of all the stop times the first
+     * time it is needed, with missing times interpolated, and stored in the database so that it survives reopening the
+     * feed. It is rebuilt when trips, stops, stop times or frequencies are reloaded by updateFromFile, but not if they
+     * are modified directly.
+     */
+    public synchronized StopDepartureIndex getStopDepartureIndex () {
+        if (stopDepartureIndex == null) {
+            if (db.exists(STOP_DEPARTURE_INDEX)) {
+                stopDepartureIndex = db.<StopDepartureIndex>getAtomicVar(STOP_DEPARTURE_INDEX).get();
+            } else {
+                stopDepartureIndex = buildStopDepartureIndex();
+                // Use Java serialization, as for the stop spatial index, as the index is a few large arrays.
+                db.createAtomicVar(STOP_DEPARTURE_INDEX, stopDepartureIndex, Serializer.JAVA);
+            }
+        }
+        return stopDepartureIndex;
+    }
+
+    private StopDepartureIndex buildStopDepartureIndex () {
+        StopDepartureIndex.Builder builder = new StopDepartureIndex.Builder();
+        Map<Tuple2<String, String>, Double> hopDistances = new HashMap<>();
+        tripsWithStopTimes().forEach(tripWithStopTimes -> {
+            Trip trip = tripWithStopTimes.a;
+            List<StopTime> stopTimes = tripWithStopTimes.b;
+            if (stopTimes.stream().anyMatch(st -> st.departure_time == Entity.INT_MISSING)) {
+                // Departures are only indexed at stops with times, so interpolate the others where possible.
+                try {
+                    stopTimes = getInterpolatedStopTimes(
+                            stopTimes.stream().map(StopTime::clone).collect(Collectors.toList()), hopDistances);
+                } catch (FirstAndLastStopsDoNotHaveTimes e) {
+                    // Keep the stop times as they are.
+                }
+            }
+            builder.addTrip(trip, stopTimes, getFrequencies(trip.trip_id));
+        });
+        StopDepartureIndex index = builder.build();
+        LOG.info("Indexed the departures from {} stops.", index.getStopCount());
+        return index;
+    }
+
+    /**
+     * An STRtree of the Stop objects in this feed, built the first time this is called, with longitude as x and
+     * latitude as y.
+     * @deprecated use getStopSpatialIndex(), findStopsWithinMeters or nearestStops, which do not rebuild the index
+     * each time the feed is opened and measure distances in meters.
+     */
+    @Deprecated
     public STRtree getSpatialIndex () {
         if (this.spatialIndex == null) {
             synchronized (this) {
@@ -317,7 +922,7 @@ public class GTFSFeed implements Cloneable, Closeable {
                             if (Double.isNaN(stop.stop_lat) || Double.isNaN(stop.stop_lon)) {
                                 continue;
                             }
-                            Coordinate stopCoord = new Coordinate(stop.stop_lat, stop.stop_lon);
+                            Coordinate stopCoord = new Coordinate(stop.stop_lon, stop.stop_lat);
                             stopIndex.insert(new Envelope(stopCoord), stop);
                         } catch (Exception e) {
                             e.printStackTrace();
@@ -336,10 +941,72 @@ public class GTFSFeed implements Cloneable, Closeable {
         return this.spatialIndex;
     }
 
-    /** Get the shape for the given shape ID */
+    /**
+     * Get the shape for the given shape ID, or null if there is no such shape. Shapes are cached, so the same Shape
+     * object may be returned to several callers and must not be modified.
+     */
     public Shape getShape (String shape_id) {
-        Shape shape = new Shape(this, shape_id);
-        return shape.shape_dist_traveled.length > 0 ? shape : null;
+        if (shape_id == null) return null;
+        return getShapeCache().getUnchecked(shape_id).orElse(null);
+    }
+
+    private synchronized LoadingCache<String, Optional<Shape>> getShapeCache () {
+        if (shapeCache == null) {
+            shapeCache = CacheBuilder.newBuilder()
+                    .maximumSize(shapeCacheSize)
+                    .build(new CacheLoader<String, Optional<Shape>>() {
+                        @Override
+                        public Optional<Shape> load (String shape_id) {
+                            Shape shape = new Shape(GTFSFeed.this, shape_id);
+                            return shape.shape_dist_traveled.length > 0 ? Optional.of(shape) : Optional.empty();
+                        }
+                    });
+        }
+        return shapeCache;
+    }
+
+    /**
+     * Get the geometry of the given shape simplified with the Douglas-Peucker algorithm, or null if there is no such
+     * shape. The tolerance is in degrees. Simplified geometries are cached, and stored in the database if the tolerance
+     * is one of the storedShapeTolerances, so each is only computed once.
+     */
+    public LineString getSimplifiedShapeGeometry (String shape_id, double tolerance) {
+        if (shape_id == null) return null;
+        return getSimplifiedShapeCache().getUnchecked(new Tuple2<>(shape_id, tolerance)).orElse(null);
+    }
+
+    private synchronized LoadingCache<Tuple2<String, Double>, Optional<LineString>> getSimplifiedShapeCache () {
+        if (simplifiedShapeCache == null) {
+            simplifiedShapeCache = CacheBuilder.newBuilder()
+                    .maximumSize(shapeCacheSize)
+                    .build(new CacheLoader<Tuple2<String, Double>, Optional<LineString>>() {
+                        @Override
+                        public Optional<LineString> load (Tuple2<String, Double> key) {
+                            return Optional.ofNullable(simplifyShape(key));
+                        }
+                    });
+        }
+        return simplifiedShapeCache;
+    }
+
+    private LineString simplifyShape (Tuple2<String, Double> key) {
+        boolean stored = Arrays.stream(storedShapeTolerances).anyMatch(tolerance -> tolerance == key.b);
+        if (stored) {
+            double[] packedCoordinates = simplifiedShapes.get(key);
+            if (packedCoordinates != null) return Shape.lineString(packedCoordinates);
+        }
+        Shape shape = getShape(key.a);
+        if (shape == null) return null;
+        LineString simplified = (LineString) DouglasPeuckerSimplifier.simplify(shape.geometry, key.b);
+        if (stored) simplifiedShapes.put(key, Shape.packCoordinates(simplified));
+        return simplified;
+    }
+
+    /** Forget all decoded and simplified shapes, because the shape points have changed. */
+    private void clearShapes () {
+        simplifiedShapes.clear();
+        if (shapeCache != null) shapeCache.invalidateAll();
+        if (simplifiedShapeCache != null) simplifiedShapeCache.invalidateAll();
     }
 
     /**
@@ -350,21 +1017,35 @@ public class GTFSFeed implements Cloneable, Closeable {
      * Patterns in the same way in both cases, during validation. This prevents us from iterating over every stopTime
      * twice, since we're already iterating over all of them in validation. However, in this case it might not be costly
      * to simply retrieve the stop times from the stop_times map.
+     *
+     * The trips are split into ranges that are processed on separate threads, each with its own PatternFinder, which
+     * are merged at the end. The patterns and the pattern of each trip (tripPatternMap) are stored in the database, so
+     * this does nothing if the patterns were already found, for example before the feed was closed and reopened. They
+     * are cleared when trips or stop times are reloaded by updateFromFile.
      */
     public void findPatterns () {
-        PatternFinder patternFinder = new PatternFinder();
-        // Iterate over trips and process each trip and its stop times.
-        for (Trip trip : this.trips.values()) {
-            Iterable<StopTime> orderedStopTimesForTrip = this.getOrderedStopTimesForTrip(trip.trip_id);
-            patternFinder.processTrip(trip, orderedStopTimesForTrip);
+        if (!patterns.isEmpty()) {
+            LOG.info("Patterns were already found for feed {}.", feedId);
+            return;
         }
+        PatternFinder patternFinder = tripsWithStopTimes()
+                .parallel()
+                .collect(PatternFinder::new,
+                        (finder, tripWithStopTimes) -> finder.processTrip(tripWithStopTimes.a, tripWithStopTimes.b),
+                        PatternFinder::merge);
         Map<TripPatternKey, Pattern> patternObjects = patternFinder.createPatternObjects(this.stops, null);
+        Map<String, String> patternForTrip = new HashMap<>();
+        for (Pattern pattern : patternObjects.values()) {
+            for (String tripId : pattern.associatedTrips) patternForTrip.put(tripId, pattern.pattern_id);
+        }
         this.patterns.putAll(patternObjects.values().stream()
                 .collect(Collectors.toMap(Pattern::getId, pattern -> pattern)));
+        this.tripPatternMap.putAll(patternForTrip);
     }
 
     /**
      * For the given trip ID, fetch all the stop times in order, and interpolate stop-to-stop travel times.
+     * If interpolateStopTimes() has been called, the interpolated times of the trip are looked up rather than computed.
      */
     public Iterable<StopTime> getInterpolatedStopTimesForTrip (String trip_id) throws FirstAndLastStopsDoNotHaveTimes {
         // clone stop times so as not to modify base GTFS structures
@@ -375,6 +1056,69 @@ public class GTFSFeed implements Cloneable, Closeable {
         // avoid having to make sure that the array has length below.
         if (stopTimes.length == 0) return Collections.emptyList();
 
+        return getInterpolatedStopTimes(Arrays.asList(stopTimes), null);
+    }
+
+    /**
+     * @param stopTimes copies of the stop times of a trip in order, which are modified in place.
+     * @param hopDistances the distances between pairs of stops already computed, or null to compute them all.
+     */
+    private List<StopTime> getInterpolatedStopTimes (List<StopTime> stopTimes,
+                                                     Map<Tuple2<String, String>, Double> hopDistances)
+            throws FirstAndLastStopsDoNotHaveTimes {
+        StopTime[] stopTimeArray = stopTimes.toArray(new StopTime[0]);
+        int[] times = interpolatedTimes.get(stopTimeArray[0].trip_id);
+        if (times != null && times.length == 2 * stopTimeArray.length) {
+            for (int i = 0; i < stopTimeArray.length; i++) {
+                stopTimeArray[i].arrival_time = times[i];
+                stopTimeArray[i].departure_time = times[stopTimeArray.length + i];
+            }
+        } else {
+            // Trips without missing times are not stored, but this is cheap for them as no distances are computed.
+            interpolateInPlace(stopTimeArray, hopDistances);
+        }
+        return Arrays.asList(stopTimeArray);
+    }
+
+    /**
+     * Interpolate the missing stop times of all trips in parallel, and store the interpolated arrival and departure
+     * times of each trip that had any, so that getInterpolatedStopTimesForTrip just looks them up. The distance
+     * between each pair of consecutive stops is only computed once, however many trips pass between them. The stored
+     * times are cleared when trips, stops or stop times are reloaded by updateFromFile, but not if stop_times is
+     * modified directly.
+     */
+    public void interpolateStopTimes () {
+        interpolatedTimes.clear();
+        Map<Tuple2<String, String>, Double> hopDistances = new ConcurrentHashMap<>();
+        AtomicInteger failedTrips = new AtomicInteger();
+        tripsWithStopTimes().parallel().forEach(tripWithStopTimes -> {
+            StopTime[] stopTimes = tripWithStopTimes.b.stream().map(StopTime::clone).toArray(StopTime[]::new);
+            if (stopTimes.length == 0) return;
+            try {
+                if (!interpolateInPlace(stopTimes, hopDistances)) return;
+            } catch (FirstAndLastStopsDoNotHaveTimes | RuntimeException e) {
+                // Such trips are not stored, so getInterpolatedStopTimesForTrip fails on them as it did before.
+                failedTrips.incrementAndGet();
+                return;
+            }
+            int[] times = new int[2 * stopTimes.length];
+            for (int i = 0; i < stopTimes.length; i++) {
+                times[i] = stopTimes[i].arrival_time;
+                times[stopTimes.length + i] = stopTimes[i].departure_time;
+            }
+            interpolatedTimes.put(stopTimes[0].trip_id, times);
+        });
+        LOG.info("Interpolated stop times for {} trips using {} distinct hops, {} trips could not be interpolated.",
+                interpolatedTimes.size(), hopDistances.size(), failedTrips.get());
+    }
+
+    /**
+     * Fill in the missing times of the given stop times, which must be a copy of the stop times of a trip in order.
+     * @param hopDistances the distances between pairs of stops already computed, or null to compute them all.
+     * @return true if any times were interpolated between stops.
+     */
+    private boolean interpolateInPlace (StopTime[] stopTimes, Map<Tuple2<String, String>, Double> hopDistances)
+            throws FirstAndLastStopsDoNotHaveTimes {
         // first pass: set all partially filled stop times
         for (StopTime st : stopTimes) {
             if (st.arrival_time != Entity.INT_MISSING && st.departure_time == Entity.INT_MISSING) {
@@ -399,6 +1143,7 @@ public class GTFSFeed implements Cloneable, Closeable {
         }
 
         // second pass: fill complete stop times
+        boolean interpolated = false;
         int startOfInterpolatedBlock = -1;
         for (int stopTime = 0; stopTime < stopTimes.length; stopTime++) {
 
@@ -412,17 +1157,15 @@ public class GTFSFeed implements Cloneable, Closeable {
                 double[] lengthOfInterpolatedSections = new double[nInterpolatedStops];
 
                 for (int stopTimeToInterpolate = startOfInterpolatedBlock, i = 0; stopTimeToInterpolate < stopTime; stopTimeToInterpolate++, i++) {
-                    Stop start = stops.get(stopTimes[stopTimeToInterpolate - 1].stop_id);
-                    Stop end = stops.get(stopTimes[stopTimeToInterpolate].stop_id);
-                    double segLen = Util.fastDistance(start.stop_lat, start.stop_lon, end.stop_lat, end.stop_lon);
+                    double segLen = getHopDistance(stopTimes[stopTimeToInterpolate - 1].stop_id,
+                            stopTimes[stopTimeToInterpolate].stop_id, hopDistances);
                     totalLengthOfInterpolatedSection += segLen;
                     lengthOfInterpolatedSections[i] = segLen;
                 }
 
                 // add the segment post-last-interpolated-stop
-                Stop start = stops.get(stopTimes[stopTime - 1].stop_id);
-                Stop end = stops.get(stopTimes[stopTime].stop_id);
-                totalLengthOfInterpolatedSection += Util.fastDistance(start.stop_lat, start.stop_lon, end.stop_lat, end.stop_lon);
+                totalLengthOfInterpolatedSection += getHopDistance(stopTimes[stopTime - 1].stop_id,
+                        stopTimes[stopTime].stop_id, hopDistances);
 
                 int departureBeforeInterpolation = stopTimes[startOfInterpolatedBlock - 1].departure_time;
                 int arrivalAfterInterpolation = stopTimes[stopTime].arrival_time;
@@ -438,18 +1181,55 @@ public class GTFSFeed implements Cloneable, Closeable {
 
                 // we're done with this block
                 startOfInterpolatedBlock = -1;
+                interpolated = true;
             }
         }
+        return interpolated;
+    }
+
+    private double getHopDistance (String fromStopId, String toStopId,
+                                   Map<Tuple2<String, String>, Double> hopDistances) {
+        if (hopDistances == null) return computeHopDistance(fromStopId, toStopId);
+        return hopDistances.computeIfAbsent(new Tuple2<>(fromStopId, toStopId),
+                hop -> computeHopDistance(hop.a, hop.b));
+    }
+
+    private double computeHopDistance (String fromStopId, String toStopId) {
+        Stop start = stops.get(fromStopId);
+        Stop end = stops.get(toStopId);
+        return Util.fastDistance(start.stop_lat, start.stop_lon, end.stop_lat, end.stop_lon);
+    }
+
+    /** @return the frequency entries of the given trip in order of start time, or an empty list for scheduled trips. */
+    public List<Frequency> getFrequencies (String trip_id) {
+        // The raw tuples are needed for the null and HI bounds.
+        Set<Tuple2<String, Frequency>> tripFrequencies =
+                frequencies.subSet(new Fun.Tuple2(trip_id, null), new Fun.Tuple2(trip_id, Fun.HI));
+        if (tripFrequencies.isEmpty()) return Collections.emptyList();
+        List<Frequency> result = new ArrayList<>(tripFrequencies.size());
+        for (Tuple2<String, Frequency> tripFrequency : tripFrequencies) result.add(tripFrequency.b);
+        return result;
+    }
 
-        return Arrays.asList(stopTimes);
+    /**
+     * @return the instances of the given trip: one for a scheduled trip, or one for every headway in each frequency
+     * entry of a trip defined by frequencies. The instances are generated lazily from a shared time profile.
+     */
+    public TripInstanceIterator getTripInstances (String trip_id) {
+        return new TripInstanceIterator(trip_id, Lists.newArrayList(getOrderedStopTimesForTrip(trip_id)),
+                getFrequencies(trip_id));
     }
 
-    public Collection<Frequency> getFrequencies (String trip_id) {
-        // IntelliJ tells me all these casts are unnecessary, and that's also my feeling, but the code won't compile
-        // without them
-        return (List<Frequency>) frequencies.subSet(new Fun.Tuple2(trip_id, null), new Fun.Tuple2(trip_id, Fun.HI)).stream()
-                .map(t2 -> ((Tuple2<String, Frequency>) t2).b)
-                .collect(Collectors.toList());
+    /**
+     * @return an iterator over the instances of each trip in this feed, scheduled or defined by frequencies, read with
+     * tripsWithStopTimes() and so also parallelizable. Each iterator expands its frequency entries lazily.
+     */
+    public Stream<TripInstanceIterator> tripInstances () {
+        // Most feeds have no frequencies, in which case there is no need to look them up for each trip.
+        boolean hasFrequencies = !frequencies.isEmpty();
+        return tripsWithStopTimes().map(tripWithStopTimes -> new TripInstanceIterator(tripWithStopTimes.a.trip_id,
+                tripWithStopTimes.b,
+                hasFrequencies ? getFrequencies(tripWithStopTimes.a.trip_id) : Collections.emptyList()));
     }
 
     public List<String> getOrderedStopListForTrip (String trip_id) {
@@ -529,10 +1309,14 @@ public class GTFSFeed implements Cloneable, Closeable {
     /** Get trip speed in meters per second. */
     public double getTripSpeed (String trip_id, boolean straightLine) {
 
-        StopTime firstStopTime = this.stop_times.ceilingEntry(Fun.t2(trip_id, null)).getValue();
-        StopTime lastStopTime = this.stop_times.floorEntry(Fun.t2(trip_id, Fun.HI)).getValue();
+        Map.Entry<Tuple2, StopTime> firstEntry = this.stop_times.ceilingEntry(Fun.t2(trip_id, null));
+        Map.Entry<Tuple2, StopTime> lastEntry = this.stop_times.floorEntry(Fun.t2(trip_id, Fun.HI));
 
-        // ensure that stopTime returned matches trip id (i.e., that the trip has stoptimes)
+        // ensure that stopTime returned matches trip id (i.e., that the trip has stoptimes). With integer keys there
+        // are no entries at all for a trip_id that is not in the dictionary.
+        if (firstEntry == null || lastEntry == null) return Double.NaN;
+        StopTime firstStopTime = firstEntry.getValue();
+        StopTime lastStopTime = lastEntry.getValue();
         if (!firstStopTime.trip_id.equals(trip_id) || !lastStopTime.trip_id.equals(trip_id)) {
             return Double.NaN;
         }
@@ -573,11 +1357,33 @@ public class GTFSFeed implements Cloneable, Closeable {
         }
     }
 
+    /**
+     * Create a copy-on-write overlay of this feed, for transformations that should not modify it and that would be
+     * too costly to apply to a full copy. Every table of the overlay is an OverlayMap reading through to the table of
+     * this feed, which is never modified: inserts, updates and removals are recorded in memory in the overlay. The
+     * overlay can be modified, queried and written out with toFile like any other feed, and many overlays can share
+     * one base feed.
+     *
+     * Patterns, errors and the other data derived from the tables are not shared, and are recomputed in the overlay's
+     * own temporary database when needed. This feed must not be modified or closed while its overlays are in use.
+     */
+    public GTFSFeed overlay () {
+        return new GTFSFeed(tempFileDB(), integerKeys, this);
+    }
+
     protected void finalize() throws IOException {
         close();
     }
 
     public void close () {
+        if (db.isClosed()) return;
+        // Write any records the async writer still holds first, as serializing them may add strings to the dictionary.
+        db.commit();
+        // An overlay shares the dictionary of its base feed, which stays open.
+        if (base == null) {
+            dictionary.persist();
+            dictionary.close();
+        }
         db.close();
     }
 
@@ -588,20 +1394,49 @@ public class GTFSFeed implements Cloneable, Closeable {
 
     /** Create a GTFS feed in a temp file */
     public GTFSFeed () {
+        this(false);
+    }
+
+    /**
+     * Create a GTFS feed in a temp file.
+     * @param integerKeys whether to store stop_times and shape_points with integer keys, see GTFSFeed.integerKeys.
+     */
+    public GTFSFeed (boolean integerKeys) {
         // calls to this must be first operation in constructor - why, Java?
-        this(DBMaker.newTempFileDB()
+        this(tempFileDB(), integerKeys); // TODO db.close();
+    }
+
+    private static DB tempFileDB () {
+        return DBMaker.newTempFileDB()
                 .transactionDisable()
                 .mmapFileEnable()
                 .asyncWriteEnable()
                 .deleteFilesAfterClose()
                 .compressionEnable()
                 // .cacheSize(1024 * 1024) this bloats memory consumption
-                .make()); // TODO db.close();
+                .make();
     }
 
     /** Create a GTFS feed connected to a particular DB, which will be created if it does not exist. */
     public GTFSFeed (String dbFile) throws IOException, ExecutionException {
-        this(constructDB(dbFile)); // TODO db.close();
+        this(dbFile, false);
+    }
+
+    /**
+     * Create a GTFS feed connected to a particular DB, which will be created if it does not exist.
+     * @param integerKeys whether to store stop_times and shape_points with integer keys, see GTFSFeed.integerKeys.
+     *                    This is ignored if the DB already exists, in which case its existing layout is used.
+     */
+    public GTFSFeed (String dbFile, boolean integerKeys) throws IOException, ExecutionException {
+        this(constructDB(dbFile), integerKeys); // TODO db.close();
+    }
+
+    /**
+     * Create a GTFS feed held in memory. This is only suitable for feeds whose large tables are not stored, see
+     * GTFSStreamReader.
+     */
+    static GTFSFeed inMemory () {
+        return new GTFSFeed(DBMaker.newMemoryDB().transactionDisable().make(), false);
     }
 
     private static DB constructDB(String dbFile) {
@@ -622,23 +1457,59 @@ public class GTFSFeed implements Cloneable, Closeable {
         }
     }
 
-    private GTFSFeed (DB db) {
-        this.db = db;
+    private GTFSFeed (DB db, boolean integerKeys) {
+        this(db, integerKeys, null);
+    }
 
-        agency = db.getTreeMap("agency");
-        feedInfo = db.getTreeMap("feed_info");
-        routes = db.getTreeMap("routes");
-        trips = db.getTreeMap("trips");
-        stop_times = db.getTreeMap("stop_times");
-        frequencies = db.getTreeSet("frequencies");
-        transfers = db.getTreeMap("transfers");
-        stops = db.getTreeMap("stops");
-        fares = db.getTreeMap("fares");
-        services = db.getTreeMap("services");
-        shape_points = db.getTreeMap("shape_points");
-
-        feedId = db.getAtomicString("feed_id").get();
-        checksum = db.getAtomicLong("checksum").get();
+    /** @param base the feed to overlay, or null to read and write the tables in the given database. */
+    private GTFSFeed (DB db, boolean integerKeys, GTFSFeed base) {
+        this.db = db;
+        this.base = base;
+        // An overlay reads the tables of its base feed, whose keys and values are encoded with the base dictionary.
+        try {
+            dictionary = base != null ? base.dictionary : StringDictionary.open(db);
+        } catch (StringDictionary.AlreadyOpenException e) {
+            db.close();
+            throw e;
+        }
+        checkedReferences = new CheckedReferences();
+
+        // The key layout of an existing database cannot be changed.
+        if (!db.exists("stop_times")) db.getAtomicBoolean("integer_keys").set(integerKeys);
+        this.integerKeys = db.getAtomicBoolean("integer_keys").get();
+
+        if (base == null) {
+            agency = db.getTreeMap("agency");
+            feedInfo = db.getTreeMap("feed_info");
+            routes = db.getTreeMap("routes");
+            trips = getTreeMap("trips", new TripSerializer(dictionary.dictionaryId));
+            stop_times = getTupleKeyedMap("stop_times", new StopTimeSerializer(dictionary.dictionaryId));
+            frequencies = db.getTreeSet("frequencies");
+            transfers = db.getTreeMap("transfers");
+            stops = getTreeMap("stops", new StopSerializer(dictionary.dictionaryId));
+            fares = db.getTreeMap("fares");
+            services = db.getTreeMap("services");
+            shape_points = getTupleKeyedMap("shape_points", new ShapePointSerializer(dictionary.dictionaryId));
+
+            feedId = db.getAtomicString("feed_id").get();
+            checksum = db.getAtomicLong("checksum").get();
+        } else {
+            // Every table is a sorted map (or set) in a MapDB BTree or in an overlay of one.
+            agency = new OverlayMap<>((NavigableMap<String, Agency>) base.agency);
+            feedInfo = new OverlayMap<>((NavigableMap<String, FeedInfo>) base.feedInfo);
+            routes = new OverlayMap<>((NavigableMap<String, Route>) base.routes);
+            trips = new OverlayMap<>(base.trips);
+            stop_times = new OverlayMap<>(base.stop_times);
+            frequencies = OverlayMap.overlaySet(base.frequencies);
+            transfers = new OverlayMap<>((NavigableMap<String, Transfer>) base.transfers);
+            stops = new OverlayMap<>((NavigableMap<String, Stop>) base.stops);
+            fares = new OverlayMap<>((NavigableMap<String, Fare>) base.fares);
+            services = new OverlayMap<>(base.services);
+            shape_points = new OverlayMap<>(base.shape_points);
+
+            feedId = base.feedId;
+            checksum = base.checksum;
+        }
 
         // use Java serialization because MapDB serialization is very slow with JTS as they have a lot of references.
         // nothing else contains JTS objects
@@ -647,7 +1518,32 @@ public class GTFSFeed implements Cloneable, Closeable {
                 .makeOrGet();
 
         tripPatternMap = db.getTreeMap("patternForTrip");
+        simplifiedShapes = db.getTreeMap("simplified_shapes");
+        interpolatedTimes = db.getTreeMap("interpolated_times");
 
+        tableCrcs = db.getTreeMap("table_crcs");
         errors = db.getTreeSet("errors");
+        errorSink = new MapDBErrorSink(errors, db.getTreeMap("error_counts"));
+    }
+
+    /**
+     * Get or create a tree map whose values are stored with the given serializer. If the map already exists, MapDB
+     * keeps using the serializer recorded in its catalog, so databases written by earlier versions can still be read.
+     */
+    private <K, V> BTreeMap<K, V> getTreeMap (String name, Serializer<V> valueSerializer) {
+        return db.createTreeMap(name).valueSerializer(valueSerializer).makeOrGet();
+    }
+
+    /** Get or create a tree map keyed on Tuple2s of a String and an Integer, in the layout given by integerKeys. */
+    private <K extends Tuple2, V> ConcurrentNavigableMap<K, V> getTupleKeyedMap (String name,
+                                                                             Serializer<V> valueSerializer) {
+        if (integerKeys) {
+            BTreeMap<Long, V> map = db.createTreeMap(name)
+                    .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                    .valueSerializer(valueSerializer)
+                    .makeOrGet();
+            return new DictionaryKeyedMap<>(map, dictionary);
+        }
+        return getTreeMap(name, valueSerializer);
     }
 }
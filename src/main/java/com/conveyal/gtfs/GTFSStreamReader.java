@@ -0,0 +1,174 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.error.GTFSErrorSink;
+import com.conveyal.gtfs.model.Agency;
+import com.conveyal.gtfs.model.Calendar;
+import com.conveyal.gtfs.model.CalendarDate;
+import com.conveyal.gtfs.model.Entity;
+import com.conveyal.gtfs.model.FeedInfo;
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.Route;
+import com.conveyal.gtfs.model.ShapePoint;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Transfer;
+import com.conveyal.gtfs.model.Trip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the tables of a GTFS zip file one at a time, passing each entity to a consumer as soon as it is parsed rather
+ * than storing it. This is for jobs that only need a single pass over a few tables, which would otherwise have to
+ * write the whole feed to a MapDB file and read it back.
+ *
+ * Entities are parsed by the same Entity.Loaders as GTFSFeed.loadFromFile, and the same errors are recorded for each
+ * row, except that references to other tables are not checked since those tables are not retained. Only feed_info
+ * and agency, which are tiny, are held (in memory) so that entities get their feed ID and routes their agency ID.
+ *
+ * Not threadsafe.
+ */
+public class GTFSStreamReader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GTFSStreamReader.class);
+
+    /** Create a loader for each kind of entity that can be streamed, given the feed holding feed_info and agency. */
+    private static final Map<Class<? extends Entity>, Function<GTFSFeed, Entity.Loader<?>>> LOADERS = new HashMap<>();
+    static {
+        LOADERS.put(Agency.class, Agency.Loader::new);
+        LOADERS.put(Calendar.class, feed -> new Calendar.Loader(feed, new HashMap<>()));
+        LOADERS.put(CalendarDate.class, feed -> new CalendarDate.Loader(feed, new HashMap<>()));
+        LOADERS.put(Frequency.class, Frequency.Loader::new);
+        LOADERS.put(Route.class, Route.Loader::new);
+        LOADERS.put(ShapePoint.class, ShapePoint.Loader::new);
+        LOADERS.put(Stop.class, Stop.Loader::new);
+        LOADERS.put(StopTime.class, StopTime.Loader::new);
+        LOADERS.put(Transfer.class, Transfer.Loader::new);
+        LOADERS.put(Trip.class, Trip.Loader::new);
+    }
+
+    private final ZipFile zip;
+
+    /** Holds feed_info, agency and the errors. None of the streamed entities are stored. */
+    private final GTFSFeed feed;
+
+    private boolean agenciesLoaded = false;
+
+    public GTFSStreamReader (ZipFile zip) throws IOException {
+        this.zip = zip;
+        feed = GTFSFeed.inMemory();
+        new FeedInfo.Loader(feed).loadTable(zip);
+        if (feed.feedId == null || feed.feedId.isEmpty()) {
+            feed.feedId = new File(zip.getName()).getName().replaceAll("\\.zip$", "");
+        }
+    }
+
+    /**
+     * Pass every entity of the given type in the feed to the given consumer, in the order of the rows of its table.
+     * @throws IllegalArgumentException if entities of the given type cannot be streamed. Fares are joined from two
+     *                                  tables as they are loaded and must be loaded into a GTFSFeed.
+     */
+    public <E extends Entity> void forEach (Class<E> type, Consumer<? super E> consumer) throws IOException {
+        Function<GTFSFeed, Entity.Loader<?>> createLoader = LOADERS.get(type);
+        if (createLoader == null) {
+            throw new IllegalArgumentException("Entities of type " + type.getSimpleName() + " cannot be streamed.");
+        }
+        // Routes without an agency_id take that of the only agency.
+        if (type != Agency.class && !agenciesLoaded) {
+            new Agency.Loader(feed).loadTable(zip);
+            agenciesLoaded = true;
+        }
+        @SuppressWarnings("unchecked")
+        Entity.Loader<E> loader = (Entity.Loader<E>) createLoader.apply(feed);
+        loader.streamTo(consumer);
+        loader.loadTable(zip);
+        feed.errorSink.flush();
+    }
+
+    /**
+     * Pass the stop times of each trip to the given consumer, ordered by stop_sequence. This requires the rows of
+     * stop_times.txt to be grouped by trip_id, as they are in most feeds, and holds only one trip in memory at once.
+     * @throws IllegalStateException if the stop times of a trip are not all on consecutive rows.
+     */
+    public void forEachTrip (Consumer<? super List<StopTime>> consumer) throws IOException {
+        TripGrouper grouper = new TripGrouper(consumer);
+        forEach(StopTime.class, grouper);
+        grouper.finish();
+    }
+
+    /** The errors recorded while reading. */
+    public GTFSErrorSink getErrorSink () {
+        return feed.errorSink;
+    }
+
+    public String getFeedId () {
+        return feed.feedId;
+    }
+
+    /**
+     * Pass every entity of the given type in the given zip file to the given consumer.
+     * @return the errors recorded while reading.
+     */
+    public static <E extends Entity> GTFSErrorSink forEach (ZipFile zip, Class<E> type, Consumer<? super E> consumer)
+            throws IOException {
+        try (GTFSStreamReader reader = new GTFSStreamReader(zip)) {
+            reader.forEach(type, consumer);
+            LOG.info("{} errors while reading {} from {}", reader.getErrorSink().getErrorCount(),
+                    type.getSimpleName(), zip.getName());
+            return reader.getErrorSink();
+        }
+    }
+
+    /** Closes the in-memory storage used while reading, but not the zip file. */
+    @Override
+    public void close () {
+        feed.close();
+    }
+
+    /** Accumulates consecutive stop times with the same trip_id, and passes each group on when the trip changes. */
+    private static class TripGrouper implements Consumer<StopTime> {
+
+        private final Consumer<? super List<StopTime>> consumer;
+
+        private List<StopTime> stopTimes = new ArrayList<>();
+
+        /** The IDs of the trips that have already been passed on, to detect stop times that are not grouped. */
+        private final Set<String> finishedTrips = new HashSet<>();
+
+        TripGrouper (Consumer<? super List<StopTime>> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept (StopTime stopTime) {
+            if (!stopTimes.isEmpty() && !Objects.equals(stopTimes.get(0).trip_id, stopTime.trip_id)) finish();
+            stopTimes.add(stopTime);
+        }
+
+        void finish () {
+            if (stopTimes.isEmpty()) return;
+            String tripId = stopTimes.get(0).trip_id;
+            if (!finishedTrips.add(tripId)) {
+                throw new IllegalStateException("stop_times.txt is not grouped by trip, trip " + tripId +
+                        " appears on non-consecutive rows.");
+            }
+            stopTimes.sort(Comparator.comparingInt(st -> st.stop_sequence));
+            consumer.accept(stopTimes);
+            stopTimes = new ArrayList<>();
+        }
+    }
+}
@@ -43,8 +43,9 @@ public class PatternFinder {
 
     private static final Logger LOG = LoggerFactory.getLogger(PatternFinder.class);
 
-    // A multi-map that groups trips together by their sequence of stops
-    private Multimap<TripPatternKey, Trip> tripsForPattern = HashMultimap.create();
+    // Groups trips together by their sequence of stops. Only the IDs of the trips are retained, except for one
+    // exemplar trip per pattern, so that memory use grows with the number of patterns rather than of trips.
+    private Map<TripPatternKey, TripsOnPattern> tripsForPattern = new HashMap<>();
 
     private int nTripsProcessed = 0;
 
@@ -74,7 +75,22 @@ public class PatternFinder {
             key.addStopTime(st);
         }
         // Add the current trip to the map, possibly extending an existing list of trips on this pattern.
-        tripsForPattern.put(key, trip);
+        tripsForPattern.computeIfAbsent(key, k -> new TripsOnPattern(trip)).add(trip);
+    }
+
+    /**
+     * Add all the trips processed by another PatternFinder to this one, so that trips can be processed by a separate
+     * PatternFinder on each thread. The trips of the other PatternFinder are placed after the trips of this one.
+     * @return this PatternFinder.
+     */
+    public PatternFinder merge (PatternFinder other) {
+        for (Map.Entry<TripPatternKey, TripsOnPattern> entry : other.tripsForPattern.entrySet()) {
+            TripsOnPattern tripsOnPattern = tripsForPattern.get(entry.getKey());
+            if (tripsOnPattern == null) tripsForPattern.put(entry.getKey(), entry.getValue());
+            else tripsOnPattern.addAll(entry.getValue());
+        }
+        nTripsProcessed += other.nTripsProcessed;
+        return this;
     }
 
     /**
@@ -88,14 +104,14 @@ public class PatternFinder {
         // Create an in-memory list of Patterns because we will later rename them before inserting them into storage.
         Map<TripPatternKey, Pattern> patterns = new HashMap<>();
         // TODO assign patterns sequential small integer IDs (may include route)
-        for (TripPatternKey key : tripsForPattern.keySet()) {
-            Collection<Trip> trips = tripsForPattern.get(key);
-            Pattern pattern = new Pattern(key.stops, trips, null);
+        for (Map.Entry<TripPatternKey, TripsOnPattern> entry : tripsForPattern.entrySet()) {
+            TripPatternKey key = entry.getKey();
+            TripsOnPattern trips = entry.getValue();
+            Pattern pattern = new Pattern(key.stops, trips.exemplarTrip, trips.tripIds, null);
             // Overwrite long UUID with sequential integer pattern ID
             pattern.pattern_id = Integer.toString(nextPatternId++);
             // FIXME: Should associated shapes be a single entry?
-            pattern.associatedShapes = new HashSet<>();
-            trips.stream().forEach(trip -> pattern.associatedShapes.add(trip.shape_id));
+            pattern.associatedShapes = trips.shapeIds;
             if (pattern.associatedShapes.size() > 1 && errorStorage != null) {
                 // Store an error if there is more than one shape per pattern. Note: error storage is null if called via
                 // MapDB implementation.
@@ -208,6 +224,27 @@ public class PatternFinder {
         }
     }
 
+    /** The trips found on one pattern, all of which share the route of the exemplar trip. */
+    private static class TripsOnPattern {
+        final Trip exemplarTrip;
+        final List<String> tripIds = new ArrayList<>();
+        final Set<String> shapeIds = new HashSet<>();
+
+        TripsOnPattern (Trip exemplarTrip) {
+            this.exemplarTrip = exemplarTrip;
+        }
+
+        void add (Trip trip) {
+            tripIds.add(trip.trip_id);
+            shapeIds.add(trip.shape_id);
+        }
+
+        void addAll (TripsOnPattern other) {
+            tripIds.addAll(other.tripIds);
+            shapeIds.addAll(other.shapeIds);
+        }
+    }
+
     /**
      * Holds information about all pattern names on a particular route,
      * modeled on https://github.com/opentripplanner/OpenTripPlanner/blob/master/src/main/java/org/opentripplanner/routing/edgetype/TripPattern.java#L379
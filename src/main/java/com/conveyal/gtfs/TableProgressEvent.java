@@ -0,0 +1,67 @@
+package com.conveyal.gtfs;
+
+/**
+ * Posted to the eventBus of a GTFSFeed, if it has one, while a table is loaded by loadFromFile or written by toFile:
+ * once when the table is started, every 500,000 rows, and once when it is finished. Services loading large feeds can
+ * subscribe to these to show progress and to see which tables take the most time.
+ *
+ * When tables are loaded or written on several threads, the events of different tables are posted concurrently from
+ * those threads.
+ */
+public class TableProgressEvent {
+
+    public enum Operation { LOAD, WRITE }
+
+    public enum Stage { STARTED, PROGRESS, FINISHED }
+
+    public final Operation operation;
+    public final Stage stage;
+
+    /** The ID of the feed, which may not be known until feed_info has been loaded. */
+    public final String feedId;
+
+    /** The name of the table without .txt, e.g. stop_times. */
+    public final String tableName;
+
+    /** The number of rows read or written so far. */
+    public final long rows;
+
+    /** The number of uncompressed bytes read from the zip file or written to it so far. */
+    public final long bytes;
+
+    /** The time since the table was started. */
+    public final long elapsedMillis;
+
+    /** The number of errors recorded for the whole feed so far. Always zero when writing. */
+    public final long errorCount;
+
+    /**
+     * The time spent storing the table after its last row was read, which is where the MapDB BTrees of bulk-loaded
+     * tables are built. Only set on the FINISHED event of a load.
+     */
+    public final long storeMillis;
+
+    public TableProgressEvent (Operation operation, Stage stage, String feedId, String tableName, long rows,
+                               long bytes, long elapsedMillis, long errorCount, long storeMillis) {
+        this.operation = operation;
+        this.stage = stage;
+        this.feedId = feedId;
+        this.tableName = tableName;
+        this.rows = rows;
+        this.bytes = bytes;
+        this.elapsedMillis = elapsedMillis;
+        this.errorCount = errorCount;
+        this.storeMillis = storeMillis;
+    }
+
+    /** @return the average number of rows read or written per second since the table was started. */
+    public double getRowsPerSecond () {
+        return elapsedMillis == 0 ? 0 : rows * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("%s %s %s: %d rows, %d bytes in %d ms (%.0f rows/s), %d errors", operation, tableName,
+                stage, rows, bytes, elapsedMillis, getRowsPerSecond(), errorCount);
+    }
+}
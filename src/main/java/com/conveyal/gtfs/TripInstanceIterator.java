@@ -0,0 +1,185 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.StopTime;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import static com.conveyal.gtfs.model.Entity.INT_MISSING;
+
+/**
+ * Iterates over the instances of a trip, yielding the start time of each. A trip starts at its first departure time,
+ * see getTripStart. A scheduled trip has one instance, and a trip defined by frequencies has one instance for every
+ * headway in each of its frequency entries: a vehicle leaves the first stop at start_time plus every multiple of
+ * headway_secs before end_time.
+ *
+ * The instances are generated lazily and nothing is allocated per instance. All instances share one time profile: the
+ * arrival and departure times of the stops relative to the start of the trip. After each call to nextInt, the times of
+ * the current instance are available from getArrivalTime and getDepartureTime, so a high-frequency trip expanding to
+ * thousands of vehicles never materializes their StopTimes.
+ *
+ * Not threadsafe, like any iterator.
+ */
+public class TripInstanceIterator implements PrimitiveIterator.OfInt {
+
+    private final String tripId;
+
+    /** The number of stop times of the trip. */
+    private final int nStops;
+
+    /** n arrival times then n departure times relative to the start of the trip, INT_MISSING where missing. */
+    private final int[] profile;
+
+    /** The start, end and headway of each frequency window. A scheduled trip has a single window of one instance. */
+    private final int[] windows;
+
+    private final boolean frequencyBased;
+
+    /** The index in windows of the current window. */
+    private int window = 0;
+
+    /** The start time of the next instance. */
+    private long next;
+
+    private int startTime = INT_MISSING;
+
+    /**
+     * @param stopTimes the stop times of the trip, in order of stop_sequence.
+     * @param frequencies the frequency entries of the trip, empty if it is a scheduled trip.
+     */
+    public TripInstanceIterator (String tripId, List<StopTime> stopTimes, Collection<Frequency> frequencies) {
+        this.tripId = tripId;
+        this.nStops = stopTimes.size();
+        this.profile = new int[2 * nStops];
+        int tripStart = getTripStart(stopTimes);
+        for (int i = 0; i < nStops; i++) {
+            StopTime st = stopTimes.get(i);
+            profile[i] = relativeTime(st.arrival_time, tripStart);
+            profile[nStops + i] = relativeTime(st.departure_time, tripStart);
+        }
+        this.frequencyBased = !frequencies.isEmpty();
+        if (frequencyBased) {
+            this.windows = getFrequencyWindows(frequencies);
+        } else if (tripStart != INT_MISSING) {
+            this.windows = new int[] {tripStart, tripStart + 1, 1};
+        } else {
+            // A trip without any times has no instances.
+            this.windows = new int[0];
+        }
+        if (windows.length > 0) next = windows[0];
+    }
+
+    /**
+     * @return the start time of a trip: the departure time of its first stop with any time, or the arrival time if that
+     * stop has no departure time, or INT_MISSING if the trip has no times. The start_time of a frequency entry is the
+     * time of this first departure. The times of all instances of a trip are relative to this.
+     */
+    public static int getTripStart (List<StopTime> stopTimes) {
+        for (StopTime st : stopTimes) {
+            int time = st.departure_time != INT_MISSING ? st.departure_time : st.arrival_time;
+            if (time != INT_MISSING) return time;
+        }
+        return INT_MISSING;
+    }
+
+    /**
+     * @return the start, end and headway of each of the given frequency entries in one array. Entries without a
+     * positive headway are left out, as they would never end.
+     */
+    public static int[] getFrequencyWindows (Collection<Frequency> frequencies) {
+        int[] windows = new int[3 * frequencies.size()];
+        int w = 0;
+        for (Frequency frequency : frequencies) {
+            if (frequency.headway_secs <= 0) continue;
+            windows[w++] = frequency.start_time;
+            windows[w++] = frequency.end_time;
+            windows[w++] = frequency.headway_secs;
+        }
+        return Arrays.copyOf(windows, w);
+    }
+
+    private static int relativeTime (int time, int tripStart) {
+        return time == INT_MISSING ? INT_MISSING : time - tripStart;
+    }
+
+    /**
+     * @return the start time of the first vehicle leaving at or after the given time, in a frequency window starting at
+     * startTime with the given headway. This may be at or after the end of the window.
+     */
+    public static long firstStartAtOrAfter (int startTime, int headway, long time) {
+        if (time <= startTime) return startTime;
+        return startTime + (time - startTime + headway - 1) / headway * headway;
+    }
+
+    @Override
+    public boolean hasNext () {
+        while (window < windows.length) {
+            if (next < windows[window + 1]) return true;
+            window += 3;
+            if (window < windows.length) next = windows[window];
+        }
+        return false;
+    }
+
+    /** @return the start time of the next instance, which becomes the current instance. */
+    @Override
+    public int nextInt () {
+        if (!hasNext()) throw new NoSuchElementException();
+        startTime = (int) next;
+        next += windows[window + 2];
+        return startTime;
+    }
+
+    /** Skip the instances starting before the given time. */
+    public void skipTo (int time) {
+        while (hasNext()) {
+            if (next >= time) return;
+            long start = firstStartAtOrAfter(windows[window], windows[window + 2], time);
+            // Move on to the next window if this one ends before the given time.
+            next = start < windows[window + 1] ? start : windows[window + 1];
+        }
+    }
+
+    public String getTripId () {
+        return tripId;
+    }
+
+    public boolean isFrequencyBased () {
+        return frequencyBased;
+    }
+
+    public int getStopCount () {
+        return nStops;
+    }
+
+    /** @return the start time of the current instance, the value last returned by nextInt. */
+    public int getStartTime () {
+        return startTime;
+    }
+
+    /** @return the arrival time of the current instance at the stop with the given index, or INT_MISSING. */
+    public int getArrivalTime (int stop) {
+        return absoluteTime(profile[stop]);
+    }
+
+    /** @return the departure time of the current instance at the stop with the given index, or INT_MISSING. */
+    public int getDepartureTime (int stop) {
+        return absoluteTime(profile[nStops + stop]);
+    }
+
+    private int absoluteTime (int relativeTime) {
+        return relativeTime == INT_MISSING ? INT_MISSING : startTime + relativeTime;
+    }
+
+    /**
+     * @return the time profile shared by all instances: the arrival times then the departure times of the stops
+     * relative to the start of the trip, with INT_MISSING for missing times. Must not be modified.
+     */
+    public int[] getProfile () {
+        return profile;
+    }
+}
@@ -0,0 +1,103 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits the trips of a GTFSFeed into ranges and yields each trip with its stop times, read in a single sequential scan
+ * of the stop_times BTree for each range rather than with one subMap lookup per trip. The trip IDs are held in an
+ * array sorted in the same order as the stop_times keys, so a range of trips is a range of stop_times keys and can be
+ * split in half without touching the BTree. See GTFSFeed.tripsWithStopTimes().
+ *
+ * Every trip in the trips table is yielded, with an empty list if it has no stop times. Stop times of trips that are
+ * not in the trips table are skipped.
+ */
+class TripStopTimesSpliterator implements Spliterator<Tuple2<Trip, List<StopTime>>> {
+
+    /** Ranges of fewer trips than this are not split further, as each range begins with a BTree descent. */
+    private static final int MIN_SPLIT_SIZE = 64;
+
+    private final GTFSFeed feed;
+
+    /** The IDs of all trips, in tripOrder. Shared with the spliterators split from this one. */
+    private final String[] tripIds;
+
+    /** The order of trip IDs in the keys of stop_times. */
+    private final Comparator<String> tripOrder;
+
+    private int index;
+    private final int end;
+
+    /** The stop times from the first trip in this range onwards, opened on the first call to tryAdvance. */
+    private PeekingIterator<Map.Entry<Tuple2, StopTime>> stopTimes;
+
+    TripStopTimesSpliterator (GTFSFeed feed, String[] tripIds, Comparator<String> tripOrder) {
+        this(feed, tripIds, tripOrder, 0, tripIds.length);
+    }
+
+    private TripStopTimesSpliterator (GTFSFeed feed, String[] tripIds, Comparator<String> tripOrder, int index,
+                                      int end) {
+        this.feed = feed;
+        this.tripIds = tripIds;
+        this.tripOrder = tripOrder;
+        this.index = index;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance (Consumer<? super Tuple2<Trip, List<StopTime>>> action) {
+        if (index >= end) return false;
+        if (stopTimes == null) {
+            // No upper bound is needed, as the scan stops at the first stop time after the last trip in the range.
+            stopTimes = Iterators.peekingIterator(
+                    feed.stop_times.tailMap(Fun.t2(tripIds[index], null)).entrySet().iterator());
+        }
+        String tripId = tripIds[index++];
+        List<StopTime> tripStopTimes = new ArrayList<>();
+        while (stopTimes.hasNext()) {
+            String stopTimeTripId = (String) stopTimes.peek().getKey().a;
+            if (tripId.equals(stopTimeTripId)) {
+                tripStopTimes.add(stopTimes.next().getValue());
+            } else if (tripOrder.compare(stopTimeTripId, tripId) < 0) {
+                // This stop time refers to a trip that is not in the trips table.
+                stopTimes.next();
+            } else {
+                break;
+            }
+        }
+        action.accept(new Tuple2<>(feed.trips.get(tripId), tripStopTimes));
+        return true;
+    }
+
+    @Override
+    public Spliterator<Tuple2<Trip, List<StopTime>>> trySplit () {
+        // Once the scan has started, this range can no longer be split.
+        if (stopTimes != null || end - index < 2 * MIN_SPLIT_SIZE) return null;
+        int mid = (index + end) >>> 1;
+        Spliterator<Tuple2<Trip, List<StopTime>>> prefix =
+                new TripStopTimesSpliterator(feed, tripIds, tripOrder, index, mid);
+        index = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize () {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics () {
+        return ORDERED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+    }
+}
@@ -0,0 +1,30 @@
+package com.conveyal.gtfs.error;
+
+import java.util.Map;
+
+/**
+ * Something that receives the errors encountered while loading a GTFSFeed. Implementations may count, sample, buffer
+ * or discard errors as they see fit, but must keep exact counts and must be threadsafe, because the tables of a feed
+ * may be loaded on several threads at once.
+ */
+public interface GTFSErrorSink {
+
+    /** Record an error. It does not need to be visible in storage until the next call to flush(). */
+    void add (GTFSError error);
+
+    /** Write any buffered errors to storage. */
+    void flush ();
+
+    /** @return the total number of errors recorded, including any that were not stored. */
+    long getErrorCount ();
+
+    /**
+     * @return the exact number of errors recorded for each table (the GTFS file name without .txt, or the empty string
+     * for errors not tied to a table) and then for each error type.
+     */
+    Map<String, Map<String, Long>> getErrorCounts ();
+
+    /** Forget all errors recorded for the given table, for example because it is about to be reloaded. */
+    void clear (String table);
+
+}
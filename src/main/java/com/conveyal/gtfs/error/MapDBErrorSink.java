@@ -0,0 +1,151 @@
+package com.conveyal.gtfs.error;
+
+import org.mapdb.Fun.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default GTFSErrorSink of a GTFSFeed, which stores errors in the feed's MapDB error set.
+ *
+ * Broken feeds can produce millions of errors of the same kind (a bad reference repeated on every row of stop_times,
+ * for example), and inserting each one into a persistent BTree took longer than loading the feed itself. This keeps
+ * exact counts of the errors of each type in each table, but only stores the first maxSamples of them as examples.
+ * Those are buffered and inserted in sorted batches, which touch far fewer BTree nodes than scattered inserts.
+ * The counts are persisted alongside the errors when the sink is flushed.
+ */
+public class MapDBErrorSink implements GTFSErrorSink {
+
+    /** The default number of example errors stored for each error type in each table. */
+    public static final int DEFAULT_MAX_SAMPLES = 1000;
+
+    /** The number of errors buffered before they are inserted into the error set. */
+    private static final int BATCH_SIZE = 1000;
+
+    private final NavigableSet<GTFSError> errors;
+
+    /** Persistent copy of the counts, keyed on (table, error type). Updated when the sink is flushed. */
+    private final Map<Tuple2<String, String>, Long> persistedCounts;
+
+    private final int maxSamples;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counts = new ConcurrentHashMap<>();
+
+    private final List<GTFSError> buffer = new ArrayList<>();
+
+    /**
+     * @param errors the set in which the example errors are stored.
+     * @param persistedCounts the map in which the counts are stored. Counts already in this map (or, if it is empty,
+     *                        the errors already in the error set) are taken as the starting counts, so a feed that is
+     *                        reopened reports the same counts it had when it was loaded.
+     * @param maxSamples the maximum number of errors of each type stored for each table.
+     */
+    public MapDBErrorSink (NavigableSet<GTFSError> errors, Map<Tuple2<String, String>, Long> persistedCounts,
+                           int maxSamples) {
+        this.errors = errors;
+        this.persistedCounts = persistedCounts;
+        this.maxSamples = maxSamples;
+        if (persistedCounts.isEmpty()) {
+            // The feed predates the persisted counts, or has no errors.
+            for (GTFSError error : errors) counter(tableFor(error), error.getErrorCode()).incrementAndGet();
+        } else {
+            for (Map.Entry<Tuple2<String, String>, Long> entry : persistedCounts.entrySet()) {
+                counter(entry.getKey().a, entry.getKey().b).set(entry.getValue());
+            }
+        }
+    }
+
+    public MapDBErrorSink (NavigableSet<GTFSError> errors, Map<Tuple2<String, String>, Long> persistedCounts) {
+        this(errors, persistedCounts, DEFAULT_MAX_SAMPLES);
+    }
+
+    @Override
+    public void add (GTFSError error) {
+        long count = counter(tableFor(error), error.getErrorCode()).incrementAndGet();
+        if (count > maxSamples) return;
+        List<GTFSError> batch = null;
+        synchronized (buffer) {
+            buffer.add(error);
+            if (buffer.size() >= BATCH_SIZE) batch = drainBuffer();
+        }
+        if (batch != null) store(batch);
+    }
+
+    @Override
+    public void flush () {
+        List<GTFSError> batch;
+        synchronized (buffer) {
+            batch = drainBuffer();
+        }
+        store(batch);
+        for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> table : counts.entrySet()) {
+            for (Map.Entry<String, AtomicLong> type : table.getValue().entrySet()) {
+                persistedCounts.put(new Tuple2<>(table.getKey(), type.getKey()), type.getValue().get());
+            }
+        }
+    }
+
+    @Override
+    public long getErrorCount () {
+        long errorCount = 0;
+        for (Map<String, AtomicLong> countsForTable : counts.values()) {
+            for (AtomicLong count : countsForTable.values()) errorCount += count.get();
+        }
+        return errorCount;
+    }
+
+    @Override
+    public Map<String, Map<String, Long>> getErrorCounts () {
+        Map<String, Map<String, Long>> errorCounts = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> table : counts.entrySet()) {
+            Map<String, Long> countsForTable = new TreeMap<>();
+            for (Map.Entry<String, AtomicLong> type : table.getValue().entrySet()) {
+                countsForTable.put(type.getKey(), type.getValue().get());
+            }
+            errorCounts.put(table.getKey(), countsForTable);
+        }
+        return errorCounts;
+    }
+
+    @Override
+    public void clear (String table) {
+        // Store any buffered errors first, so that none for this table are stored after the others are removed.
+        flush();
+        counts.remove(table);
+        List<GTFSError> errorsForTable = new ArrayList<>();
+        for (GTFSError error : errors) if (table.equals(tableFor(error))) errorsForTable.add(error);
+        errors.removeAll(errorsForTable);
+        List<Tuple2<String, String>> countsForTable = new ArrayList<>();
+        for (Tuple2<String, String> key : persistedCounts.keySet()) if (table.equals(key.a)) countsForTable.add(key);
+        persistedCounts.keySet().removeAll(countsForTable);
+    }
+
+    private AtomicLong counter (String table, String errorType) {
+        return counts.computeIfAbsent(table, t -> new ConcurrentHashMap<>())
+                .computeIfAbsent(errorType, t -> new AtomicLong());
+    }
+
+    private static String tableFor (GTFSError error) {
+        return error.file == null ? "" : error.file;
+    }
+
+    /** Must be called while holding the lock on buffer. */
+    private List<GTFSError> drainBuffer () {
+        List<GTFSError> batch = new ArrayList<>(buffer);
+        buffer.clear();
+        return batch;
+    }
+
+    /** Insert a batch of errors in order, so that consecutive inserts mostly land in the same BTree nodes. */
+    private void store (List<GTFSError> batch) {
+        Collections.sort(batch);
+        errors.addAll(batch);
+    }
+}
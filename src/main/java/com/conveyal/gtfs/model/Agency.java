@@ -76,7 +76,7 @@ public class Agency extends Entity {
             // TODO clooge due to not being able to have null keys in mapdb
             if (a.agency_id == null) a.agency_id = "NONE";
 
-            feed.agency.put(a.agency_id, a);
+            if (!stream(a)) feed.agency.put(a.agency_id, a);
         }
 
     }
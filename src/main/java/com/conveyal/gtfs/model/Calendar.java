@@ -92,7 +92,7 @@ public class Calendar extends Entity implements Serializable {
             String service_id = getStringField("service_id", true); // TODO service_id can reference either calendar or calendar_dates.
             Service service = services.computeIfAbsent(service_id, Service::new);
             if (service.calendar != null) {
-                feed.errors.add(new DuplicateKeyError(tableName, row, "service_id"));
+                feed.errorSink.add(new DuplicateKeyError(tableName, row, "service_id"));
             } else {
                 Calendar c = new Calendar();
                 c.id = row + 1; // offset line number by 1 to account for 0-based row index
@@ -109,7 +109,9 @@ public class Calendar extends Entity implements Serializable {
                 c.end_date = getDateField("end_date", true);
                 c.feed = feed;
                 c.feed_id = feed.feedId;
+                // Keep the calendar in the service even when streaming, to detect duplicate service_ids.
                 service.calendar = c;
+                stream(c);
             }
 
         }    
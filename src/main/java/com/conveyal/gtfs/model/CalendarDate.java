@@ -75,7 +75,7 @@ public class CalendarDate extends Entity implements Cloneable, Serializable {
             Service service = services.computeIfAbsent(service_id, Service::new);
             LocalDate date = getDateField("date", true);
             if (service.calendar_dates.containsKey(date)) {
-                feed.errors.add(new DuplicateKeyError(tableName, row, "(service_id, date)"));
+                feed.errorSink.add(new DuplicateKeyError(tableName, row, "(service_id, date)"));
             } else {
                 CalendarDate cd = new CalendarDate();
                 cd.id = row + 1; // offset line number by 1 to account for 0-based row index
@@ -83,7 +83,9 @@ public class CalendarDate extends Entity implements Cloneable, Serializable {
                 cd.date = date;
                 cd.exception_type = getIntField("exception_type", true, 1, 2);
                 cd.feed = feed;
+                // Keep the date in the service even when streaming, to detect duplicate dates.
                 service.calendar_dates.put(date, cd);
+                stream(cd);
             }
         }
     }
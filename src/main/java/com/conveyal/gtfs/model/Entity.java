@@ -2,6 +2,7 @@ package com.conveyal.gtfs.model;
 
 import com.beust.jcommander.internal.Sets;
 import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.TableProgressEvent;
 import com.conveyal.gtfs.error.DateParseError;
 import com.conveyal.gtfs.error.EmptyFieldError;
 import com.conveyal.gtfs.error.EmptyTableError;
@@ -14,9 +15,11 @@ import com.conveyal.gtfs.error.TableInSubdirectoryError;
 import com.conveyal.gtfs.error.TimeParseError;
 import com.conveyal.gtfs.error.URLParseError;
 import com.conveyal.gtfs.loader.DateField;
+import com.conveyal.gtfs.util.CsvTokenizer;
 import com.conveyal.gtfs.util.Deduplicator;
-import com.csvreader.CsvReader;
 import com.csvreader.CsvWriter;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
 
 import org.apache.commons.io.input.BOMInputStream;
 import org.slf4j.Logger;
@@ -34,13 +37,15 @@ import java.sql.JDBCType;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.time.DateTimeException;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -100,16 +105,37 @@ public abstract class Entity implements Serializable {
     public static abstract class Loader<E extends Entity> {
 
         private static final Logger LOG = LoggerFactory.getLogger(Loader.class);
-        private static final Deduplicator deduplicator = new Deduplicator();
+
+        /**
+         * One deduplicator per loader rather than one shared by all loaders: Deduplicator is not threadsafe, and
+         * several loaders may be running at once when a feed is loaded in parallel.
+         */
+        private final Deduplicator deduplicator = new Deduplicator();
 
         protected final GTFSFeed feed;    // the feed into which we are loading the entities
         protected final String tableName; // name of corresponding table without .txt
         protected final Set<String> missingRequiredColumns = Sets.newHashSet();
 
-        protected CsvReader reader;
+        protected CsvTokenizer reader;
         protected int       row;
+
+        /** Receives the hours, minutes and seconds of each time field, to avoid allocating an array per field. */
+        private final int[] timeFields = new int[3];
         // TODO "String column" that is set before any calls to avoid passing around the column name
 
+        /**
+         * When non-null, referential integrity is not checked while the table is loaded. Instead the first
+         * occurrence of each referenced value is recorded here, keyed on column and then on value, and checked by
+         * checkDeferredReferences() once all tables have been loaded.
+         */
+        private Map<String, Map<String, DeferredReference>> deferredReferences = null;
+
+        /** When non-null, entities are passed to this consumer instead of being stored in the feed. */
+        private Consumer<? super E> consumer = null;
+
+        /** When true, entities are discarded instead of being stored in the feed, see checkOnly(). */
+        private boolean checkOnly = false;
+
         public Loader(GTFSFeed feed, String tableName) {
             this.feed = feed;
             this.tableName = tableName;
@@ -118,41 +144,50 @@ public abstract class Entity implements Serializable {
         /** @return whether the number actual is in the range [min, max] */
         protected boolean checkRangeInclusive(double min, double max, double actual) {
             if (actual < min || actual > max) {
-                feed.errors.add(new RangeError(tableName, row, null, min, max, actual)); // TODO set column name in loader so it's available in methods
+                feed.errorSink.add(new RangeError(tableName, row, null, min, max, actual)); // TODO set column name in loader so it's available in methods
                 return false;
             }
             return true;
         }
 
         /**
-         * Fetch the value from the given column of the current row. Record an error the first time a column is
-         * seen to be missing, and whenever empty values are encountered.
-         * I was originally just calling getStringField from the other getXField functions as a first step to get
-         * the missing-field check. But we don't want deduplication performed on strings that aren't being retained.
-         * Therefore the missing-field behavior is this separate function.
-         * @return null if column was missing or field is empty
+         * Find the given column in the current row. Record an error the first time a column is seen to be missing,
+         * and whenever empty values are encountered.
+         * Fields are not converted to Strings here: numbers, times and dates are parsed straight from the bytes of
+         * the row, and only the fields that are retained become (deduplicated) Strings.
+         * @return the index of the field in the current row, or -1 if column was missing or field is empty
          */
-        private String getFieldCheckRequired (String column, boolean required) throws IOException {
-            String str = reader.get(column);
-            if (str == null) {
+        private int getFieldIndexCheckRequired (String column, boolean required) throws IOException {
+            int field = reader.getIndex(column);
+            if (field < 0) {
                 if (!missingRequiredColumns.contains(column)) {
-                    feed.errors.add(new MissingColumnError(tableName, column));
+                    feed.errorSink.add(new MissingColumnError(tableName, column));
                     missingRequiredColumns.add(column);
                 }
-            } else if (str.isEmpty()) {
+            } else if (reader.isEmpty(field)) {
                 if (required) {
-                    feed.errors.add(new EmptyFieldError(tableName, row, column));
+                    feed.errorSink.add(new EmptyFieldError(tableName, row, column));
                 }
-                str = null;
+                field = -1;
             }
-            return str;
+            return field;
+        }
+
+        /**
+         * Fetch the value from the given column of the current row, checking it as getFieldIndexCheckRequired does.
+         * The value is not deduplicated, use getStringField for values that are retained.
+         * @return null if column was missing or field is empty
+         */
+        private String getFieldCheckRequired (String column, boolean required) throws IOException {
+            int field = getFieldIndexCheckRequired(column, required);
+            return field < 0 ? null : reader.get(field);
         }
 
         /** @return the given column from the current row as a deduplicated String. */
         protected String getStringField (String column, boolean required) throws IOException {
-            String str = getFieldCheckRequired(column, required);
-            str = deduplicator.deduplicateString(str);
-            return str;
+            int field = getFieldIndexCheckRequired(column, required);
+            if (field < 0) return null;
+            return deduplicator.deduplicateString(reader.getBuffer(), reader.getStart(field), reader.getLength(field));
         }
 
         protected int getIntField (String column, boolean required, int min, int max) throws IOException {
@@ -160,15 +195,15 @@ public abstract class Entity implements Serializable {
         }
 
         protected int getIntField (String column, boolean required, int min, int max, int defaultValue) throws IOException {
-            String str = getFieldCheckRequired(column, required);
+            int field = getFieldIndexCheckRequired(column, required);
             int val = INT_MISSING;
-            if (str == null) {
+            if (field < 0) {
                 val = defaultValue; // defaults to 0 per overloaded function, unless provided.
             } else try {
-                val = Integer.parseInt(str);
+                val = reader.getInt(field);
                 checkRangeInclusive(min, max, val);
             } catch (NumberFormatException nfe) {
-                feed.errors.add(new NumberParseError(tableName, row, column));
+                feed.errorSink.add(new NumberParseError(tableName, row, column));
             }
             return val;
         }
@@ -178,13 +213,20 @@ public abstract class Entity implements Serializable {
          * @return the time value in seconds since midnight
          */
         protected int getTimeField(String column, boolean required) throws IOException {
-            String str = getFieldCheckRequired(column, required);
+            int field = getFieldIndexCheckRequired(column, required);
             int val = INT_MISSING;
-            
-            if (str != null) {
+
+            if (field >= 0 && reader.getTime(field, timeFields)) {
+                // The usual H:MM:SS format, parsed without creating any Strings.
+                checkRangeInclusive(0, 72, timeFields[0]);
+                checkRangeInclusive(0, 59, timeFields[1]);
+                checkRangeInclusive(0, 59, timeFields[2]);
+                val = (timeFields[0] * 60 * 60) + timeFields[1] * 60 + timeFields[2];
+            } else if (field >= 0) {
+                String str = reader.get(field);
                 String[] fields = str.split(":");
                 if (fields.length != 3) {
-                    feed.errors.add(new TimeParseError(tableName, row, column));
+                    feed.errorSink.add(new TimeParseError(tableName, row, column));
                 } else {
                     try {
                         int hours = Integer.parseInt(fields[0]);
@@ -195,7 +237,7 @@ public abstract class Entity implements Serializable {
                         checkRangeInclusive(0, 59, seconds);
                         val = (hours * 60 * 60) + minutes * 60 + seconds;
                     } catch (NumberFormatException nfe) {
-                        feed.errors.add(new TimeParseError(tableName, row, column));
+                        feed.errorSink.add(new TimeParseError(tableName, row, column));
                     }
                 }
             }
@@ -209,13 +251,13 @@ public abstract class Entity implements Serializable {
          * @return the date value as Java LocalDate, or null if it could not be parsed.
          */
         protected LocalDate getDateField(String column, boolean required) throws IOException {
-            String str = getFieldCheckRequired(column, required);
+            int field = getFieldIndexCheckRequired(column, required);
             LocalDate dateTime = null;
-            if (str != null) try {
-                dateTime = LocalDate.parse(str, DateField.GTFS_DATE_FORMATTER);
+            if (field >= 0) try {
+                dateTime = reader.getDate(field, DateField.GTFS_DATE_FORMATTER);
                 checkRangeInclusive(2000, 2100, dateTime.getYear());
-            } catch (IllegalArgumentException | DateTimeParseException e) {
-                feed.errors.add(new DateParseError(tableName, row, column));
+            } catch (IllegalArgumentException | DateTimeException e) {
+                feed.errorSink.add(new DateParseError(tableName, row, column));
             }
             return dateTime;
         }
@@ -230,42 +272,117 @@ public abstract class Entity implements Serializable {
             if (str != null) try {
                 url = new URL(str);
             } catch (MalformedURLException mue) {
-                feed.errors.add(new URLParseError(tableName, row, column));
+                feed.errorSink.add(new URLParseError(tableName, row, column));
             }
             return url;
         }
 
         protected double getDoubleField(String column, boolean required, double min, double max) throws IOException {
-            String str = getFieldCheckRequired(column, required);
+            int field = getFieldIndexCheckRequired(column, required);
             double val = Double.NaN;
-            if (str != null) try {
-                val = Double.parseDouble(str);
+            if (field >= 0) try {
+                val = reader.getDouble(field);
                 checkRangeInclusive(min, max, val);
             } catch (NumberFormatException nfe) {
-                feed.errors.add(new NumberParseError(tableName, row, column));
+                feed.errorSink.add(new NumberParseError(tableName, row, column));
             }
             return val;
         }
 
         /**
-         * Used to check referential integrity.
-         * Return value is not used, but could allow entities to point to each other directly rather than
-         * using indirection through string-keyed maps.
+         * Used to check referential integrity, returning the referenced entity.
+         * This looks up the referenced entity on every row, use checkRefField when the entity is not needed.
          */
         protected <K, V> V getRefField(String column, boolean required, Map<K, V> target) throws IOException {
-            String str = getFieldCheckRequired(column, required);
-            V val = null;
-            if (str != null) {
-                val = target.get(str);
-                String transitId = column + ":" + str;
-                if (!feed.transitIds.contains(transitId)) {
-                    feed.transitIds.add(transitId);
-                    if (val == null) {
-                        feed.errors.add(new ReferentialIntegrityError(tableName, row, column, str));
+            // Referenced values are usually also retained by the entity, so deduplicate rather than copy them.
+            String str = getStringField(column, required);
+            if (str == null) return null;
+            checkReference(column, str, target);
+            return target.get(str);
+        }
+
+        /**
+         * Used to check referential integrity. The target table is only consulted the first time each value of the
+         * column is seen, and no Strings are built for values that have been seen before.
+         */
+        protected void checkRefField(String column, boolean required, Map<?, ?> target) throws IOException {
+            String str = getStringField(column, required);
+            if (str != null) checkReference(column, str, target);
+        }
+
+        private void checkReference(String column, String value, Map<?, ?> target) {
+            if (consumer != null) {
+                // The referenced tables are not retained when streaming, so there is nothing to check against.
+                return;
+            }
+            if (deferredReferences != null) {
+                // The target table may still be loading on another thread, record the reference for later.
+                Map<String, DeferredReference> references = deferredReferences.get(column);
+                if (references == null) {
+                    references = new LinkedHashMap<>();
+                    deferredReferences.put(column, references);
+                }
+                if (!references.containsKey(value)) {
+                    references.put(value, new DeferredReference(column, value, row, target));
+                }
+            } else if (feed.checkedReferences.add(column, value) && target.get(value) == null) {
+                feed.errorSink.add(new ReferentialIntegrityError(tableName, row, column, value));
+            }
+        }
+
+        /**
+         * Do not check references against their target tables while loading, because those tables may not be
+         * loaded yet. The caller must call checkDeferredReferences() after all tables have been loaded.
+         * Note that the return value of getRefField may then be null even for valid references.
+         */
+        public void deferReferenceChecks () {
+            deferredReferences = new LinkedHashMap<>();
+        }
+
+        /**
+         * Check the references recorded while loading with deferred reference checks, recording errors exactly as
+         * getRefField would have done had the referenced tables been loaded first. When called on each loader in the
+         * same order as a sequential load, this produces the same errors as a sequential load.
+         */
+        public void checkDeferredReferences () {
+            if (deferredReferences == null) return;
+            for (Map<String, DeferredReference> references : deferredReferences.values()) {
+                for (DeferredReference ref : references.values()) {
+                    if (feed.checkedReferences.add(ref.column, ref.value) && ref.target.get(ref.value) == null) {
+                        feed.errorSink.add(new ReferentialIntegrityError(tableName, ref.row, ref.column, ref.value));
                     }
                 }
             }
-            return val;
+            deferredReferences = null;
+        }
+
+        /**
+         * Pass each entity to the given consumer instead of storing it in the feed, see GTFSStreamReader. Fields are
+         * still checked and errors still recorded, but references to other tables are not checked.
+         */
+        public void streamTo (Consumer<? super E> consumer) {
+            this.consumer = consumer;
+        }
+
+        /**
+         * Check the fields and references of each row, recording the same errors as loading the table would, but do
+         * not store the entities. This rechecks a table whose file has not changed against tables it references that
+         * have been reloaded, leaving the entities already stored (and anything derived from them) in place.
+         */
+        public void checkOnly () {
+            this.checkOnly = true;
+        }
+
+        /**
+         * Called by subclasses with each entity they produce.
+         * @return false if the entities are not being streamed or discarded, in which case the caller should store the
+         * entity.
+         */
+        protected boolean stream (E entity) {
+            if (checkOnly) return true;
+            if (consumer == null) return false;
+            consumer.accept(entity);
+            return true;
         }
 
         protected abstract boolean isRequired();
@@ -273,6 +390,9 @@ public abstract class Entity implements Serializable {
         /** Implemented by subclasses to read one row, produce one GTFS entity, and store that entity in a map. */
         protected abstract void loadOneRow() throws IOException;
 
+        /** Called once all rows of the table have been loaded. Subclasses that buffer entities store them here. */
+        protected void finishTable() throws IOException { }
+
         /**
          * The main entry point into an Entity.Loader. Interprets each row of a CSV file within a zip file as a sinle
          * GTFS entity, and loads them into a table.
@@ -288,12 +408,12 @@ public abstract class Entity implements Serializable {
                     ZipEntry e = entries.nextElement();
                     if (e.getName().endsWith(tableName + ".txt")) {
                         entry = e;
-                        feed.errors.add(new TableInSubdirectoryError(tableName, entry.getName().replace(tableName + ".txt", "")));
+                        feed.errorSink.add(new TableInSubdirectoryError(tableName, entry.getName().replace(tableName + ".txt", "")));
                     }
                 }
                 /* This GTFS table did not exist in the zip. */
                 if (this.isRequired()) {
-                    feed.errors.add(new MissingTableError(tableName));
+                    feed.errorSink.add(new MissingTableError(tableName));
                 } else {
                     LOG.info("Table {} was missing but it is not required.", tableName);
                 }
@@ -301,30 +421,60 @@ public abstract class Entity implements Serializable {
                 if (entry == null) return;
             }
             LOG.info("Loading GTFS table {} from {}", tableName, entry);
-            InputStream zis = zip.getInputStream(entry);
+            long startTime = System.currentTimeMillis();
+            // Count the bytes inflated from the zip file, for progress events.
+            CountingInputStream zis = new CountingInputStream(zip.getInputStream(entry));
             // skip any byte order mark that may be present. Files must be UTF-8,
             // but the GTFS spec says that "files that include the UTF byte order mark are acceptable"
             InputStream bis = new BOMInputStream(zis);
-            CsvReader reader = new CsvReader(bis, ',', Charset.forName("UTF8"));
+            CsvTokenizer reader = new CsvTokenizer(bis);
             this.reader = reader;
             boolean hasHeaders = reader.readHeaders();
             if (!hasHeaders) {
-                feed.errors.add(new EmptyTableError(tableName));
+                feed.errorSink.add(new EmptyTableError(tableName));
             }
+            postProgress(TableProgressEvent.Stage.STARTED, zis.getCount(), startTime, 0);
             while (reader.readRecord()) {
                 // reader.getCurrentRecord() is zero-based and does not include the header line, keep our own row count
                 if (++row % 500000 == 0) {
                     LOG.info("Record number {}", human(row));
+                    postProgress(TableProgressEvent.Stage.PROGRESS, zis.getCount(), startTime, 0);
                 }
                 loadOneRow(); // Call subclass method to produce an entity from the current row.
             }
             if (row == 0) {
-                feed.errors.add(new EmptyTableError(tableName));
+                feed.errorSink.add(new EmptyTableError(tableName));
             }
+            long storeStartTime = System.currentTimeMillis();
+            finishTable();
+            postProgress(TableProgressEvent.Stage.FINISHED, zis.getCount(), startTime,
+                    System.currentTimeMillis() - storeStartTime);
+        }
+
+        /** Post the progress of this table to the event bus of the feed, if it has one. */
+        private void postProgress (TableProgressEvent.Stage stage, long bytes, long startTime, long storeMillis) {
+            if (feed.eventBus == null) return;
+            feed.eventBus.post(new TableProgressEvent(TableProgressEvent.Operation.LOAD, stage, feed.feedId, tableName,
+                    row, bytes, System.currentTimeMillis() - startTime, feed.errorSink.getErrorCount(), storeMillis));
         }
 
     }
 
+    /** The first occurrence of a referenced value, to be checked once all tables have been loaded. */
+    private static class DeferredReference {
+        final String column;
+        final String value;
+        final int row;
+        final Map<?, ?> target;
+
+        DeferredReference(String column, String value, int row, Map<?, ?> target) {
+            this.column = column;
+            this.value = value;
+            this.row = row;
+            this.target = target;
+        }
+    }
+
     /**
      * An output stream that cannot be closed. CSVWriters try to close their output streams when they are garbage-collected,
      * which breaks if another CSV writer is still writing to the ZIP file.
@@ -364,6 +514,9 @@ public abstract class Entity implements Serializable {
 
         protected CsvWriter writer;
 
+        /** Reused to format each time, date or decimal field without going through Formatter. */
+        private final StringBuilder field = new StringBuilder(32);
+
         /**
          * one-based to match reader.
          */
@@ -389,24 +542,40 @@ public abstract class Entity implements Serializable {
          */
         protected abstract Iterator<E> iterator();
 
-        public void writeTable (ZipOutputStream zip) throws IOException {
-            LOG.info("Writing GTFS table {}", tableName);
+        /** @return the name of the file this table is written to, e.g. stops.txt. */
+        public String getFileName () {
+            return tableName + ".txt";
+        }
 
-            ZipEntry zipEntry = new ZipEntry(tableName + ".txt");
+        public void writeTable (ZipOutputStream zip) throws IOException {
+            ZipEntry zipEntry = new ZipEntry(getFileName());
             zip.putNextEntry(zipEntry);
+            writeCsv(zip);
+            zip.closeEntry();
+        }
 
-            // don't let CSVWriter close the stream when it is garbage-collected
-            OutputStream protectedOut = new UncloseableOutputStream(zip);
+        /**
+         * Write this table as CSV to the given stream, which is left open. This is used to write each table into its
+         * own compressed stream when a feed is written on several threads.
+         */
+        public void writeCsv (OutputStream out) throws IOException {
+            LOG.info("Writing GTFS table {}", tableName);
+            long startTime = System.currentTimeMillis();
+
+            // don't let CSVWriter close the stream when it is garbage-collected, and count the bytes written to it
+            CountingOutputStream protectedOut = new CountingOutputStream(new UncloseableOutputStream(out));
             this.writer = new CsvWriter(protectedOut, ',', Charset.forName("UTF8"));
 
             this.writeHeaders();
 
             // write rows until there are none left.
             row = 0;        	
+            postProgress(TableProgressEvent.Stage.STARTED, protectedOut.getCount(), startTime);
             Iterator<E> iter = this.iterator();
             while (iter.hasNext()) {
                 if (++row % 500000 == 0) {
                     LOG.info("Record number {}", human(row));
+                    postProgress(TableProgressEvent.Stage.PROGRESS, protectedOut.getCount(), startTime);
                 }
 
                 writeOneRow(iter.next());
@@ -414,9 +583,16 @@ public abstract class Entity implements Serializable {
 
             // closing the writer closes the underlying output stream, so we don't do that.
             writer.flush();
-            zip.closeEntry();
 
             LOG.info("Wrote {} rows", human(row));
+            postProgress(TableProgressEvent.Stage.FINISHED, protectedOut.getCount(), startTime);
+        }
+
+        /** Post the progress of this table to the event bus of the feed, if it has one. */
+        private void postProgress (TableProgressEvent.Stage stage, long bytes, long startTime) {
+            if (feed.eventBus == null) return;
+            feed.eventBus.post(new TableProgressEvent(TableProgressEvent.Operation.WRITE, stage, feed.feedId,
+                    tableName, row, bytes, System.currentTimeMillis() - startTime, 0, 0));
         }
 
         protected void writeStringField(String str) throws IOException {
@@ -431,7 +607,9 @@ public abstract class Entity implements Serializable {
          * Writes date as YYYYMMDD
          */
         protected void writeDateField (LocalDate d) throws IOException {
-            writeStringField(d.format(DateTimeFormatter.BASIC_ISO_DATE));
+            field.setLength(0);
+            appendDate(field, d);
+            writeStringField(field.toString());
         }
 
         /**
@@ -442,11 +620,20 @@ public abstract class Entity implements Serializable {
                 writeStringField("");
                 return;
             }
-            
-            writeStringField(convertToGtfsTime(secsSinceMidnight));
+
+            field.setLength(0);
+            appendGtfsTime(field, secsSinceMidnight);
+            writeStringField(field.toString());
         }
 
         public static String convertToGtfsTime (int secsSinceMidnight) {
+            StringBuilder sb = new StringBuilder(8);
+            appendGtfsTime(sb, secsSinceMidnight);
+            return sb.toString();
+        }
+
+        /** Append a time in HH:MM:SS format, exactly as String.format("%02d:%02d:%02d") would. */
+        private static void appendGtfsTime (StringBuilder sb, int secsSinceMidnight) {
             int seconds = secsSinceMidnight % 60;
             secsSinceMidnight -= seconds;
             // note that the minute and hour values are still expressed in seconds until we write it out, to avoid unnecessary division.
@@ -455,14 +642,49 @@ public abstract class Entity implements Serializable {
             secsSinceMidnight -= minutes;
 
             // integer divide is fine as we've subtracted off remainders
-            return String.format("%02d:%02d:%02d", secsSinceMidnight / 3600, minutes / 60, seconds);
+            appendTwoDigits(sb, secsSinceMidnight / 3600);
+            sb.append(':');
+            appendTwoDigits(sb, minutes / 60);
+            sb.append(':');
+            appendTwoDigits(sb, seconds);
+        }
+
+        /** Append an int as %02d would: zero-padded to two digits if it is a single digit, otherwise as it is. */
+        private static void appendTwoDigits (StringBuilder sb, int value) {
+            if (value >= 0 && value < 10) sb.append('0');
+            sb.append(value);
+        }
+
+        /** Append a date as DateTimeFormatter.BASIC_ISO_DATE would. */
+        static void appendDate (StringBuilder sb, LocalDate date) {
+            int year = date.getYear();
+            if (year < 0 || year > 9999) {
+                // The formatter handles signs and the years it cannot print.
+                sb.append(date.format(DateTimeFormatter.BASIC_ISO_DATE));
+                return;
+            }
+            appendPadded(sb, year, 4);
+            appendPadded(sb, date.getMonthValue(), 2);
+            appendPadded(sb, date.getDayOfMonth(), 2);
+        }
+
+        /** Append a non-negative int zero-padded to the given number of digits. */
+        private static void appendPadded (StringBuilder sb, int value, int digits) {
+            for (int limit = 10; digits > 1; digits--, limit *= 10) {
+                if (value < limit) sb.append('0');
+            }
+            sb.append(value);
         }
 
         protected void writeIntField (Integer val) throws IOException {
-            if (val.equals(INT_MISSING))
+            writeIntField(val.intValue());
+        }
+
+        protected void writeIntField (int val) throws IOException {
+            if (val == INT_MISSING)
                 writeStringField("");
             else
-                writeStringField(val.toString());
+                writeStringField(Integer.toString(val));
         }
 
         /**
@@ -472,14 +694,42 @@ public abstract class Entity implements Serializable {
             // NaN's represent missing values
             if (Double.isNaN(val))
                 writeStringField("");
-            
+
             // control file size: don't use unnecessary precision
             // This is usually used for coordinates; one ten-millionth of a degree at the equator is 1.1cm,
             // and smaller elsewhere on earth, plenty precise enough.
             // On Jupiter, however, it's a different story.
-            // Use the US locale so that . is used as the decimal separator
-            else
-                writeStringField(String.format(Locale.US, "%.7f", val));
+            else {
+                field.setLength(0);
+                appendDecimal7(field, val);
+                writeStringField(field.toString());
+            }
+        }
+
+        /**
+         * Append a double with seven decimal places, exactly as String.format(Locale.US, "%.7f") would, so with the
+         * US locale's . as the decimal separator. Formatter is slow, as it parses the format string every time and
+         * goes through a decimal representation of the number, so it is only used when the result is not obvious:
+         * large or infinite values, and values whose eighth decimal place is within rounding error of a 5.
+         */
+        static void appendDecimal7 (StringBuilder sb, double val) {
+            double magnitude = Math.abs(val);
+            if (magnitude < 100_000) {
+                // Up to 10^12, the error of this product is a small fraction of the margin checked below.
+                double scaled = magnitude * 10_000_000;
+                long units = (long) scaled;
+                double fraction = scaled - units;
+                if (Math.abs(fraction - 0.5) > 0.001) {
+                    if (fraction > 0.5) units++;
+                    // Formatter keeps the sign of negative values that round to zero, and of negative zero.
+                    if (Double.doubleToRawLongBits(val) < 0) sb.append('-');
+                    sb.append(units / 10_000_000);
+                    sb.append('.');
+                    appendPadded(sb, (int) (units % 10_000_000), 7);
+                    return;
+                }
+            }
+            sb.append(String.format(Locale.US, "%.7f", val));
         }
 
         /**
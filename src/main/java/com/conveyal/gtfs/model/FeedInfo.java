@@ -79,7 +79,7 @@ public class FeedInfo extends Entity implements Cloneable {
                 feed.feedInfo.put("NONE", fi);
                 feed.feedId = fi.feed_id;
             } else {
-                feed.errors.add(new GeneralError(tableName, row, null, "FeedInfo contains more than one record."));
+                feed.errorSink.add(new GeneralError(tableName, row, null, "FeedInfo contains more than one record."));
             }
         }
     }
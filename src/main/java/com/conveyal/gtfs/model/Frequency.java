@@ -73,15 +73,15 @@ public class Frequency extends Entity implements Comparable<Frequency> {
         @Override
         public void loadOneRow() throws IOException {
             Frequency f = new Frequency();
-            Trip trip = getRefField("trip_id", true, feed.trips);
             f.id = row + 1; // offset line number by 1 to account for 0-based row index
-            f.trip_id = trip.trip_id;
+            f.trip_id = getStringField("trip_id", true);
+            checkRefField("trip_id", true, feed.trips);
             f.start_time = getTimeField("start_time", true);
             f.end_time = getTimeField("end_time", true);
             f.headway_secs = getIntField("headway_secs", true, 1, 24 * 60 * 60);
             f.exact_times = getIntField("exact_times", false, 0, 1);
             f.feed = feed;
-            feed.frequencies.add(Fun.t2(f.trip_id, f));
+            if (!stream(f)) feed.frequencies.add(Fun.t2(f.trip_id, f));
         }
     }
 
@@ -56,6 +56,17 @@ public class Pattern extends Entity {
      * @param patternGeometry
      */
     public Pattern (List<String> orderedStops, Collection<Trip> trips, LineString patternGeometry){
+        this(orderedStops, trips.iterator().next(), trips.stream().map(t -> t.trip_id).collect(Collectors.toList()),
+                patternGeometry);
+    }
+
+    /**
+     * @param orderedStops
+     * @param exemplarTrip a trip that serves as an exemplar for all the others, supplying the route and name.
+     * @param tripIds the IDs of all the trips on this pattern.
+     * @param patternGeometry
+     */
+    public Pattern (List<String> orderedStops, Trip exemplarTrip, List<String> tripIds, LineString patternGeometry){
 
         // Temporarily make a random ID for the pattern, which might be overwritten in a later step ?
         this.pattern_id = UUID.randomUUID().toString();
@@ -65,13 +76,10 @@ public class Pattern extends Entity {
         this.orderedStops = orderedStops;
 
         // Save the string IDs of the trips on this pattern.
-        this.associatedTrips = trips.stream().map(t -> t.trip_id).collect(Collectors.toList());
+        this.associatedTrips = tripIds;
 
         // In theory all trips could take different paths and be on different routes.
         // Here we're using only the first one as an exemplar.
-        String trip_id = associatedTrips.get(0);
-
-        Trip exemplarTrip = trips.iterator().next();
         this.geometry = patternGeometry;
 
         // feed.getTripGeometry(exemplarTrip.trip_id);
@@ -89,7 +89,7 @@ public class Route extends Entity { // implements Entity.Factory<Route>
                 if (feed.agency.size() == 1) {
                     r.agency_id = feed.agency.values().iterator().next().agency_id;
                 } else if (feed.agency.isEmpty()) {
-                    feed.errors.add(new NoAgencyInFeedError());
+                    feed.errorSink.add(new NoAgencyInFeedError());
                 }
             } else {
                 r.agency_id = agency.agency_id;
@@ -107,7 +107,7 @@ public class Route extends Entity { // implements Entity.Factory<Route>
             r.feed = feed;
             r.feed_id = feed.feedId;
             // Attempting to put a null key or value will cause an NPE in BTreeMap
-            if (r.route_id != null) feed.routes.put(r.route_id, r);
+            if (!stream(r) && r.route_id != null) feed.routes.put(r.route_id, r);
         }
 
     }
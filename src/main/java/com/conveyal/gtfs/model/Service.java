@@ -4,8 +4,10 @@ import com.google.common.collect.Maps;
 
 import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.Map;
 
@@ -94,7 +96,7 @@ public class Service implements Serializable {
         if (exception != null)
             return exception.exception_type == 1;
 
-        else if (calendar == null)
+        else if (calendar == null || calendar.start_date == null || calendar.end_date == null)
             return false;
 
         else {
@@ -121,6 +123,34 @@ public class Service implements Serializable {
         }
     }
 
+    /**
+     * Evaluate this service on a range of days at once, with the same result as calling activeOn for each of them.
+     * @return a BitSet in which bit i is set if this service is active on the i-th day after firstDate.
+     */
+    public BitSet activeDays (LocalDate firstDate, int nDays) {
+        BitSet activeDays = new BitSet(nDays);
+        // A calendar whose dates could not be parsed is never active. An error was recorded when it was loaded.
+        if (calendar != null && calendar.start_date != null && calendar.end_date != null) {
+            boolean[] activeOnDayOfWeek = {
+                    calendar.monday == 1, calendar.tuesday == 1, calendar.wednesday == 1, calendar.thursday == 1,
+                    calendar.friday == 1, calendar.saturday == 1, calendar.sunday == 1
+            };
+            // The index of the day of week of firstDate, counting from zero on Monday.
+            int firstDayOfWeek = firstDate.getDayOfWeek().getValue() - 1;
+            long start = Math.max(0, ChronoUnit.DAYS.between(firstDate, calendar.start_date));
+            long end = Math.min(nDays - 1, ChronoUnit.DAYS.between(firstDate, calendar.end_date));
+            for (int day = (int) start; day <= end; day++) {
+                if (activeOnDayOfWeek[(firstDayOfWeek + day) % 7]) activeDays.set(day);
+            }
+        }
+        // Exceptions override the calendar, as in activeOn.
+        for (Map.Entry<LocalDate, CalendarDate> exception : calendar_dates.entrySet()) {
+            long day = ChronoUnit.DAYS.between(firstDate, exception.getKey());
+            if (day >= 0 && day < nDays) activeDays.set((int) day, exception.getValue().exception_type == 1);
+        }
+        return activeDays;
+    }
+
     /**
      * Checks for overlapping days of week between two service calendars
      * @param s1
@@ -2,14 +2,18 @@ package com.conveyal.gtfs.model;
 
 import com.conveyal.gtfs.GTFSFeed;
 import com.conveyal.gtfs.util.Util;
-import org.locationtech.jts.geom.Coordinate;
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.array.TDoubleArrayList;
+import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
 import org.mapdb.Fun;
 
 import java.util.Map;
 
 /**
- * Represents a collection of GTFS shape points. Never saved in MapDB but constructed on the fly.
+ * Represents a collection of GTFS shape points. Never saved in MapDB but constructed on the fly, and cached by
+ * GTFSFeed.getShape. The geometry is backed by a packed array of coordinates.
  */
 public class Shape {
     /** The shape itself */
@@ -22,10 +26,37 @@ public class Shape {
         Map<Fun.Tuple2<String, Integer>, ShapePoint> points =
                 feed.shape_points.subMap(new Fun.Tuple2(shape_id, null), new Fun.Tuple2(shape_id, Fun.HI));
 
-        Coordinate[] coords = points.values().stream()
-                .map(point -> new Coordinate(point.shape_pt_lon, point.shape_pt_lat))
-                .toArray(i -> new Coordinate[i]);
-        geometry = Util.geometryFactory.createLineString(coords);
-        shape_dist_traveled = points.values().stream().mapToDouble(point -> point.shape_dist_traveled).toArray();
+        // Read the points once, straight into packed arrays rather than a Coordinate object per point.
+        TDoubleList coordinates = new TDoubleArrayList();
+        TDoubleList distances = new TDoubleArrayList();
+        for (ShapePoint point : points.values()) {
+            coordinates.add(point.shape_pt_lon);
+            coordinates.add(point.shape_pt_lat);
+            distances.add(point.shape_dist_traveled);
+        }
+        geometry = lineString(coordinates.toArray());
+        shape_dist_traveled = distances.toArray();
+    }
+
+    public Shape (LineString geometry, double[] shape_dist_traveled) {
+        this.geometry = geometry;
+        this.shape_dist_traveled = shape_dist_traveled;
+    }
+
+    /** @return a LineString backed by the given array of alternating x (longitude) and y (latitude) values. */
+    public static LineString lineString (double[] packedCoordinates) {
+        return Util.geometryFactory.createLineString(
+                PackedCoordinateSequenceFactory.DOUBLE_FACTORY.create(packedCoordinates, 2));
+    }
+
+    /** @return the coordinates of the given LineString as alternating x (longitude) and y (latitude) values. */
+    public static double[] packCoordinates (LineString lineString) {
+        CoordinateSequence sequence = lineString.getCoordinateSequence();
+        double[] packedCoordinates = new double[sequence.size() * 2];
+        for (int i = 0; i < sequence.size(); i++) {
+            packedCoordinates[2 * i] = sequence.getX(i);
+            packedCoordinates[2 * i + 1] = sequence.getY(i);
+        }
+        return packedCoordinates;
     }
 }
@@ -1,6 +1,7 @@
 package com.conveyal.gtfs.model;
 
 import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.storage.BulkTreeMapBuilder;
 
 import java.io.IOException;
 import java.sql.PreparedStatement;
@@ -58,8 +59,12 @@ public class ShapePoint extends Entity {
 
     public static class Loader extends Entity.Loader<ShapePoint> {
 
+        /** Accumulates shape points when the feed is bulk loaded, null otherwise. */
+        private final BulkTreeMapBuilder<Tuple2<String, Integer>, ShapePoint> bulkLoader;
+
         public Loader(GTFSFeed feed) {
             super(feed, "shapes");
+            bulkLoader = feed.bulkLoad ? feed.createBulkTreeMapBuilder() : null;
         }
 
         @Override
@@ -78,7 +83,16 @@ public class ShapePoint extends Entity {
             ShapePoint s = new ShapePoint(shape_id, shape_pt_lat, shape_pt_lon, shape_pt_sequence, shape_dist_traveled);
             s.id = row + 1; // offset line number by 1 to account for 0-based row index
             s.feed = null; // since we're putting this into MapDB, we don't want circular serialization
-            feed.shape_points.put(new Tuple2<String, Integer>(s.shape_id, s.shape_pt_sequence), s);
+            Tuple2<String, Integer> key = new Tuple2<String, Integer>(s.shape_id, s.shape_pt_sequence);
+            if (!stream(s)) {
+                if (bulkLoader != null) bulkLoader.put(key, s);
+                else feed.shape_points.put(key, s);
+            }
+        }
+
+        @Override
+        protected void finishTable() throws IOException {
+            if (bulkLoader != null) feed.bulkLoadShapePoints(bulkLoader);
         }
     }
 
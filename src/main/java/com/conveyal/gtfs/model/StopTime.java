@@ -1,6 +1,7 @@
 package com.conveyal.gtfs.model;
 
 import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.storage.BulkTreeMapBuilder;
 
 import org.mapdb.Fun;
 
@@ -61,8 +62,12 @@ public class StopTime extends Entity implements Cloneable, Serializable {
 
     public static class Loader extends Entity.Loader<StopTime> {
 
+        /** Accumulates stop times when the feed is bulk loaded, null otherwise. */
+        private final BulkTreeMapBuilder<Fun.Tuple2, StopTime> bulkLoader;
+
         public Loader(GTFSFeed feed) {
             super(feed, "stop_times");
+            bulkLoader = feed.bulkLoad ? feed.createBulkTreeMapBuilder() : null;
         }
 
         @Override
@@ -87,14 +92,23 @@ public class StopTime extends Entity implements Cloneable, Serializable {
             st.shape_dist_traveled = getDoubleField("shape_dist_traveled", false, 0D, Double.MAX_VALUE); // FIXME using both 0 and NaN for "missing", define DOUBLE_MISSING
             st.timepoint      = getIntField("timepoint", false, 0, 1, INT_MISSING);
             st.feed           = null; // this could circular-serialize the whole feed
-            feed.stop_times.put(new Fun.Tuple2(st.trip_id, st.stop_sequence), st);
+            Fun.Tuple2 key = new Fun.Tuple2(st.trip_id, st.stop_sequence);
+            if (!stream(st)) {
+                if (bulkLoader != null) bulkLoader.put(key, st);
+                else feed.stop_times.put(key, st);
+            }
 
             /*
               Check referential integrity without storing references. StopTime cannot directly reference Trips or
               Stops because they would be serialized into the MapDB.
              */
-            getRefField("trip_id", true, feed.trips);
-            getRefField("stop_id", true, feed.stops);
+            checkRefField("trip_id", true, feed.trips);
+            checkRefField("stop_id", true, feed.stops);
+        }
+
+        @Override
+        protected void finishTable() throws IOException {
+            if (bulkLoader != null) feed.bulkLoadStopTimes(bulkLoader);
         }
 
     }
@@ -63,15 +63,15 @@ public class Transfer extends Entity {
             tr.from_trip_id      = getStringField("from_trip_id", false);
             tr.to_trip_id        = getStringField("to_trip_id", false);
 
-            getRefField("from_stop_id", true, feed.stops);
-            getRefField("to_stop_id", true, feed.stops);
-            getRefField("from_route_id", false, feed.routes);
-            getRefField("to_route_id", false, feed.routes);
-            getRefField("from_trip_id", false, feed.trips);
-            getRefField("to_trip_id", false, feed.trips);
+            checkRefField("from_stop_id", true, feed.stops);
+            checkRefField("to_stop_id", true, feed.stops);
+            checkRefField("from_route_id", false, feed.routes);
+            checkRefField("to_route_id", false, feed.routes);
+            checkRefField("from_trip_id", false, feed.trips);
+            checkRefField("to_trip_id", false, feed.trips);
 
             tr.feed = feed;
-            feed.transfers.put(Long.toString(row), tr);
+            if (!stream(tr)) feed.transfers.put(Long.toString(row), tr);
         }
 
     }
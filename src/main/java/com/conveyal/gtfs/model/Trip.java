@@ -78,15 +78,15 @@ public class Trip extends Entity {
             t.feed = feed;
             t.feed_id = feed.feedId;
             // Attempting to put a null key or value will cause an NPE in BTreeMap
-            if (t.trip_id != null) feed.trips.put(t.trip_id, t);
+            if (!stream(t) && t.trip_id != null) feed.trips.put(t.trip_id, t);
 
             /*
               Check referential integrity without storing references. Trip cannot directly reference Services or
               Routes because they would be serialized into the MapDB.
              */
             // TODO confirm existence of shape ID
-            getRefField("service_id", true, feed.services);
-            getRefField("route_id", true, feed.routes);
+            checkRefField("service_id", true, feed.services);
+            checkRefField("route_id", true, feed.routes);
         }
 
     }
@@ -0,0 +1,240 @@
+package com.conveyal.gtfs.storage;
+
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Accumulates the entries of a MapDB tree map that may be too big to hold in memory, so the map can be built in a
+ * single pass by the MapDB data pump rather than by one random BTree insertion per entry. Random insertions into a
+ * compressed, memory-mapped BTree are slow and leave the nodes scattered around the file.
+ *
+ * Entries are buffered in memory. Each time the buffer is full it is sorted and spilled to a temporary file as a
+ * sorted run. Once all entries have been added, iterator() merges the runs. The MapDB 1.0 data pump requires its
+ * source in descending key order with no duplicate keys, so that is what the iterator produces. When the same key is
+ * added more than once the last value added wins, as it would with Map.put.
+ *
+ * Keys are sorted in their natural order unless a comparator is supplied, for example when the keys will be encoded
+ * into some other form before they are stored.
+ */
+public class BulkTreeMapBuilder<K, V> implements Closeable {
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final Comparator<? super K> keyOrder;
+    private final int runSize;
+
+    /** Entries not yet spilled to disk, in the order they were added. */
+    private List<Fun.Tuple2<K, V>> buffer = new ArrayList<>();
+
+    /** Temporary files holding the sorted runs, in the order they were written. */
+    private final List<File> runFiles = new ArrayList<>();
+
+    /** The number of entries written to each file in runFiles, after removing duplicate keys. */
+    private final List<Integer> runSizes = new ArrayList<>();
+
+    /** Readers opened by iterator(), which must be closed to release the temporary files. */
+    private final List<DataInputStream> openRuns = new ArrayList<>();
+
+    private long size = 0;
+
+    /**
+     * @param runSize the number of entries to hold in memory before sorting them and spilling them to disk.
+     */
+    @SuppressWarnings("unchecked")
+    public BulkTreeMapBuilder (Serializer<K> keySerializer, Serializer<V> valueSerializer, int runSize) {
+        this(keySerializer, valueSerializer, (k1, k2) -> ((Comparable<K>) k1).compareTo(k2), runSize);
+    }
+
+    /**
+     * @param keyOrder the order of the keys in the map that will be built.
+     * @param runSize the number of entries to hold in memory before sorting them and spilling them to disk.
+     */
+    public BulkTreeMapBuilder (Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                               Comparator<? super K> keyOrder, int runSize) {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.keyOrder = keyOrder;
+        this.runSize = runSize;
+    }
+
+    public void put (K key, V value) throws IOException {
+        buffer.add(new Fun.Tuple2<>(key, value));
+        size++;
+        if (buffer.size() >= runSize) spill();
+    }
+
+    /** @return the number of entries added, including any that will be dropped because their key was re-added. */
+    public long size () {
+        return size;
+    }
+
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    /**
+     * Sort the buffer in descending key order, keeping only the last entry added for each key. The sort is stable so
+     * entries with equal keys remain in the order they were added.
+     */
+    private List<Fun.Tuple2<K, V>> sortBuffer () {
+        buffer.sort((e1, e2) -> compareKeys(e2.a, e1.a));
+        List<Fun.Tuple2<K, V>> sorted = new ArrayList<>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            // Skip this entry if the next one has the same key, because the next one was added later.
+            if (i + 1 < buffer.size() && compareKeys(buffer.get(i).a, buffer.get(i + 1).a) == 0) continue;
+            sorted.add(buffer.get(i));
+        }
+        return sorted;
+    }
+
+    private void spill () throws IOException {
+        List<Fun.Tuple2<K, V>> sorted = sortBuffer();
+        File runFile = File.createTempFile("gtfs-bulk-load", ".run");
+        runFile.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)))) {
+            for (Fun.Tuple2<K, V> entry : sorted) {
+                keySerializer.serialize(out, entry.a);
+                valueSerializer.serialize(out, entry.b);
+            }
+        }
+        runFiles.add(runFile);
+        runSizes.add(sorted.size());
+        buffer = new ArrayList<>();
+    }
+
+    /**
+     * Merge all the sorted runs into a single iterator in descending key order, suitable for use as a MapDB pump
+     * source. Where the same key appears in several runs, the value from the most recent run is kept. No more entries
+     * may be added once this method has been called.
+     */
+    public Iterator<Fun.Tuple2<K, V>> iterator () throws IOException {
+        // The entries still in memory are the last run, and do not need to go through the disk.
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < runFiles.size(); i++) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFiles.get(i))));
+            openRuns.add(in);
+            runs.add(new FileRun(i, in, runSizes.get(i)));
+        }
+        runs.add(new MemoryRun(runFiles.size(), sortBuffer()));
+        buffer = null;
+        return new MergingIterator(runs);
+    }
+
+    /** Delete the temporary files holding the sorted runs. */
+    @Override
+    public void close () throws IOException {
+        for (DataInputStream in : openRuns) in.close();
+        openRuns.clear();
+        for (File runFile : runFiles) runFile.delete();
+        runFiles.clear();
+    }
+
+    private int compareKeys (K k1, K k2) {
+        return keyOrder.compare(k1, k2);
+    }
+
+    /** A sequence of entries in descending key order, positioned on its current entry. */
+    private abstract class Run {
+        /** Runs written later hold entries added later, which take precedence over earlier ones with the same key. */
+        final int index;
+        Fun.Tuple2<K, V> current;
+
+        Run (int index) {
+            this.index = index;
+        }
+
+        /** Move to the next entry, setting current to null when there are no more entries. */
+        abstract void advance () throws IOException;
+    }
+
+    private class FileRun extends Run {
+        final DataInputStream in;
+        int remaining;
+
+        FileRun (int index, DataInputStream in, int size) throws IOException {
+            super(index);
+            this.in = in;
+            this.remaining = size;
+            advance();
+        }
+
+        @Override
+        void advance () throws IOException {
+            if (remaining-- > 0) {
+                K key = keySerializer.deserialize(in, -1);
+                V value = valueSerializer.deserialize(in, -1);
+                current = new Fun.Tuple2<>(key, value);
+            } else {
+                current = null;
+            }
+        }
+    }
+
+    private class MemoryRun extends Run {
+        final Iterator<Fun.Tuple2<K, V>> entries;
+
+        MemoryRun (int index, List<Fun.Tuple2<K, V>> entries) {
+            super(index);
+            this.entries = entries.iterator();
+            advance();
+        }
+
+        @Override
+        void advance () {
+            current = entries.hasNext() ? entries.next() : null;
+        }
+    }
+
+    /** Merges runs by always taking the highest key, then skipping that key in all the other runs. */
+    private class MergingIterator implements Iterator<Fun.Tuple2<K, V>> {
+        final PriorityQueue<Run> queue;
+
+        MergingIterator (List<Run> runs) {
+            Comparator<Run> highestKeyFirst = (r1, r2) -> {
+                int c = compareKeys(r2.current.a, r1.current.a);
+                return c != 0 ? c : Integer.compare(r2.index, r1.index);
+            };
+            queue = new PriorityQueue<>(Math.max(runs.size(), 1), highestKeyFirst);
+            for (Run run : runs) if (run.current != null) queue.add(run);
+        }
+
+        @Override
+        public boolean hasNext () {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Fun.Tuple2<K, V> next () {
+            if (queue.isEmpty()) throw new NoSuchElementException();
+            Fun.Tuple2<K, V> entry = queue.peek().current;
+            try {
+                // Advance every run positioned on this key. The first one polled holds the most recent value.
+                while (!queue.isEmpty() && compareKeys(queue.peek().current.a, entry.a) == 0) {
+                    Run run = queue.poll();
+                    run.advance();
+                    if (run.current != null) queue.add(run);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.conveyal.gtfs.storage;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which values of each referencing column (trip_id, stop_id etc.) have already been checked against the table
+ * they refer to, so that each missing reference is only reported once and each valid one is only looked up once.
+ *
+ * Values are interned to int codes in a table local to this instance and stored in one open-addressing primitive int set
+ * per column. This replaces a single set of "column:value" Strings, which required building a new String for every
+ * reference on every row. The feed's StringDictionary is not used, as it persists every string it encodes, and most
+ * referenced values (e.g. the stop_ids of stop_times) are not otherwise stored in it.
+ *
+ * Not threadsafe. Loaders running in parallel defer their reference checks and replay them on a single thread.
+ */
+public class CheckedReferences {
+
+    /** Codes for the checked values of all columns. Code zero is reserved for null, and is also the no entry value. */
+    private final TObjectIntMap<String> codeForValue = new TObjectIntHashMap<>(10, 0.5f, 0);
+
+    private final Map<String, TIntSet> codesForColumn = new HashMap<>();
+
+    /** @return the code for the given value, assigning a new one if necessary. */
+    private int intern (String value) {
+        if (value == null) return 0;
+        int code = codeForValue.get(value);
+        if (code == 0) {
+            code = codeForValue.size() + 1;
+            codeForValue.put(value, code);
+        }
+        return code;
+    }
+
+    /**
+     * Record that the given value of the given column has been checked.
+     * @return true if it had not been checked before, in which case the caller should check it.
+     */
+    public boolean add (String column, String value) {
+        TIntSet codes = codesForColumn.get(column);
+        if (codes == null) {
+            codes = new TIntHashSet();
+            codesForColumn.put(column, codes);
+        }
+        return codes.add(intern(value));
+    }
+
+    /** @return whether the given value of the given column has already been checked. */
+    public boolean contains (String column, String value) {
+        TIntSet codes = codesForColumn.get(column);
+        if (codes == null) return false;
+        if (value == null) return codes.contains(0);
+        int code = codeForValue.get(value);
+        return code != 0 && codes.contains(code);
+    }
+
+    /** Forget all checked values, so that they are checked again. */
+    public void clear () {
+        codesForColumn.clear();
+        codeForValue.clear();
+    }
+
+    /** @return the total number of values checked in all columns. */
+    public int size () {
+        int size = 0;
+        for (TIntSet codes : codesForColumn.values()) size += codes.size();
+        return size;
+    }
+}
@@ -0,0 +1,233 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.util.Deduplicator;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+import static com.conveyal.gtfs.model.Entity.INT_MISSING;
+
+/**
+ * Stop times stored per trip rather than per row. Most trips on a pattern stop at the same stops with the same hop and
+ * dwell times, shifted by their start time. So each trip is reduced to three ints:
+ * - a pattern: the stops of the trip with all their fields except the times (stop, stop_sequence, headsign, pickup and
+ *   drop off types, timepoint and shape_dist_traveled).
+ * - a time profile: the arrival and departure times of each stop relative to the start time of the trip.
+ * - the start time of the trip.
+ * Patterns and time profiles are deduplicated, so a feed with millions of stop times usually has thousands of each.
+ * Trips whose stop-level fields differ from those of the other trips on their pattern just get a pattern of their own.
+ *
+ * A pattern of n stop times is an array of PATTERN_FIELDS * n ints, holding n stop indexes, then n stop sequences, then
+ * n headsign indexes (-1 for none), n pickup types, n drop off types, n timepoints and finally n shape_dist_traveled
+ * values as pairs of ints. A time profile is an array of 2n ints, n arrival times then n departure times, where missing
+ * times are INT_MISSING. The same layout is used by FrozenGTFSFeed.
+ *
+ * GTFSFeed.stop_times is not stored in this form. It is a public, mutable map that loaders, overlays and callers read
+ * and write one row at a time, so it keeps one row per stop time in memory and in its MapDB file. A feed that is only
+ * read can instead be compressed with fromFeed once loaded, or written as a FrozenGTFSFeed, which stores its stop times
+ * in this form on disk.
+ *
+ * Not threadsafe while trips are being added.
+ */
+public class CompressedStopTimes {
+
+    /** The number of ints per stop time in a pattern. */
+    public static final int PATTERN_FIELDS = 8;
+
+    /** The number of ints per stop time in a time profile. */
+    public static final int PROFILE_FIELDS = 2;
+
+    private final Deduplicator deduplicator = new Deduplicator();
+
+    private final List<String> stopIds = new ArrayList<>();
+    private final Map<String, Integer> stopIndexes = new HashMap<>();
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+
+    // The deduplicator returns the same array for equal arrays, so the indexes can be looked up by identity.
+    private final List<int[]> patterns = new ArrayList<>();
+    private final Map<int[], Integer> patternIndexes = new IdentityHashMap<>();
+    private final List<int[]> profiles = new ArrayList<>();
+    private final Map<int[], Integer> profileIndexes = new IdentityHashMap<>();
+
+    /** The pattern, time profile and start time of each trip. */
+    private final Map<String, int[]> trips = new HashMap<>();
+
+    private long stopTimeCount = 0;
+
+    /** Compress the stop times of all the trips of the given feed. */
+    public static CompressedStopTimes fromFeed (GTFSFeed feed) {
+        CompressedStopTimes compressedStopTimes = new CompressedStopTimes();
+        // Number the stops in the order of the stops table, then any others in the order they are referenced.
+        for (String stopId : feed.stops.keySet()) compressedStopTimes.getStopIndex(stopId);
+        for (String tripId : feed.trips.keySet()) {
+            compressedStopTimes.addTrip(tripId, feed.getOrderedStopTimesForTrip(tripId));
+        }
+        return compressedStopTimes;
+    }
+
+    /** Add the stop times of a trip, which must be in order of stop_sequence. */
+    public void addTrip (String tripId, Iterable<StopTime> stopTimes) {
+        List<StopTime> rows = new ArrayList<>();
+        for (StopTime st : stopTimes) rows.add(st);
+        int n = rows.size();
+        int[] pattern = new int[PATTERN_FIELDS * n];
+        int[] profile = new int[PROFILE_FIELDS * n];
+        int startTime = 0;
+        for (StopTime st : rows) {
+            int time = st.arrival_time != INT_MISSING ? st.arrival_time : st.departure_time;
+            if (time != INT_MISSING) {
+                startTime = time;
+                break;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            StopTime st = rows.get(i);
+            pattern[i] = getStopIndex(st.stop_id);
+            pattern[n + i] = st.stop_sequence;
+            pattern[2 * n + i] = getStringIndex(st.stop_headsign);
+            pattern[3 * n + i] = st.pickup_type;
+            pattern[4 * n + i] = st.drop_off_type;
+            pattern[5 * n + i] = st.timepoint;
+            long distance = Double.doubleToRawLongBits(st.shape_dist_traveled);
+            pattern[6 * n + 2 * i] = (int) (distance >>> 32);
+            pattern[6 * n + 2 * i + 1] = (int) distance;
+            profile[i] = relativeTime(st.arrival_time, startTime);
+            profile[n + i] = relativeTime(st.departure_time, startTime);
+        }
+        int patternIndex = getIndex(deduplicator.deduplicateIntArray(pattern), patterns, patternIndexes);
+        int profileIndex = getIndex(deduplicator.deduplicateIntArray(profile), profiles, profileIndexes);
+        trips.put(tripId, new int[] {patternIndex, profileIndex, startTime});
+        stopTimeCount += n;
+    }
+
+    private static int relativeTime (int time, int startTime) {
+        return time == INT_MISSING ? INT_MISSING : time - startTime;
+    }
+
+    private static int getIndex (int[] array, List<int[]> arrays, Map<int[], Integer> indexes) {
+        return indexes.computeIfAbsent(array, a -> {
+            arrays.add(a);
+            return arrays.size() - 1;
+        });
+    }
+
+    /** @return the index of the given stop ID, adding it if necessary, or -1 if it is null. */
+    public int getStopIndex (String stopId) {
+        return getIndex(stopId, stopIds, stopIndexes);
+    }
+
+    private int getStringIndex (String string) {
+        return getIndex(string, strings, stringIndexes);
+    }
+
+    private static int getIndex (String string, List<String> strings, Map<String, Integer> indexes) {
+        if (string == null) return -1;
+        return indexes.computeIfAbsent(string, s -> {
+            strings.add(s);
+            return strings.size() - 1;
+        });
+    }
+
+    /**
+     * For the given trip ID, fetch all the stop times in order of increasing stop_sequence.
+     * New StopTime objects are created each time the result is iterated over.
+     */
+    public Iterable<StopTime> getOrderedStopTimesForTrip (String tripId) {
+        int[] trip = trips.get(tripId);
+        if (trip == null) return Collections.emptyList();
+        return stopTimes(tripId, IntBuffer.wrap(patterns.get(trip[0])), IntBuffer.wrap(profiles.get(trip[1])), trip[2],
+                this::getStopId, this::getString);
+    }
+
+    /**
+     * Reconstruct the stop times of a trip from its pattern and time profile, which may be arrays or mapped buffers.
+     * @param pattern a buffer holding exactly the pattern of the trip.
+     * @param profile a buffer holding the time profile of the trip, starting at index zero.
+     */
+    public static Iterable<StopTime> stopTimes (String tripId, IntBuffer pattern, IntBuffer profile, int startTime,
+                                                IntFunction<String> stopIds, IntFunction<String> strings) {
+        int n = pattern.limit() / PATTERN_FIELDS;
+        return () -> new Iterator<StopTime>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext () {
+                return i < n;
+            }
+
+            @Override
+            public StopTime next () {
+                if (!hasNext()) throw new NoSuchElementException();
+                StopTime st = new StopTime();
+                st.trip_id = tripId;
+                st.stop_id = stopIds.apply(pattern.get(i));
+                st.stop_sequence = pattern.get(n + i);
+                st.stop_headsign = strings.apply(pattern.get(2 * n + i));
+                st.pickup_type = pattern.get(3 * n + i);
+                st.drop_off_type = pattern.get(4 * n + i);
+                st.timepoint = pattern.get(5 * n + i);
+                long distance = ((long) pattern.get(6 * n + 2 * i) << 32) | (pattern.get(6 * n + 2 * i + 1) & 0xFFFFFFFFL);
+                st.shape_dist_traveled = Double.longBitsToDouble(distance);
+                st.arrival_time = absoluteTime(profile.get(i), startTime);
+                st.departure_time = absoluteTime(profile.get(n + i), startTime);
+                i++;
+                return st;
+            }
+        };
+    }
+
+    private static int absoluteTime (int relativeTime, int startTime) {
+        return relativeTime == INT_MISSING ? INT_MISSING : relativeTime + startTime;
+    }
+
+    /** @return the stop ID with the given index, or null if the index is negative. */
+    public String getStopId (int index) {
+        return index < 0 ? null : stopIds.get(index);
+    }
+
+    /** @return the headsign or other string with the given index, or null if the index is negative. */
+    public String getString (int index) {
+        return index < 0 ? null : strings.get(index);
+    }
+
+    /** @return the pattern, time profile and start time of the given trip, or null if there is no such trip. */
+    public int[] getTrip (String tripId) {
+        return trips.get(tripId);
+    }
+
+    public List<String> getStopIds () {
+        return Collections.unmodifiableList(stopIds);
+    }
+
+    public List<String> getStrings () {
+        return Collections.unmodifiableList(strings);
+    }
+
+    public List<int[]> getPatterns () {
+        return Collections.unmodifiableList(patterns);
+    }
+
+    public List<int[]> getProfiles () {
+        return Collections.unmodifiableList(profiles);
+    }
+
+    public int getTripCount () {
+        return trips.size();
+    }
+
+    public long getStopTimeCount () {
+        return stopTimeCount;
+    }
+}
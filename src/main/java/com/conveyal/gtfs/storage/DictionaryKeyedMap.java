@@ -0,0 +1,475 @@
+package com.conveyal.gtfs.storage;
+
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple2;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Presents a map keyed on primitive longs as a map keyed on (String, Integer) tuples, such as the (trip_id,
+ * stop_sequence) keys of stop_times or the (shape_id, shape_pt_sequence) keys of shape_points.
+ *
+ * The string is replaced by its code in the feed's StringDictionary and packed into the high 32 bits of the long, with
+ * the integer in the low 32 bits. This makes the keys in the underlying BTree eight bytes each rather than a copy of
+ * the ID string, and turns every key comparison into a long comparison. All the entries for one string are still
+ * contiguous and in integer order, so range queries such as subMap(t2(trip_id, null), t2(trip_id, Fun.HI)) work as
+ * before, with null and Fun.HI standing for the lowest and highest integers.
+ *
+ * Unlike a map keyed on the tuples themselves, entries with different strings are ordered by dictionary code rather
+ * than alphabetically. A string that is not in the dictionary is ordered after all the strings that are, so a range
+ * between bounds with such a string matches no entries, as no entries can have that string.
+ */
+public class DictionaryKeyedMap<K extends Tuple2, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+
+    private final ConcurrentNavigableMap<Long, V> map;
+    private final StringDictionary dictionary;
+
+    /** True if this is a descending view, in which case map is also in descending order. */
+    private final boolean descending;
+
+    public DictionaryKeyedMap (ConcurrentNavigableMap<Long, V> map, StringDictionary dictionary) {
+        this(map, dictionary, false);
+    }
+
+    private DictionaryKeyedMap (ConcurrentNavigableMap<Long, V> map, StringDictionary dictionary, boolean descending) {
+        this.map = map;
+        this.dictionary = dictionary;
+        this.descending = descending;
+    }
+
+    /** Pack a dictionary code and an integer into a long that sorts in the same order as (code, integer). */
+    public static long packKey (int code, int sequence) {
+        // Flipping the sign bit makes the unsigned order of the low 32 bits match the signed order of the integer.
+        return ((long) code << 32) | ((sequence ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Encode a tuple key, assigning a dictionary code to its string if necessary. A null string, such as the trip_id of
+     * a stop time where it is missing, is encoded as code zero, so like a null in a tuple it sorts before all others.
+     */
+    public static long encodeKey (StringDictionary dictionary, Tuple2 key) {
+        if (!(key.a == null || key.a instanceof String) || !(key.b instanceof Integer)) {
+            throw new IllegalArgumentException("Key must be a tuple of a String and an Integer: " + key);
+        }
+        return packKey(dictionary.encode((String) key.a), (Integer) key.b);
+    }
+
+    /**
+     * @return an ordering of tuple keys that matches the ordering of their encoded keys. Comparing keys assigns codes
+     * to their strings, so this ordering can be used to sort keys before they are first inserted.
+     */
+    public static Comparator<Tuple2> keyOrder (StringDictionary dictionary) {
+        return (k1, k2) -> Long.compare(encodeKey(dictionary, k1), encodeKey(dictionary, k2));
+    }
+
+    /** @return the encoded key for an existing tuple key, or null if it cannot be in this map. */
+    private Long encodeExistingKey (Object key) {
+        if (!(key instanceof Tuple2)) return null;
+        Tuple2 tuple = (Tuple2) key;
+        if (!(tuple.a == null || tuple.a instanceof String) || !(tuple.b instanceof Integer)) return null;
+        int code = dictionary.getCode((String) tuple.a);
+        if (code < 0) return null;
+        return packKey(code, (Integer) tuple.b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K decodeKey (long key) {
+        String string = dictionary.decode((int) (key >>> 32));
+        int sequence = ((int) key) ^ Integer.MIN_VALUE;
+        return (K) new Tuple2<>(string, sequence);
+    }
+
+    private Entry<K, V> decodeEntry (Entry<Long, V> entry) {
+        if (entry == null) return null;
+        return new SimpleImmutableEntry<>(decodeKey(entry.getKey()), entry.getValue());
+    }
+
+    private static <K> K keyOrNull (Entry<K, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    /**
+     * @return the lowest encoded key that is above the given tuple bound (or equal to it if inclusive), or null if no
+     * encoded key can be above it. Null and Fun.HI in either position of the tuple are the lowest and highest values.
+     */
+    private Long lowestKeyAbove (Tuple2 bound, boolean inclusive) {
+        if (bound.a == null) return Long.MIN_VALUE;
+        if (bound.a == Fun.HI) return null;
+        int code = dictionary.getCode((String) bound.a);
+        if (code <= 0) return null;
+        if (bound.b == null) return packKey(code, Integer.MIN_VALUE);
+        if (bound.b == Fun.HI) return packKey(code, Integer.MAX_VALUE) + 1;
+        long key = packKey(code, (Integer) bound.b);
+        return inclusive ? key : key + 1;
+    }
+
+    /** @return the highest encoded key that is below the given tuple bound (or equal to it if inclusive), or null. */
+    private Long highestKeyBelow (Tuple2 bound, boolean inclusive) {
+        if (bound.a == null) return null;
+        if (bound.a == Fun.HI) return Long.MAX_VALUE;
+        int code = dictionary.getCode((String) bound.a);
+        // Strings that are not in the dictionary are ordered after every key, see comparator().
+        if (code <= 0) return Long.MAX_VALUE;
+        if (bound.b == null) return packKey(code, Integer.MIN_VALUE) - 1;
+        if (bound.b == Fun.HI) return packKey(code, Integer.MAX_VALUE);
+        long key = packKey(code, (Integer) bound.b);
+        return inclusive ? key : key - 1;
+    }
+
+    /** @return the encoded bound at or after which entries come after the given key in this map's order. */
+    private Long fromBound (K key, boolean inclusive) {
+        return descending ? highestKeyBelow(key, inclusive) : lowestKeyAbove(key, inclusive);
+    }
+
+    /** @return the encoded bound at or before which entries come before the given key in this map's order. */
+    private Long toBound (K key, boolean inclusive) {
+        return descending ? lowestKeyAbove(key, inclusive) : highestKeyBelow(key, inclusive);
+    }
+
+    private DictionaryKeyedMap<K, V> view (ConcurrentNavigableMap<Long, V> subMap) {
+        return new DictionaryKeyedMap<>(subMap, dictionary, descending);
+    }
+
+    private DictionaryKeyedMap<K, V> emptyView () {
+        return view(new ConcurrentSkipListMap<>());
+    }
+
+    @Override
+    public int size () {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey (Object key) {
+        Long encoded = encodeExistingKey(key);
+        return encoded != null && map.containsKey(encoded);
+    }
+
+    @Override
+    public V get (Object key) {
+        Long encoded = encodeExistingKey(key);
+        return encoded == null ? null : map.get(encoded);
+    }
+
+    @Override
+    public V put (K key, V value) {
+        return map.put(encodeKey(dictionary, key), value);
+    }
+
+    @Override
+    public V remove (Object key) {
+        Long encoded = encodeExistingKey(key);
+        return encoded == null ? null : map.remove(encoded);
+    }
+
+    @Override
+    public void clear () {
+        map.clear();
+    }
+
+    @Override
+    public V putIfAbsent (K key, V value) {
+        return map.putIfAbsent(encodeKey(dictionary, key), value);
+    }
+
+    @Override
+    public boolean remove (Object key, Object value) {
+        Long encoded = encodeExistingKey(key);
+        return encoded != null && map.remove(encoded, value);
+    }
+
+    @Override
+    public boolean replace (K key, V oldValue, V newValue) {
+        Long encoded = encodeExistingKey(key);
+        return encoded != null && map.replace(encoded, oldValue, newValue);
+    }
+
+    @Override
+    public V replace (K key, V value) {
+        Long encoded = encodeExistingKey(key);
+        return encoded == null ? null : map.replace(encoded, value);
+    }
+
+    @Override
+    public Collection<V> values () {
+        return map.values();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet () {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator () {
+                Iterator<Entry<Long, V>> entries = map.entrySet().iterator();
+                return new Iterator<Entry<K, V>>() {
+                    @Override public boolean hasNext () { return entries.hasNext(); }
+                    @Override public Entry<K, V> next () { return decodeEntry(entries.next()); }
+                    @Override public void remove () { entries.remove(); }
+                };
+            }
+
+            @Override
+            public int size () {
+                return map.size();
+            }
+        };
+    }
+
+    /**
+     * Keys are ordered by dictionary code. Keys whose strings are not in the dictionary cannot be in this map, and are
+     * ordered after all keys that can, by string and then integer. This makes the ordering total without assigning any
+     * codes, so it can also order maps that overlay this one, such as an OverlayMap adding new trips. Null and Fun.HI
+     * are the lowest and highest values in either position of a tuple, as in range bounds.
+     */
+    @Override
+    public Comparator<? super K> comparator () {
+        Comparator<K> ascending = (k1, k2) -> {
+            int result = compareStrings(k1.a, k2.a);
+            return result != 0 ? result : compareSequences(k1.b, k2.b);
+        };
+        return descending ? ascending.reversed() : ascending;
+    }
+
+    /** @return the rank of a tuple string in the ordering of keys: below, within, after or above the dictionary. */
+    private int rank (Object string) {
+        if (string == null) return 0;
+        if (string == Fun.HI) return 3;
+        return dictionary.getCode((String) string) > 0 ? 1 : 2;
+    }
+
+    private int compareStrings (Object s1, Object s2) {
+        int r1 = rank(s1);
+        int r2 = rank(s2);
+        if (r1 != r2) return Integer.compare(r1, r2);
+        if (r1 == 1) return Integer.compare(dictionary.getCode((String) s1), dictionary.getCode((String) s2));
+        if (r1 == 2) return ((String) s1).compareTo((String) s2);
+        return 0;
+    }
+
+    private static int compareSequences (Object i1, Object i2) {
+        if (i1 == i2) return 0;
+        if (i1 == null || i2 == Fun.HI) return -1;
+        if (i2 == null || i1 == Fun.HI) return 1;
+        return Integer.compare((Integer) i1, (Integer) i2);
+    }
+
+    @Override
+    public K firstKey () {
+        return decodeKey(map.firstKey());
+    }
+
+    @Override
+    public K lastKey () {
+        return decodeKey(map.lastKey());
+    }
+
+    @Override
+    public Entry<K, V> firstEntry () {
+        return decodeEntry(map.firstEntry());
+    }
+
+    @Override
+    public Entry<K, V> lastEntry () {
+        return decodeEntry(map.lastEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry () {
+        return decodeEntry(map.pollFirstEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry () {
+        return decodeEntry(map.pollLastEntry());
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry (K key) {
+        Long bound = toBound(key, false);
+        return bound == null ? null : decodeEntry(map.floorEntry(bound));
+    }
+
+    @Override
+    public Entry<K, V> floorEntry (K key) {
+        Long bound = toBound(key, true);
+        return bound == null ? null : decodeEntry(map.floorEntry(bound));
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry (K key) {
+        Long bound = fromBound(key, true);
+        return bound == null ? null : decodeEntry(map.ceilingEntry(bound));
+    }
+
+    @Override
+    public Entry<K, V> higherEntry (K key) {
+        Long bound = fromBound(key, false);
+        return bound == null ? null : decodeEntry(map.ceilingEntry(bound));
+    }
+
+    @Override
+    public K lowerKey (K key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public K floorKey (K key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public K ceilingKey (K key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public K higherKey (K key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> subMap (K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        Long from = fromBound(fromKey, fromInclusive);
+        Long to = toBound(toKey, toInclusive);
+        if (from == null || to == null || (descending ? from < to : from > to)) return emptyView();
+        return view(map.subMap(from, true, to, true));
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> headMap (K toKey, boolean inclusive) {
+        Long to = toBound(toKey, inclusive);
+        return to == null ? emptyView() : view(map.headMap(to, true));
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> tailMap (K fromKey, boolean inclusive) {
+        Long from = fromBound(fromKey, inclusive);
+        return from == null ? emptyView() : view(map.tailMap(from, true));
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> subMap (K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> headMap (K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> tailMap (K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public DictionaryKeyedMap<K, V> descendingMap () {
+        return new DictionaryKeyedMap<>(map.descendingMap(), dictionary, !descending);
+    }
+
+    @Override
+    public NavigableSet<K> keySet () {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet () {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet () {
+        return descendingMap().navigableKeySet();
+    }
+
+    /** A view of the keys of the enclosing map, which supports removal but not addition like any map key set. */
+    private class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+        @Override
+        public Iterator<K> iterator () {
+            Iterator<Long> keys = map.keySet().iterator();
+            return new Iterator<K>() {
+                @Override public boolean hasNext () { return keys.hasNext(); }
+                @Override public K next () { return decodeKey(keys.next()); }
+                @Override public void remove () { keys.remove(); }
+            };
+        }
+
+        @Override
+        public int size () {
+            return map.size();
+        }
+
+        @Override
+        public boolean contains (Object key) {
+            return containsKey(key);
+        }
+
+        @Override
+        public boolean remove (Object key) {
+            return DictionaryKeyedMap.this.remove(key) != null;
+        }
+
+        @Override
+        public void clear () {
+            map.clear();
+        }
+
+        @Override public K lower (K key) { return lowerKey(key); }
+        @Override public K floor (K key) { return floorKey(key); }
+        @Override public K ceiling (K key) { return ceilingKey(key); }
+        @Override public K higher (K key) { return higherKey(key); }
+        @Override public K pollFirst () { return keyOrNull(pollFirstEntry()); }
+        @Override public K pollLast () { return keyOrNull(pollLastEntry()); }
+        @Override public Comparator<? super K> comparator () { return DictionaryKeyedMap.this.comparator(); }
+        @Override public K first () { return firstKey(); }
+        @Override public K last () { return lastKey(); }
+        @Override public NavigableSet<K> descendingSet () { return descendingKeySet(); }
+        @Override public Iterator<K> descendingIterator () { return descendingKeySet().iterator(); }
+
+        @Override
+        public NavigableSet<K> subSet (K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet (K toElement, boolean inclusive) {
+            return headMap(toElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet (K fromElement, boolean inclusive) {
+            return tailMap(fromElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet (K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet (K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet (K fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.conveyal.gtfs.storage;
+
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base class for compact MapDB serializers of GTFS entities. MapDB's default serializer stores each entity as a POJO
+ * with its class and field descriptions, boxed values, and every ID string in full. Subclasses instead write the fields
+ * in a fixed order as varints, with ID strings replaced by their code in the feed's StringDictionary.
+ *
+ * Every field must round-trip exactly, including the INT_MISSING and DOUBLE_MISSING placeholders and NaN.
+ *
+ * Instances are stored in the MapDB catalog, so they must be Serializable and must only hold the ID of their
+ * dictionary, not the dictionary itself.
+ */
+public abstract class EntitySerializer<T> implements Serializer<T>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Doubles with at most this many decimal places are stored as integers (coordinates have seven). */
+    private static final double FIXED_POINT_SCALE = 1e7;
+
+    private final String dictionaryId;
+
+    private transient StringDictionary dictionary;
+
+    protected EntitySerializer (String dictionaryId) {
+        this.dictionaryId = dictionaryId;
+    }
+
+    protected StringDictionary dictionary () {
+        if (dictionary == null) dictionary = StringDictionary.forId(dictionaryId);
+        return dictionary;
+    }
+
+    /** Records have variable size. */
+    @Override
+    public int fixedSize () {
+        return -1;
+    }
+
+    /** Write an ID as its code in the feed's string dictionary. */
+    protected void writeId (DataOutput out, String id) throws IOException {
+        writeVarInt(out, dictionary().encode(id));
+    }
+
+    protected String readId (DataInput in) throws IOException {
+        return dictionary().decode(readVarInt(in));
+    }
+
+    /** Write a string that is not worth adding to the dictionary, such as a description. */
+    public static void writeString (DataOutput out, String string) throws IOException {
+        if (string == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString (DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Write a non-negative int in as few bytes as possible, seven bits per byte. */
+    public static void writeVarInt (DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt (DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarLong (DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong (DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    /** Write an int that may be negative, zigzag encoded so small negative numbers are also short. */
+    public static void writeSignedVarInt (DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarInt (DataInput in) throws IOException {
+        int zigzag = readVarInt(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    public static void writeSignedVarLong (DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSignedVarLong (DataInput in) throws IOException {
+        long zigzag = readVarLong(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Write a double that usually has few decimal places, such as a coordinate or a shape_dist_traveled. If the value
+     * is exactly recovered from an integer number of ten-millionths, that integer is written as an even varint.
+     * Otherwise (NaN, infinities, more precision, huge values, negative zero) an odd marker is written followed by
+     * the raw eight bytes.
+     */
+    public static void writeFixedPointDouble (DataOutput out, double value) throws IOException {
+        double scaled = value * FIXED_POINT_SCALE;
+        if (Math.abs(scaled) < (1L << 52)) {
+            long fixed = Math.round(scaled);
+            if (Double.doubleToRawLongBits(fixed / FIXED_POINT_SCALE) == Double.doubleToRawLongBits(value)) {
+                writeSignedVarLong(out, fixed << 1);
+                return;
+            }
+        }
+        writeSignedVarLong(out, 1);
+        out.writeDouble(value);
+    }
+
+    public static double readFixedPointDouble (DataInput in) throws IOException {
+        long code = readSignedVarLong(in);
+        if ((code & 1) == 0) return (code >> 1) / FIXED_POINT_SCALE;
+        return in.readDouble();
+    }
+}
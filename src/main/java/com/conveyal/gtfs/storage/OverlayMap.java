@@ -0,0 +1,487 @@
+package com.conveyal.gtfs.storage;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import org.mapdb.Fun;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A copy-on-write view of a sorted map, such as one of the tables of a GTFSFeed. The base map is only ever read. Every
+ * insert, update and removal is recorded in a small in-memory delta, and reads merge the delta into the base in key
+ * order, so a transformed variant of a large feed costs only as much memory as its changes.
+ *
+ * The delta holds the new value of every key that has been inserted or updated, and a tombstone for every key of the
+ * base that has been removed. Lookups check the delta before the base. Iteration, range views and navigation walk the
+ * base and the delta side by side. size() is computed from the base size and the delta, so it costs a lookup in the
+ * base per change. Clearing a range of the base records a tombstone for every key in the range.
+ *
+ * The base must not be modified while it is overlaid. Reads may run concurrently with writes, and writes are
+ * serialized so that the atomic operations of ConcurrentMap hold.
+ */
+public class OverlayMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+
+    /** Marks a key of the base that has been removed in the delta. */
+    private static final Object TOMBSTONE = new Object();
+
+    private final NavigableMap<K, V> base;
+
+    /** The new values of inserted and updated keys, and TOMBSTONE for removed keys. */
+    private final ConcurrentNavigableMap<K, Object> delta;
+
+    private final Comparator<? super K> comparator;
+
+    /** The value stored for keys added through the key set, or null if keys cannot be added that way. */
+    private final V present;
+
+    /** Shared by the map and all of its views, which write to the same delta. */
+    private final Object lock;
+
+    public OverlayMap (NavigableMap<K, V> base) {
+        this(base, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private OverlayMap (NavigableMap<K, V> base, V present) {
+        this(base, null, base.comparator() != null ? base.comparator() : Fun.COMPARATOR, present, new Object());
+    }
+
+    private OverlayMap (NavigableMap<K, V> base, ConcurrentNavigableMap<K, Object> delta,
+                        Comparator<? super K> comparator, V present, Object lock) {
+        this.base = base;
+        this.delta = delta != null ? delta : new ConcurrentSkipListMap<>(comparator);
+        this.comparator = comparator;
+        this.present = present;
+        this.lock = lock;
+    }
+
+    /**
+     * @return a copy-on-write view of the given sorted set, to which elements can be added and from which they can be
+     * removed without modifying it.
+     */
+    public static <E> NavigableSet<E> overlaySet (NavigableSet<E> base) {
+        return new OverlayMap<>(Maps.asMap(base, element -> Boolean.TRUE), Boolean.TRUE).navigableKeySet();
+    }
+
+    /** @return the number of keys of this map that have been inserted, updated or removed. */
+    public int getChangeCount () {
+        return delta.size();
+    }
+
+    private OverlayMap<K, V> view (NavigableMap<K, V> baseView, ConcurrentNavigableMap<K, Object> deltaView) {
+        return new OverlayMap<>(baseView, deltaView, comparator, present, lock);
+    }
+
+    @Override
+    public int size () {
+        int size = base.size();
+        for (Entry<K, Object> change : delta.entrySet()) {
+            boolean inBase = base.containsKey(change.getKey());
+            if (change.getValue() == TOMBSTONE) {
+                if (inBase) size--;
+            } else if (!inBase) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return !new MergingIterator().hasNext();
+    }
+
+    @Override
+    public boolean containsKey (Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get (Object key) {
+        Object change = delta.get(key);
+        if (change == TOMBSTONE) return null;
+        if (change != null) return (V) change;
+        return base.get(key);
+    }
+
+    @Override
+    public V put (K key, V value) {
+        Objects.requireNonNull(value);
+        synchronized (lock) {
+            V previous = get(key);
+            delta.put(key, value);
+            return previous;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove (Object key) {
+        synchronized (lock) {
+            V previous = get(key);
+            if (previous != null) {
+                // Keys that are only in the delta can simply be dropped from it.
+                if (base.containsKey(key)) delta.put((K) key, TOMBSTONE);
+                else delta.remove(key);
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public void clear () {
+        synchronized (lock) {
+            delta.clear();
+            for (K key : base.keySet()) delta.put(key, TOMBSTONE);
+        }
+    }
+
+    @Override
+    public V putIfAbsent (K key, V value) {
+        Objects.requireNonNull(value);
+        synchronized (lock) {
+            V previous = get(key);
+            if (previous == null) delta.put(key, value);
+            return previous;
+        }
+    }
+
+    @Override
+    public boolean remove (Object key, Object value) {
+        synchronized (lock) {
+            V current = get(key);
+            if (current == null || !current.equals(value)) return false;
+            remove(key);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean replace (K key, V oldValue, V newValue) {
+        Objects.requireNonNull(newValue);
+        synchronized (lock) {
+            V current = get(key);
+            if (current == null || !current.equals(oldValue)) return false;
+            delta.put(key, newValue);
+            return true;
+        }
+    }
+
+    @Override
+    public V replace (K key, V value) {
+        Objects.requireNonNull(value);
+        synchronized (lock) {
+            V current = get(key);
+            if (current != null) delta.put(key, value);
+            return current;
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet () {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator () {
+                return new MergingIterator();
+            }
+
+            @Override
+            public int size () {
+                return OverlayMap.this.size();
+            }
+        };
+    }
+
+    /** Walks the base and the delta side by side, letting changes in the delta override entries of the base. */
+    private class MergingIterator implements Iterator<Entry<K, V>> {
+
+        private final PeekingIterator<Entry<K, V>> baseEntries = Iterators.peekingIterator(base.entrySet().iterator());
+        private final PeekingIterator<Entry<K, Object>> changes =
+                Iterators.peekingIterator(delta.entrySet().iterator());
+
+        private Entry<K, V> next;
+        private K lastKey;
+
+        @SuppressWarnings("unchecked")
+        private void advance () {
+            while (next == null && (baseEntries.hasNext() || changes.hasNext())) {
+                int order;
+                if (!changes.hasNext()) order = -1;
+                else if (!baseEntries.hasNext()) order = 1;
+                else order = comparator.compare(baseEntries.peek().getKey(), changes.peek().getKey());
+
+                if (order < 0) {
+                    Entry<K, V> entry = baseEntries.next();
+                    // Copy the entry so that it cannot be used to write to the base.
+                    next = new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                } else {
+                    // A change to a key of the base replaces its entry.
+                    if (order == 0) baseEntries.next();
+                    Entry<K, Object> change = changes.next();
+                    if (change.getValue() != TOMBSTONE) {
+                        next = new SimpleImmutableEntry<>(change.getKey(), (V) change.getValue());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext () {
+            advance();
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next () {
+            if (!hasNext()) throw new NoSuchElementException();
+            Entry<K, V> entry = next;
+            next = null;
+            lastKey = entry.getKey();
+            return entry;
+        }
+
+        @Override
+        public void remove () {
+            if (lastKey == null) throw new IllegalStateException();
+            OverlayMap.this.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    @Override
+    public Comparator<? super K> comparator () {
+        return comparator;
+    }
+
+    private static <K> K keyOrNull (Entry<K, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static <K> K keyOrThrow (Entry<K, ?> entry) {
+        if (entry == null) throw new NoSuchElementException();
+        return entry.getKey();
+    }
+
+    @Override
+    public Entry<K, V> firstEntry () {
+        Iterator<Entry<K, V>> entries = new MergingIterator();
+        return entries.hasNext() ? entries.next() : null;
+    }
+
+    @Override
+    public Entry<K, V> lastEntry () {
+        return descendingMap().firstEntry();
+    }
+
+    @Override
+    public K firstKey () {
+        return keyOrThrow(firstEntry());
+    }
+
+    @Override
+    public K lastKey () {
+        return keyOrThrow(lastEntry());
+    }
+
+    @Override
+    public Entry<K, V> pollFirstEntry () {
+        synchronized (lock) {
+            Entry<K, V> entry = firstEntry();
+            if (entry != null) remove(entry.getKey());
+            return entry;
+        }
+    }
+
+    @Override
+    public Entry<K, V> pollLastEntry () {
+        return descendingMap().pollFirstEntry();
+    }
+
+    @Override
+    public Entry<K, V> lowerEntry (K key) {
+        return headMap(key, false).lastEntry();
+    }
+
+    @Override
+    public Entry<K, V> floorEntry (K key) {
+        return headMap(key, true).lastEntry();
+    }
+
+    @Override
+    public Entry<K, V> ceilingEntry (K key) {
+        return tailMap(key, true).firstEntry();
+    }
+
+    @Override
+    public Entry<K, V> higherEntry (K key) {
+        return tailMap(key, false).firstEntry();
+    }
+
+    @Override
+    public K lowerKey (K key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public K floorKey (K key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public K ceilingKey (K key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public K higherKey (K key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public OverlayMap<K, V> subMap (K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return view(base.subMap(fromKey, fromInclusive, toKey, toInclusive),
+                delta.subMap(fromKey, fromInclusive, toKey, toInclusive));
+    }
+
+    @Override
+    public OverlayMap<K, V> headMap (K toKey, boolean inclusive) {
+        return view(base.headMap(toKey, inclusive), delta.headMap(toKey, inclusive));
+    }
+
+    @Override
+    public OverlayMap<K, V> tailMap (K fromKey, boolean inclusive) {
+        return view(base.tailMap(fromKey, inclusive), delta.tailMap(fromKey, inclusive));
+    }
+
+    @Override
+    public OverlayMap<K, V> subMap (K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public OverlayMap<K, V> headMap (K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public OverlayMap<K, V> tailMap (K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public OverlayMap<K, V> descendingMap () {
+        return new OverlayMap<>(base.descendingMap(), delta.descendingMap(), Collections.reverseOrder(comparator),
+                present, lock);
+    }
+
+    @Override
+    public NavigableSet<K> keySet () {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet () {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet () {
+        return descendingMap().navigableKeySet();
+    }
+
+    /** A view of the keys of the enclosing map. Keys can only be added to it if the map is an overlay of a set. */
+    private class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+        @Override
+        public Iterator<K> iterator () {
+            Iterator<Entry<K, V>> entries = new MergingIterator();
+            return new Iterator<K>() {
+                @Override public boolean hasNext () { return entries.hasNext(); }
+                @Override public K next () { return entries.next().getKey(); }
+                @Override public void remove () { entries.remove(); }
+            };
+        }
+
+        @Override
+        public int size () {
+            return OverlayMap.this.size();
+        }
+
+        @Override
+        public boolean contains (Object key) {
+            return containsKey(key);
+        }
+
+        @Override
+        public boolean add (K key) {
+            if (present == null) throw new UnsupportedOperationException();
+            return putIfAbsent(key, present) == null;
+        }
+
+        @Override
+        public boolean remove (Object key) {
+            return OverlayMap.this.remove(key) != null;
+        }
+
+        @Override
+        public void clear () {
+            OverlayMap.this.clear();
+        }
+
+        @Override public K lower (K key) { return lowerKey(key); }
+        @Override public K floor (K key) { return floorKey(key); }
+        @Override public K ceiling (K key) { return ceilingKey(key); }
+        @Override public K higher (K key) { return higherKey(key); }
+        @Override public K pollFirst () { return keyOrNull(pollFirstEntry()); }
+        @Override public K pollLast () { return keyOrNull(pollLastEntry()); }
+        @Override public Comparator<? super K> comparator () { return OverlayMap.this.comparator(); }
+        @Override public K first () { return firstKey(); }
+        @Override public K last () { return lastKey(); }
+        @Override public NavigableSet<K> descendingSet () { return descendingKeySet(); }
+        @Override public Iterator<K> descendingIterator () { return descendingKeySet().iterator(); }
+
+        @Override
+        public NavigableSet<K> subSet (K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+            return subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet (K toElement, boolean inclusive) {
+            return headMap(toElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet (K fromElement, boolean inclusive) {
+            return tailMap(fromElement, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet (K fromElement, K toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet (K toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet (K fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
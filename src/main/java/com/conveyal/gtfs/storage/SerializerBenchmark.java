@@ -0,0 +1,98 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.GTFSFeed;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compares the size and decode time of the compact entity serializers with the MapDB default POJO serializer used
+ * before, over the largest tables of a real feed. Sizes are of the records before MapDB compresses them.
+ *
+ * Usage: SerializerBenchmark feed.zip
+ */
+public class SerializerBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SerializerBenchmark.class);
+
+    private static final int DECODE_ITERATIONS = 5;
+
+    /**
+     * Small tables are decoded repeatedly within each iteration until at least this many records have been decoded,
+     * so that their timings are not dominated by JIT warm-up and timer resolution.
+     */
+    private static final int MIN_RECORDS_PER_ITERATION = 1_000_000;
+
+    public static void main (String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Please specify a GTFS feed to load.");
+            System.exit(1);
+        }
+        GTFSFeed feed = GTFSFeed.fromFile(args[0]);
+        DB pojoDb = DBMaker.newMemoryDB().transactionDisable().make();
+        Serializer pojo = pojoDb.getDefaultSerializer();
+        StringDictionary dictionary = StringDictionary.open(DBMaker.newMemoryDB().transactionDisable().make());
+        String id = dictionary.dictionaryId;
+
+        compare("stop_times", feed.stop_times.values(), pojo, new StopTimeSerializer(id));
+        compare("shape_points", feed.shape_points.values(), pojo, new ShapePointSerializer(id));
+        compare("trips", feed.trips.values(), pojo, new TripSerializer(id));
+        compare("stops", feed.stops.values(), pojo, new StopSerializer(id));
+
+        dictionary.close();
+        pojoDb.close();
+        feed.close();
+    }
+
+    private static <T> void compare (String table, Collection<T> entities, Serializer<T> pojo, Serializer<T> compact)
+            throws IOException {
+        List<T> values = new ArrayList<>(entities);
+        if (values.isEmpty()) return;
+        Result pojoResult = measure(values, pojo);
+        Result compactResult = measure(values, compact);
+        LOG.info("{}: {} entities, default {} bytes and {} ns per entity, compact {} bytes and {} ns per entity",
+                table, values.size(),
+                String.format("%.1f", pojoResult.bytesPerEntity), String.format("%.0f", pojoResult.nanosPerEntity),
+                String.format("%.1f", compactResult.bytesPerEntity), String.format("%.0f", compactResult.nanosPerEntity));
+    }
+
+    private static <T> Result measure (List<T> values, Serializer<T> serializer) throws IOException {
+        List<byte[]> records = new ArrayList<>(values.size());
+        long bytes = 0;
+        for (T value : values) {
+            DataOutput2 out = new DataOutput2();
+            serializer.serialize(out, value);
+            byte[] record = out.copyBytes();
+            records.add(record);
+            bytes += record.length;
+        }
+        int passes = Math.max(1, MIN_RECORDS_PER_ITERATION / records.size());
+        // The first iteration warms up the JIT and is not counted.
+        long elapsed = 0;
+        for (int i = 0; i <= DECODE_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                for (byte[] record : records) serializer.deserialize(new DataInput2(record), record.length);
+            }
+            if (i > 0) elapsed += System.nanoTime() - start;
+        }
+        Result result = new Result();
+        result.bytesPerEntity = (double) bytes / values.size();
+        result.nanosPerEntity = (double) elapsed / DECODE_ITERATIONS / passes / values.size();
+        return result;
+    }
+
+    private static class Result {
+        double bytesPerEntity;
+        double nanosPerEntity;
+    }
+}
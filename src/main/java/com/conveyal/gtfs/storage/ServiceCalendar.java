@@ -0,0 +1,161 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.Calendar;
+import com.conveyal.gtfs.model.Service;
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.gtfs.util.Deduplicator;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The days on which each service of a feed is active, evaluated once over the whole date range of the feed rather than
+ * by calling Service.activeOn for every date, and an index of the trips running on each date.
+ *
+ * Each service is compiled into a BitSet with one bit per day from the first date mentioned in calendar or
+ * calendar_dates to the last. Services with the same active days share one deduplicated BitSet, and the trips are
+ * grouped by the BitSet of their service, so a date maps to the few groups active on it rather than to every trip.
+ *
+ * This is a snapshot of the services and trips it was built from. It is immutable and so is threadsafe.
+ */
+public class ServiceCalendar {
+
+    /** The date of bit zero of every BitSet, or null if the feed has no dates at all. */
+    private final LocalDate firstDate;
+
+    private final int nDays;
+
+    /** The active days of each service. Services with the same active days share one instance. */
+    private final Map<String, BitSet> activeDaysForService = new HashMap<>();
+
+    /** The IDs of the trips whose services are active on exactly the days in the BitSet of the same index. */
+    private final List<List<String>> tripsForGroup = new ArrayList<>();
+
+    /** For each day, the indexes of the groups of trips running on that day. */
+    private final int[][] groupsForDay;
+
+    private final int tripCount;
+
+    public ServiceCalendar (Iterable<Service> services, Iterable<Trip> trips) {
+        LocalDate firstDate = null;
+        LocalDate lastDate = null;
+        for (Service service : services) {
+            if (hasDates(service.calendar)) {
+                firstDate = min(firstDate, service.calendar.start_date);
+                lastDate = max(lastDate, service.calendar.end_date);
+            }
+            for (LocalDate date : service.calendar_dates.keySet()) {
+                firstDate = min(firstDate, date);
+                lastDate = max(lastDate, date);
+            }
+        }
+        this.firstDate = firstDate;
+        this.nDays = firstDate == null ? 0 : (int) ChronoUnit.DAYS.between(firstDate, lastDate) + 1;
+
+        Deduplicator deduplicator = new Deduplicator();
+        for (Service service : services) {
+            BitSet activeDays = nDays == 0 ? new BitSet() : service.activeDays(firstDate, nDays);
+            activeDaysForService.put(service.service_id, deduplicator.deduplicateBitSet(activeDays));
+        }
+
+        // Deduplicated BitSets can be compared by identity.
+        List<BitSet> daysForGroup = new ArrayList<>();
+        Map<BitSet, Integer> groupIndexes = new IdentityHashMap<>();
+        int tripCount = 0;
+        for (Trip trip : trips) {
+            BitSet activeDays = activeDaysForService.get(trip.service_id);
+            // Trips whose service is missing or never active never run.
+            if (activeDays == null || activeDays.isEmpty()) continue;
+            int group = groupIndexes.computeIfAbsent(activeDays, days -> {
+                daysForGroup.add(days);
+                tripsForGroup.add(new ArrayList<>());
+                return daysForGroup.size() - 1;
+            });
+            tripsForGroup.get(group).add(trip.trip_id);
+            tripCount++;
+        }
+        this.tripCount = tripCount;
+
+        groupsForDay = new int[nDays][];
+        for (int day = 0; day < nDays; day++) {
+            int nGroups = 0;
+            int[] groups = new int[daysForGroup.size()];
+            for (int group = 0; group < daysForGroup.size(); group++) {
+                if (daysForGroup.get(group).get(day)) groups[nGroups++] = group;
+            }
+            groupsForDay[day] = nGroups == groups.length ? groups : Arrays.copyOf(groups, nGroups);
+        }
+    }
+
+    /**
+     * @return whether the given calendar has both of its dates, in order. A calendar whose dates could not be parsed,
+     * or that ends before it starts, is never active, leaving only the calendar_dates of its service, see
+     * Service.activeDays. Including it would make the range of the feed end before it starts.
+     */
+    private static boolean hasDates (Calendar calendar) {
+        return calendar != null && calendar.start_date != null && calendar.end_date != null
+                && !calendar.end_date.isBefore(calendar.start_date);
+    }
+
+    private static LocalDate min (LocalDate a, LocalDate b) {
+        return a == null || b.isBefore(a) ? b : a;
+    }
+
+    private static LocalDate max (LocalDate a, LocalDate b) {
+        return a == null || b.isAfter(a) ? b : a;
+    }
+
+    /** @return the first date on which any service may be active, or null if the feed has no dates. */
+    public LocalDate getFirstDate () {
+        return firstDate;
+    }
+
+    /** @return the last date on which any service may be active, or null if the feed has no dates. */
+    public LocalDate getLastDate () {
+        return firstDate == null ? null : firstDate.plusDays(nDays - 1);
+    }
+
+    /** @return the index of the given date in the BitSets of this calendar, or -1 if it is outside the feed. */
+    public int getDayIndex (LocalDate date) {
+        if (firstDate == null) return -1;
+        long day = ChronoUnit.DAYS.between(firstDate, date);
+        return day >= 0 && day < nDays ? (int) day : -1;
+    }
+
+    /** @return whether the given service is active on the given date, as Service.activeOn would answer. */
+    public boolean activeOn (String serviceId, LocalDate date) {
+        BitSet activeDays = activeDaysForService.get(serviceId);
+        int day = getDayIndex(date);
+        return activeDays != null && day >= 0 && activeDays.get(day);
+    }
+
+    /**
+     * @return the days on which the given service is active, where bit i is the i-th day after getFirstDate(), or
+     * null if there is no such service. The BitSet may be shared with other services and must not be modified.
+     */
+    public BitSet getActiveDays (String serviceId) {
+        return activeDaysForService.get(serviceId);
+    }
+
+    /** @return the IDs of the trips running on the given date, grouped by the active days of their services. */
+    public List<String> getTripsOnDate (LocalDate date) {
+        int day = getDayIndex(date);
+        if (day < 0) return Collections.emptyList();
+        List<String> tripIds = new ArrayList<>();
+        for (int group : groupsForDay[day]) tripIds.addAll(tripsForGroup.get(group));
+        return tripIds;
+    }
+
+    /** @return the number of trips that run on at least one day. */
+    public int getTripCount () {
+        return tripCount;
+    }
+}
@@ -0,0 +1,42 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.ShapePoint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact MapDB serializer for ShapePoints. Coordinates with seven or fewer decimal places are stored as integers.
+ */
+public class ShapePointSerializer extends EntitySerializer<ShapePoint> {
+
+    private static final long serialVersionUID = 1L;
+
+    public ShapePointSerializer (String dictionaryId) {
+        super(dictionaryId);
+    }
+
+    @Override
+    public void serialize (DataOutput out, ShapePoint point) throws IOException {
+        writeSignedVarInt(out, point.id);
+        writeId(out, point.shape_id);
+        writeFixedPointDouble(out, point.shape_pt_lat);
+        writeFixedPointDouble(out, point.shape_pt_lon);
+        writeSignedVarInt(out, point.shape_pt_sequence);
+        writeFixedPointDouble(out, point.shape_dist_traveled);
+    }
+
+    @Override
+    public ShapePoint deserialize (DataInput in, int available) throws IOException {
+        int id = readSignedVarInt(in);
+        String shapeId = readId(in);
+        double lat = readFixedPointDouble(in);
+        double lon = readFixedPointDouble(in);
+        int sequence = readSignedVarInt(in);
+        double distTraveled = readFixedPointDouble(in);
+        ShapePoint point = new ShapePoint(shapeId, lat, lon, sequence, distTraveled);
+        point.id = id;
+        return point;
+    }
+}
@@ -0,0 +1,257 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.TripInstanceIterator;
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.conveyal.gtfs.model.Entity.INT_MISSING;
+
+/**
+ * The departures from each stop of a feed, so that a departure board is a binary search rather than a scan of all the
+ * stop times. For each stop, the departure times of the scheduled trips are held sorted in a primitive int array
+ * alongside the trip and stop sequence of each departure. The service of each trip is checked against a
+ * ServiceCalendar at query time, so the index does not depend on the calendars.
+ *
+ * Trips defined by frequencies are held separately for each stop, as the offset of the departure from the start of the
+ * trip, and their departures are generated from the frequency entries at query time. Trips start at the same time as
+ * in TripInstanceIterator, their first departure, so the departures match the instances of each trip.
+ *
+ * This is Serializable so that it can be stored alongside the feed and reloaded without being rebuilt. It is immutable
+ * once built and so is threadsafe.
+ */
+public class StopDepartureIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] tripIds;
+
+    /** The index in serviceIds of the service of each trip. */
+    private final int[] serviceForTrip;
+
+    private final String[] serviceIds;
+
+    /** The start, end and headway of each frequency entry of each trip, or null for scheduled trips. */
+    private final int[][] frequenciesForTrip;
+
+    private final Map<String, StopDepartures> departuresForStop;
+
+    private StopDepartureIndex (Builder builder) {
+        this.tripIds = builder.tripIds.toArray(new String[0]);
+        this.serviceForTrip = builder.serviceForTrip.toArray();
+        this.serviceIds = builder.serviceIds.toArray(new String[0]);
+        this.frequenciesForTrip = builder.frequenciesForTrip.toArray(new int[0][]);
+        this.departuresForStop = new HashMap<>();
+        builder.departuresForStop.forEach((stopId, departures) ->
+                departuresForStop.put(stopId, departures.build()));
+    }
+
+    /**
+     * @param fromSeconds the earliest departure time, inclusive, in seconds after noon minus 12 hours on the given
+     * service day.
+     * @param toSeconds the latest departure time, exclusive.
+     * @return the departures from the given stop on the given service day within the given times, in order of
+     * departure time. Departures after midnight of trips that belong to the previous service day are only found by
+     * querying that day with times of 24 hours or more.
+     */
+    public List<Departure> getDepartures (String stopId, LocalDate date, int fromSeconds, int toSeconds,
+                                          ServiceCalendar serviceCalendar) {
+        StopDepartures departures = departuresForStop.get(stopId);
+        int day = serviceCalendar.getDayIndex(date);
+        if (departures == null || day < 0 || fromSeconds >= toSeconds) return Collections.emptyList();
+        // Whether each service runs on the day, looked up only for the services that are actually encountered.
+        Boolean[] serviceRuns = new Boolean[serviceIds.length];
+
+        List<Departure> result = new ArrayList<>();
+        int start = lowerBound(departures.times, fromSeconds);
+        for (int i = start; i < departures.times.length && departures.times[i] < toSeconds; i++) {
+            int trip = departures.trips[i];
+            if (runs(trip, day, serviceRuns, serviceCalendar)) {
+                result.add(new Departure(tripIds[trip], departures.stopSequences[i], departures.times[i]));
+            }
+        }
+
+        if (departures.frequencyTrips.length > 0) {
+            for (int i = 0; i < departures.frequencyTrips.length; i++) {
+                int trip = departures.frequencyTrips[i];
+                if (!runs(trip, day, serviceRuns, serviceCalendar)) continue;
+                int offset = departures.frequencyOffsets[i];
+                int[] frequencies = frequenciesForTrip[trip];
+                for (int f = 0; f < frequencies.length; f += 3) {
+                    int startTime = frequencies[f];
+                    int endTime = frequencies[f + 1];
+                    int headway = frequencies[f + 2];
+                    long tripStart = TripInstanceIterator.firstStartAtOrAfter(startTime, headway,
+                            (long) fromSeconds - offset);
+                    for (; tripStart < endTime && tripStart + offset < toSeconds; tripStart += headway) {
+                        result.add(new Departure(tripIds[trip], departures.frequencyStopSequences[i],
+                                (int) tripStart + offset));
+                    }
+                }
+            }
+            result.sort(Comparator.comparingInt(departure -> departure.departure_time));
+        }
+        return result;
+    }
+
+    private boolean runs (int trip, int day, Boolean[] serviceRuns, ServiceCalendar serviceCalendar) {
+        int service = serviceForTrip[trip];
+        if (serviceRuns[service] == null) {
+            BitSet activeDays = serviceCalendar.getActiveDays(serviceIds[service]);
+            serviceRuns[service] = activeDays != null && activeDays.get(day);
+        }
+        return serviceRuns[service];
+    }
+
+    /** @return the index of the first element of the sorted array that is not less than the key. */
+    private static int lowerBound (int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /** @return the number of stops with any departures. */
+    public int getStopCount () {
+        return departuresForStop.size();
+    }
+
+    /** A departure of a trip from a stop, at a time in seconds on the service day that was queried. */
+    public static class Departure implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String trip_id;
+        public final int stop_sequence;
+        public final int departure_time;
+
+        public Departure (String trip_id, int stop_sequence, int departure_time) {
+            this.trip_id = trip_id;
+            this.stop_sequence = stop_sequence;
+            this.departure_time = departure_time;
+        }
+
+        @Override
+        public String toString () {
+            return String.format("Departure of trip %s at %d (stop_sequence %d)", trip_id, departure_time, stop_sequence);
+        }
+    }
+
+    /** The departures from one stop, scheduled trips sorted by time followed by the trips defined by frequencies. */
+    private static class StopDepartures implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int[] times;
+        final int[] trips;
+        final int[] stopSequences;
+
+        final int[] frequencyTrips;
+        final int[] frequencyOffsets;
+        final int[] frequencyStopSequences;
+
+        StopDepartures (int[] times, int[] trips, int[] stopSequences, int[] frequencyTrips, int[] frequencyOffsets,
+                        int[] frequencyStopSequences) {
+            this.times = times;
+            this.trips = trips;
+            this.stopSequences = stopSequences;
+            this.frequencyTrips = frequencyTrips;
+            this.frequencyOffsets = frequencyOffsets;
+            this.frequencyStopSequences = frequencyStopSequences;
+        }
+    }
+
+    /** Collects the departures of each trip in turn. Not threadsafe. */
+    public static class Builder {
+
+        private final List<String> tripIds = new ArrayList<>();
+        private final TIntList serviceForTrip = new TIntArrayList();
+        private final List<String> serviceIds = new ArrayList<>();
+        private final Map<String, Integer> serviceIndexes = new HashMap<>();
+        private final List<int[]> frequenciesForTrip = new ArrayList<>();
+        private final Map<String, StopDeparturesBuilder> departuresForStop = new HashMap<>();
+
+        /**
+         * Add the departures of a trip. Stop times without any time are skipped, so stop times should be interpolated
+         * beforehand where possible.
+         * @param stopTimes the stop times of the trip, in order of stop_sequence.
+         * @param frequencies the frequency entries of the trip, empty if it is a scheduled trip.
+         */
+        public void addTrip (Trip trip, List<StopTime> stopTimes, Collection<Frequency> frequencies) {
+            if (stopTimes.isEmpty()) return;
+            int tripIndex = tripIds.size();
+            tripIds.add(trip.trip_id);
+            serviceForTrip.add(serviceIndexes.computeIfAbsent(trip.service_id, serviceId -> {
+                serviceIds.add(serviceId);
+                return serviceIds.size() - 1;
+            }));
+            int[] tripFrequencies = null;
+            if (!frequencies.isEmpty()) tripFrequencies = TripInstanceIterator.getFrequencyWindows(frequencies);
+            frequenciesForTrip.add(tripFrequencies);
+
+            int tripStart = TripInstanceIterator.getTripStart(stopTimes);
+            for (StopTime st : stopTimes) {
+                int time = st.departure_time != INT_MISSING ? st.departure_time : st.arrival_time;
+                if (time == INT_MISSING) continue;
+                StopDeparturesBuilder departures =
+                        departuresForStop.computeIfAbsent(st.stop_id, stopId -> new StopDeparturesBuilder());
+                if (tripFrequencies == null) {
+                    departures.times.add(time);
+                    departures.trips.add(tripIndex);
+                    departures.stopSequences.add(st.stop_sequence);
+                } else {
+                    departures.frequencyTrips.add(tripIndex);
+                    departures.frequencyOffsets.add(time - tripStart);
+                    departures.frequencyStopSequences.add(st.stop_sequence);
+                }
+            }
+        }
+
+        public StopDepartureIndex build () {
+            return new StopDepartureIndex(this);
+        }
+    }
+
+    private static class StopDeparturesBuilder {
+        final TIntList times = new TIntArrayList();
+        final TIntList trips = new TIntArrayList();
+        final TIntList stopSequences = new TIntArrayList();
+        final TIntList frequencyTrips = new TIntArrayList();
+        final TIntList frequencyOffsets = new TIntArrayList();
+        final TIntList frequencyStopSequences = new TIntArrayList();
+
+        StopDepartures build () {
+            // Sort the departures by time, packing the time and the position of each into one long.
+            long[] order = new long[times.size()];
+            for (int i = 0; i < order.length; i++) order[i] = ((long) times.get(i) << 32) | i;
+            Arrays.sort(order);
+            int[] sortedTimes = new int[order.length];
+            int[] sortedTrips = new int[order.length];
+            int[] sortedStopSequences = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                int position = (int) order[i];
+                sortedTimes[i] = times.get(position);
+                sortedTrips[i] = trips.get(position);
+                sortedStopSequences[i] = stopSequences.get(position);
+            }
+            return new StopDepartures(sortedTimes, sortedTrips, sortedStopSequences, frequencyTrips.toArray(),
+                    frequencyOffsets.toArray(), frequencyStopSequences.toArray());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.Stop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Compact MapDB serializer for Stops. IDs are stored as dictionary codes, while names and descriptions, which rarely
+ * repeat, are stored as plain UTF-8.
+ */
+public class StopSerializer extends EntitySerializer<Stop> {
+
+    private static final long serialVersionUID = 1L;
+
+    public StopSerializer (String dictionaryId) {
+        super(dictionaryId);
+    }
+
+    @Override
+    public void serialize (DataOutput out, Stop stop) throws IOException {
+        writeSignedVarInt(out, stop.id);
+        writeId(out, stop.stop_id);
+        writeString(out, stop.stop_code);
+        writeString(out, stop.stop_name);
+        writeString(out, stop.stop_desc);
+        writeFixedPointDouble(out, stop.stop_lat);
+        writeFixedPointDouble(out, stop.stop_lon);
+        writeId(out, stop.zone_id);
+        writeString(out, stop.stop_url == null ? null : stop.stop_url.toString());
+        writeSignedVarInt(out, stop.location_type);
+        writeId(out, stop.parent_station);
+        writeId(out, stop.stop_timezone);
+        writeId(out, stop.wheelchair_boarding);
+        writeId(out, stop.feed_id);
+    }
+
+    @Override
+    public Stop deserialize (DataInput in, int available) throws IOException {
+        Stop stop = new Stop();
+        stop.id = readSignedVarInt(in);
+        stop.stop_id = readId(in);
+        stop.stop_code = readString(in);
+        stop.stop_name = readString(in);
+        stop.stop_desc = readString(in);
+        stop.stop_lat = readFixedPointDouble(in);
+        stop.stop_lon = readFixedPointDouble(in);
+        stop.zone_id = readId(in);
+        String url = readString(in);
+        // The URL was valid when it was loaded, so it can be parsed again.
+        stop.stop_url = url == null ? null : new URL(url);
+        stop.location_type = readSignedVarInt(in);
+        stop.parent_station = readId(in);
+        stop.stop_timezone = readId(in);
+        stop.wheelchair_boarding = readId(in);
+        stop.feed_id = readId(in);
+        return stop;
+    }
+}
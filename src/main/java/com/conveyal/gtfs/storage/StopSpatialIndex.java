@@ -0,0 +1,143 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.Stop;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A spatial index of the stops of a feed, answering radius and k-nearest queries in meters. Stops are indexed by
+ * longitude (x) and latitude (y), and the candidates found in the bounding box of a query are filtered and ordered by
+ * their great-circle distance, so results are exact rather than approximated in degrees.
+ *
+ * This is Serializable so that it can be stored alongside the feed and reloaded without being rebuilt. Only the IDs and
+ * coordinates of the stops are kept, not the Stop objects. It is immutable once built and so is threadsafe.
+ */
+public class StopSpatialIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The mean radius of the earth. */
+    private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+    /** No two points on earth are further apart than this, so a search of this radius finds every stop. */
+    private static final double MAX_DISTANCE_METERS = Math.PI * EARTH_RADIUS_METERS;
+
+    /** The radius of the first search for the nearest stops, which is widened until enough stops are found. */
+    private static final double INITIAL_SEARCH_RADIUS_METERS = 500;
+
+    private final STRtree tree = new STRtree();
+
+    private final int size;
+
+    /** Build an index of the given stops. Stops without coordinates are not indexed. */
+    public StopSpatialIndex (Iterable<Stop> stops) {
+        int size = 0;
+        for (Stop stop : stops) {
+            if (Double.isNaN(stop.stop_lat) || Double.isNaN(stop.stop_lon)) continue;
+            tree.insert(new Envelope(new Coordinate(stop.stop_lon, stop.stop_lat)), new IndexedStop(stop));
+            size++;
+        }
+        tree.build();
+        this.size = size;
+    }
+
+    /** @return the number of stops in this index. */
+    public int size () {
+        return size;
+    }
+
+    /** @return the IDs of the stops within the given distance of the given point, nearest first. */
+    public List<String> findStopsWithinMeters (double lat, double lon, double radiusMeters) {
+        return stopIds(findStops(lat, lon, radiusMeters));
+    }
+
+    /** @return the IDs of the k stops nearest to the given point (or all of them if there are fewer), nearest first. */
+    public List<String> nearestStops (double lat, double lon, int k) {
+        if (k <= 0) return new ArrayList<>();
+        double radiusMeters = INITIAL_SEARCH_RADIUS_METERS;
+        while (true) {
+            List<StopDistance> stops = findStops(lat, lon, radiusMeters);
+            // Every stop outside the radius is further away than every stop inside it.
+            if (stops.size() >= k || radiusMeters >= MAX_DISTANCE_METERS) {
+                return stopIds(stops.subList(0, Math.min(k, stops.size())));
+            }
+            radiusMeters *= 4;
+        }
+    }
+
+    private List<StopDistance> findStops (double lat, double lon, double radiusMeters) {
+        List<StopDistance> stops = new ArrayList<>();
+        for (Object item : tree.query(boundingBox(lat, lon, radiusMeters))) {
+            IndexedStop stop = (IndexedStop) item;
+            double distance = distanceMeters(lat, lon, stop.lat, stop.lon);
+            if (distance <= radiusMeters) stops.add(new StopDistance(stop.stopId, distance));
+        }
+        stops.sort(Comparator.comparingDouble(stop -> stop.distance));
+        return stops;
+    }
+
+    private static List<String> stopIds (List<StopDistance> stops) {
+        return stops.stream().map(stop -> stop.stopId).collect(Collectors.toList());
+    }
+
+    /**
+     * @return a box in degrees that contains every point within the given distance of the given point. This widens to
+     * all longitudes when the circle contains a pole or crosses the antimeridian.
+     */
+    private static Envelope boundingBox (double lat, double lon, double radiusMeters) {
+        double angularRadius = radiusMeters / EARTH_RADIUS_METERS;
+        double minLat = lat - Math.toDegrees(angularRadius);
+        double maxLat = lat + Math.toDegrees(angularRadius);
+        double minLon = -180;
+        double maxLon = 180;
+        if (minLat > -90 && maxLat < 90) {
+            double deltaLon = Math.toDegrees(Math.asin(Math.sin(angularRadius) / Math.cos(Math.toRadians(lat))));
+            if (lon - deltaLon >= -180 && lon + deltaLon <= 180) {
+                minLon = lon - deltaLon;
+                maxLon = lon + deltaLon;
+            }
+        }
+        return new Envelope(minLon, maxLon, Math.max(minLat, -90), Math.min(maxLat, 90));
+    }
+
+    /** @return the great-circle distance between two points, using the haversine formula. */
+    public static double distanceMeters (double lat0, double lon0, double lat1, double lon1) {
+        double sinHalfDeltaLat = Math.sin(Math.toRadians(lat1 - lat0) / 2);
+        double sinHalfDeltaLon = Math.sin(Math.toRadians(lon1 - lon0) / 2);
+        double a = sinHalfDeltaLat * sinHalfDeltaLat +
+                Math.cos(Math.toRadians(lat0)) * Math.cos(Math.toRadians(lat1)) * sinHalfDeltaLon * sinHalfDeltaLon;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /** The ID and coordinates of a stop, which is all that is stored in the tree. */
+    private static class IndexedStop implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String stopId;
+        final double lat;
+        final double lon;
+
+        IndexedStop (Stop stop) {
+            this.stopId = stop.stop_id;
+            this.lat = stop.stop_lat;
+            this.lon = stop.stop_lon;
+        }
+    }
+
+    private static class StopDistance {
+        final String stopId;
+        final double distance;
+
+        StopDistance (String stopId, double distance) {
+            this.stopId = stopId;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.StopTime;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static com.conveyal.gtfs.model.Entity.DOUBLE_MISSING;
+import static com.conveyal.gtfs.model.Entity.INT_MISSING;
+
+/**
+ * Compact MapDB serializer for StopTimes. A bit field records which of the optional fields are present, so the typical
+ * stop time with equal arrival and departure times and no headsign takes around a dozen bytes.
+ */
+public class StopTimeSerializer extends EntitySerializer<StopTime> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int ARRIVAL = 1;
+    private static final int DEPARTURE = 1 << 1;
+    private static final int DEPARTURE_EQUALS_ARRIVAL = 1 << 2;
+    private static final int HEADSIGN = 1 << 3;
+    private static final int PICKUP_DROP_OFF = 1 << 4;
+    private static final int SHAPE_DIST = 1 << 5;
+    private static final int TIMEPOINT = 1 << 6;
+
+    public StopTimeSerializer (String dictionaryId) {
+        super(dictionaryId);
+    }
+
+    @Override
+    public void serialize (DataOutput out, StopTime st) throws IOException {
+        int flags = 0;
+        if (st.arrival_time != INT_MISSING) flags |= ARRIVAL;
+        if (st.departure_time != INT_MISSING) {
+            flags |= (st.arrival_time == st.departure_time) ? DEPARTURE_EQUALS_ARRIVAL : DEPARTURE;
+        }
+        if (st.stop_headsign != null) flags |= HEADSIGN;
+        if (st.pickup_type != 0 || st.drop_off_type != 0) flags |= PICKUP_DROP_OFF;
+        if (Double.doubleToRawLongBits(st.shape_dist_traveled) != Double.doubleToRawLongBits(DOUBLE_MISSING)) {
+            flags |= SHAPE_DIST;
+        }
+        if (st.timepoint != INT_MISSING) flags |= TIMEPOINT;
+
+        writeVarInt(out, flags);
+        writeSignedVarInt(out, st.id);
+        writeId(out, st.trip_id);
+        writeId(out, st.stop_id);
+        writeSignedVarInt(out, st.stop_sequence);
+        if ((flags & ARRIVAL) != 0) writeSignedVarInt(out, st.arrival_time);
+        if ((flags & DEPARTURE) != 0) {
+            // The dwell time is much smaller than the departure time itself. Int overflow round-trips correctly.
+            writeSignedVarInt(out, (flags & ARRIVAL) != 0 ? st.departure_time - st.arrival_time : st.departure_time);
+        }
+        if ((flags & HEADSIGN) != 0) writeId(out, st.stop_headsign);
+        if ((flags & PICKUP_DROP_OFF) != 0) {
+            writeSignedVarInt(out, st.pickup_type);
+            writeSignedVarInt(out, st.drop_off_type);
+        }
+        if ((flags & SHAPE_DIST) != 0) writeFixedPointDouble(out, st.shape_dist_traveled);
+        if ((flags & TIMEPOINT) != 0) writeSignedVarInt(out, st.timepoint);
+    }
+
+    @Override
+    public StopTime deserialize (DataInput in, int available) throws IOException {
+        StopTime st = new StopTime();
+        int flags = readVarInt(in);
+        st.id = readSignedVarInt(in);
+        st.trip_id = readId(in);
+        st.stop_id = readId(in);
+        st.stop_sequence = readSignedVarInt(in);
+        if ((flags & ARRIVAL) != 0) st.arrival_time = readSignedVarInt(in);
+        if ((flags & DEPARTURE) != 0) {
+            int departure = readSignedVarInt(in);
+            st.departure_time = (flags & ARRIVAL) != 0 ? st.arrival_time + departure : departure;
+        } else if ((flags & DEPARTURE_EQUALS_ARRIVAL) != 0) {
+            st.departure_time = st.arrival_time;
+        }
+        if ((flags & HEADSIGN) != 0) st.stop_headsign = readId(in);
+        if ((flags & PICKUP_DROP_OFF) != 0) {
+            st.pickup_type = readSignedVarInt(in);
+            st.drop_off_type = readSignedVarInt(in);
+        }
+        if ((flags & SHAPE_DIST) != 0) st.shape_dist_traveled = readFixedPointDouble(in);
+        if ((flags & TIMEPOINT) != 0) st.timepoint = readSignedVarInt(in);
+        return st;
+    }
+}
@@ -0,0 +1,178 @@
+package com.conveyal.gtfs.storage;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.mapdb.DB;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense integer codes to the ID strings of a single feed (trip_id, stop_id etc.) so that entities stored in
+ * MapDB can refer to those strings with a small varint instead of repeating the full string in every record.
+ * The codes are persisted in the feed's MapDB so they remain valid when the feed is reopened. Code zero is reserved for
+ * null.
+ *
+ * Strings are encoded while records are serialized, which MapDB's async writer does on its own thread and may defer
+ * until the database is closed. Writing to the database from inside a serializer loses the write or corrupts the
+ * store, so new codes are only held in memory until persist() is called once the pending records have been written.
+ *
+ * MapDB stores the serializer of each map in its catalog and deserializes a fresh copy when the database is reopened,
+ * so serializers cannot hold a reference to the dictionary of their database. Instead they hold its unique ID, which is
+ * persisted along with the dictionary, and look up the open dictionary here. As the ID is read from the database, two
+ * open copies of the same database (or of a copied file) would share it, so a database cannot be opened while another
+ * copy of it is open.
+ */
+public class StringDictionary {
+
+    /**
+     * The dictionaries of all open feeds, keyed on their unique IDs. They are held weakly, so that a feed that is
+     * garbage collected without being closed does not prevent its database from being opened again.
+     */
+    private static final Map<String, WeakReference<StringDictionary>> openDictionaries = new ConcurrentHashMap<>();
+
+    public final String dictionaryId;
+
+    /** The persistent copy of the codes, from code to string, which is only written by persist(). */
+    private final Map<Integer, String> stringForCode;
+
+    private final TObjectIntMap<String> codeForString = new TObjectIntHashMap<>(10, 0.5f, 0);
+
+    /**
+     * Strings indexed by code. Readers do not lock: a new string is written into the array before the volatile
+     * reference is written, and a code is not handed out before it is published in this way.
+     */
+    private volatile String[] strings;
+
+    private int size;
+
+    /** The highest code in the persistent copy. */
+    private int persistedSize;
+
+    private StringDictionary (String dictionaryId, Map<Integer, String> stringForCode) {
+        this.dictionaryId = dictionaryId;
+        this.stringForCode = stringForCode;
+        String[] strings = new String[Math.max(16, stringForCode.size() * 2)];
+        for (Map.Entry<Integer, String> entry : stringForCode.entrySet()) {
+            int code = entry.getKey();
+            if (code >= strings.length) strings = Arrays.copyOf(strings, code * 2);
+            strings[code] = entry.getValue();
+            codeForString.put(entry.getValue(), code);
+            size = Math.max(size, code);
+        }
+        this.strings = strings;
+        persistedSize = size;
+    }
+
+    /**
+     * Thrown when a database is opened while it, or a copy of it, is still open. This says nothing about whether the
+     * database itself is valid, so callers should not treat it as corrupt.
+     */
+    public static class AlreadyOpenException extends IllegalStateException {
+        private AlreadyOpenException (String dictionaryId) {
+            super("String dictionary " + dictionaryId + " is already open. The same feed database, or a copy of it, " +
+                    "cannot be opened more than once at a time.");
+        }
+    }
+
+    /**
+     * Open the dictionary persisted in the given database, creating it if it does not exist, and make it available to
+     * serializers through forId until it is closed.
+     * @throws AlreadyOpenException if the dictionary is already open, because the same database or a copy of it is
+     * already open.
+     */
+    public static StringDictionary open (DB db) {
+        String dictionaryId = db.getAtomicString("dictionary_id").get();
+        if (dictionaryId == null || dictionaryId.isEmpty()) {
+            dictionaryId = UUID.randomUUID().toString();
+            db.getAtomicString("dictionary_id").set(dictionaryId);
+        }
+        StringDictionary dictionary = new StringDictionary(dictionaryId, db.getTreeMap("dictionary_strings"));
+        WeakReference<StringDictionary> reference = new WeakReference<>(dictionary);
+        openDictionaries.compute(dictionaryId, (id, open) -> {
+            // Otherwise the serializers of both databases would encode into the dictionary opened last.
+            if (open != null && open.get() != null) {
+                throw new AlreadyOpenException(id);
+            }
+            return reference;
+        });
+        return dictionary;
+    }
+
+    /** @return the open dictionary with the given ID. */
+    public static StringDictionary forId (String dictionaryId) {
+        WeakReference<StringDictionary> reference = openDictionaries.get(dictionaryId);
+        StringDictionary dictionary = reference != null ? reference.get() : null;
+        if (dictionary == null) {
+            throw new IllegalStateException("String dictionary " + dictionaryId + " is not open. Was the feed closed?");
+        }
+        return dictionary;
+    }
+
+    /** @return the code for the given string, assigning a new one if necessary. Null is encoded as zero. */
+    public int encode (String string) {
+        if (string == null) return 0;
+        synchronized (this) {
+            int code = codeForString.get(string);
+            if (code == 0) {
+                code = ++size;
+                String[] strings = this.strings;
+                if (code >= strings.length) strings = Arrays.copyOf(strings, strings.length * 2);
+                strings[code] = string;
+                this.strings = strings;
+                codeForString.put(string, code);
+            }
+            return code;
+        }
+    }
+
+    /** @return the code for the given string, or -1 if it has never been encoded. Null is encoded as zero. */
+    public int getCode (String string) {
+        if (string == null) return 0;
+        synchronized (this) {
+            int code = codeForString.get(string);
+            return code == 0 ? -1 : code;
+        }
+    }
+
+    /** @return the string with the given code, or null for code zero. */
+    public String decode (int code) {
+        if (code == 0) return null;
+        String[] strings = this.strings;
+        if (code < 0 || code >= strings.length || strings[code] == null) {
+            throw new IllegalArgumentException("Unknown string dictionary code " + code);
+        }
+        return strings[code];
+    }
+
+    /** @return the number of strings in the dictionary, which is also the highest code assigned. */
+    public synchronized int size () {
+        return size;
+    }
+
+    /**
+     * Write the codes assigned since the last call to the database. This must not be called from a serializer, so
+     * callers should first flush any records still waiting to be written, which may assign more codes.
+     */
+    public void persist () {
+        int from;
+        String[] strings;
+        int to;
+        synchronized (this) {
+            from = persistedSize + 1;
+            strings = this.strings;
+            to = size;
+            persistedSize = size;
+        }
+        // Not under the lock, as a put may wait for the async writer, which may be encoding strings.
+        for (int code = from; code <= to; code++) stringForCode.put(code, strings[code]);
+    }
+
+    /** Stop making this dictionary available to serializers. The persistent copy is not affected. */
+    public void close () {
+        openDictionaries.computeIfPresent(dictionaryId, (id, open) -> open.get() == this ? null : open);
+    }
+}
@@ -0,0 +1,54 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.Trip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact MapDB serializer for Trips. All the string fields repeat across trips or are referenced by other tables, so
+ * they are all stored as dictionary codes.
+ */
+public class TripSerializer extends EntitySerializer<Trip> {
+
+    private static final long serialVersionUID = 1L;
+
+    public TripSerializer (String dictionaryId) {
+        super(dictionaryId);
+    }
+
+    @Override
+    public void serialize (DataOutput out, Trip trip) throws IOException {
+        writeSignedVarInt(out, trip.id);
+        writeId(out, trip.route_id);
+        writeId(out, trip.service_id);
+        writeId(out, trip.trip_id);
+        writeId(out, trip.trip_headsign);
+        writeId(out, trip.trip_short_name);
+        writeSignedVarInt(out, trip.direction_id);
+        writeId(out, trip.block_id);
+        writeId(out, trip.shape_id);
+        writeSignedVarInt(out, trip.bikes_allowed);
+        writeSignedVarInt(out, trip.wheelchair_accessible);
+        writeId(out, trip.feed_id);
+    }
+
+    @Override
+    public Trip deserialize (DataInput in, int available) throws IOException {
+        Trip trip = new Trip();
+        trip.id = readSignedVarInt(in);
+        trip.route_id = readId(in);
+        trip.service_id = readId(in);
+        trip.trip_id = readId(in);
+        trip.trip_headsign = readId(in);
+        trip.trip_short_name = readId(in);
+        trip.direction_id = readSignedVarInt(in);
+        trip.block_id = readId(in);
+        trip.shape_id = readId(in);
+        trip.bikes_allowed = readSignedVarInt(in);
+        trip.wheelchair_accessible = readSignedVarInt(in);
+        trip.feed_id = readId(in);
+        return trip;
+    }
+}
@@ -0,0 +1,344 @@
+package com.conveyal.gtfs.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits a UTF-8 CSV stream into records and fields without decoding it into characters. Each field is just a range of
+ * an internal byte buffer, so numbers, times and dates can be parsed straight from the bytes and only the fields that
+ * will be retained need to become Strings. CsvReader, by contrast, creates a String for every field of every record,
+ * which accounts for most of the garbage produced when loading a large stop_times table.
+ *
+ * Fields are split the same way as CsvReader with its default settings: fields may be quoted with double quotes, a
+ * double quote inside a quoted field is escaped by doubling it, whitespace around fields is trimmed, records end with
+ * CR, LF or CRLF, and empty lines are skipped.
+ *
+ * The parse methods handle the common well-formed cases directly. Anything unusual is decoded to a String and handed
+ * to the corresponding JDK method, so the result (or the exception) is always exactly what the JDK would produce.
+ *
+ * Not threadsafe.
+ */
+public class CsvTokenizer implements Closeable {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final InputStream in;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /** The index in buffer of the first byte that has not yet been tokenized. */
+    private int position = 0;
+
+    /** The index in buffer after the last byte read from the input stream. */
+    private int limit = 0;
+
+    private boolean endOfInput = false;
+
+    /** The start and end of each field of the current record in buffer. */
+    private int[] fieldStarts = new int[32];
+    private int[] fieldEnds = new int[32];
+
+    /** Whether each field of the current record is quoted and contains doubled quotes to be unescaped. */
+    private boolean[] fieldEscaped = new boolean[32];
+
+    private int fieldCount = 0;
+
+    private final Map<String, Integer> headerIndexes = new HashMap<>();
+
+    public CsvTokenizer (InputStream in) {
+        this.in = in;
+    }
+
+    /** Read the first record as the names of the columns. @return false if the input is empty. */
+    public boolean readHeaders () throws IOException {
+        if (!readRecord()) return false;
+        for (int i = 0; i < fieldCount; i++) headerIndexes.put(get(i), i);
+        return true;
+    }
+
+    /** @return the index of the column with the given header, or -1 if there is no such column. */
+    public int getIndex (String header) {
+        Integer index = headerIndexes.get(header);
+        return index == null ? -1 : index;
+    }
+
+    /** Advance to the next record. @return false if there are no more records. */
+    public boolean readRecord () throws IOException {
+        while (true) {
+            if (tokenizeRecord()) return true;
+            if (endOfInput) {
+                // tokenizeRecord only fails at the end of the input when there are no more records.
+                return false;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Split the record starting at position into fields.
+     * @return true if a whole record was tokenized, false if more input is needed or there are no more records.
+     */
+    private boolean tokenizeRecord () {
+        int p = position;
+        // Skip empty lines, including the LF of a CRLF.
+        while (p < limit && (buffer[p] == '\n' || buffer[p] == '\r')) p++;
+        if (p == limit) {
+            position = p;
+            return false;
+        }
+        fieldCount = 0;
+        while (true) {
+            while (p < limit && isWhitespace(buffer[p])) p++;
+            int start;
+            int end;
+            boolean escaped = false;
+            if (p < limit && buffer[p] == '"') {
+                start = ++p;
+                while (true) {
+                    if (p == limit) {
+                        if (!endOfInput) return false;
+                        end = p; // unterminated quote, take everything up to the end of the input
+                        break;
+                    }
+                    if (buffer[p] == '"') {
+                        if (p + 1 == limit && !endOfInput) return false;
+                        if (p + 1 < limit && buffer[p + 1] == '"') {
+                            escaped = true;
+                            p += 2;
+                            continue;
+                        }
+                        end = p++;
+                        break;
+                    }
+                    p++;
+                }
+                // Anything between the closing quote and the end of the field is ignored.
+                while (p < limit && !isFieldEnd(buffer[p])) p++;
+            } else {
+                start = p;
+                while (p < limit && !isFieldEnd(buffer[p])) p++;
+                end = p;
+                while (end > start && isWhitespace(buffer[end - 1])) end--;
+            }
+            if (p == limit && !endOfInput) return false;
+            addField(start, end, escaped);
+            if (p < limit && buffer[p] == ',') {
+                p++;
+                continue;
+            }
+            break;
+        }
+        // p is now on the CR or LF ending the record, or at the end of the input. Any LF after a CR is skipped as an
+        // empty line at the start of the next record.
+        if (p < limit) p++;
+        position = p;
+        for (int i = 0; i < fieldCount; i++) if (fieldEscaped[i]) unescape(i);
+        return true;
+    }
+
+    private static boolean isWhitespace (byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isFieldEnd (byte b) {
+        return b == ',' || b == '\n' || b == '\r';
+    }
+
+    private void addField (int start, int end, boolean escaped) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldEscaped[fieldCount] = escaped;
+        fieldCount++;
+    }
+
+    /** Replace each pair of double quotes in the given field with a single one, in place. */
+    private void unescape (int field) {
+        int write = fieldStarts[field];
+        int end = fieldEnds[field];
+        for (int read = write; read < end; read++) {
+            buffer[write++] = buffer[read];
+            if (buffer[read] == '"' && read + 1 < end && buffer[read + 1] == '"') read++;
+        }
+        fieldEnds[field] = write;
+        fieldEscaped[field] = false;
+    }
+
+    /**
+     * Read more input after the bytes not yet tokenized, first moving those bytes to the start of the buffer or
+     * growing the buffer if a single record fills it.
+     */
+    private void fill () throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        } else if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) endOfInput = true;
+        else limit += read;
+    }
+
+    /** @return the number of fields in the current record. */
+    public int getFieldCount () {
+        return fieldCount;
+    }
+
+    /**
+     * The buffer holding the current record. Fields are ranges of this array, which is only valid until the next call
+     * to readRecord.
+     */
+    public byte[] getBuffer () {
+        return buffer;
+    }
+
+    /** @return the index in getBuffer() of the first byte of the given field. */
+    public int getStart (int field) {
+        return field < fieldCount ? fieldStarts[field] : 0;
+    }
+
+    /** @return the length in bytes of the given field, zero if the current record has fewer fields. */
+    public int getLength (int field) {
+        return field < fieldCount ? fieldEnds[field] - fieldStarts[field] : 0;
+    }
+
+    public boolean isEmpty (int field) {
+        return getLength(field) == 0;
+    }
+
+    /** @return the given field as a new String. Records with fewer fields than the header are padded with "". */
+    public String get (int field) {
+        return new String(buffer, getStart(field), getLength(field), StandardCharsets.UTF_8);
+    }
+
+    /** @return the field in the column with the given header, or null if there is no such column. */
+    public String get (String header) {
+        int field = getIndex(header);
+        return field < 0 ? null : get(field);
+    }
+
+    /** Parse the given field as Integer.parseInt would. */
+    public int getInt (int field) {
+        int p = getStart(field);
+        int end = p + getLength(field);
+        boolean negative = false;
+        if (p < end && (buffer[p] == '-' || buffer[p] == '+')) negative = buffer[p++] == '-';
+        // Nine digits cannot overflow.
+        if (p == end || end - p > 9) return Integer.parseInt(get(field));
+        int value = 0;
+        for (; p < end; p++) {
+            int digit = buffer[p] - '0';
+            if (digit < 0 || digit > 9) return Integer.parseInt(get(field));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse the given field as Double.parseDouble would. Plain decimals with at most 15 significant digits are exact
+     * integers divided by an exact power of ten, and IEEE division rounds that quotient exactly as parseDouble does.
+     */
+    public double getDouble (int field) {
+        int p = getStart(field);
+        int end = p + getLength(field);
+        boolean negative = false;
+        if (p < end && (buffer[p] == '-' || buffer[p] == '+')) negative = buffer[p++] == '-';
+        long mantissa = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; p < end; p++) {
+            byte b = buffer[p];
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) significantDigits++;
+                if (seenPoint) fractionDigits++;
+                if (significantDigits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+                    return Double.parseDouble(get(field));
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return Double.parseDouble(get(field));
+            }
+        }
+        if (!seenDigit) return Double.parseDouble(get(field));
+        double value = fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse the given field as a time in the usual H:MM:SS or HH:MM:SS format.
+     * @param hms receives the hours, minutes and seconds.
+     * @return false if the field is not in the usual format, in which case the caller should parse get(field) itself.
+     */
+    public boolean getTime (int field, int[] hms) {
+        int p = getStart(field);
+        int end = p + getLength(field);
+        for (int i = 0; i < 3; i++) {
+            int value = 0;
+            int digits = 0;
+            for (; p < end && buffer[p] >= '0' && buffer[p] <= '9'; p++, digits++) {
+                value = value * 10 + (buffer[p] - '0');
+            }
+            if (digits == 0 || digits > 9) return false;
+            hms[i] = value;
+            if (i < 2) {
+                if (p == end || buffer[p] != ':') return false;
+                p++;
+            }
+        }
+        return p == end;
+    }
+
+    /**
+     * Parse the given field as LocalDate.parse(get(field), formatter) would, where formatter has the pattern yyyyMMdd.
+     */
+    public LocalDate getDate (int field, DateTimeFormatter formatter) {
+        int p = getStart(field);
+        if (getLength(field) == 8) {
+            int value = 0;
+            for (int i = p; i < p + 8; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) return LocalDate.parse(get(field), formatter);
+                value = value * 10 + digit;
+            }
+            int year = value / 10000;
+            int month = value / 100 % 100;
+            int day = value % 100;
+            // Invalid days may be resolved or rejected depending on the formatter, so leave them to it.
+            if (year > 0 && month >= 1 && month <= 12 && day >= 1 && day <= Month.of(month).length(Year.isLeap(year))) {
+                return LocalDate.of(year, month, day);
+            }
+        }
+        return LocalDate.parse(get(field), formatter);
+    }
+
+    @Override
+    public void close () throws IOException {
+        in.close();
+    }
+}
@@ -3,6 +3,7 @@ package com.conveyal.gtfs.util;
 import com.google.common.collect.Maps;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Map;
@@ -18,6 +19,10 @@ public class Deduplicator implements Serializable {
     private final Map<String, String> canonicalStrings = Maps.newHashMap();
     private final Map<BitSet, BitSet> canonicalBitSets = Maps.newHashMap();
     private final Map<StringArray, StringArray> canonicalStringArrays = Maps.newHashMap();
+    private final Map<ByteSlice, String> canonicalStringsForBytes = Maps.newHashMap();
+
+    /** Reused to look up byte slices without allocating a key for every lookup. */
+    private final ByteSlice probe = new ByteSlice();
 
     /** Free up any memory used by the deduplicator. */
     public void reset() {
@@ -25,6 +30,7 @@ public class Deduplicator implements Serializable {
         canonicalStrings.clear();
         canonicalBitSets.clear();
         canonicalStringArrays.clear();
+        canonicalStringsForBytes.clear();
     }
 
     /** Used to deduplicate time and stop sequence arrays. The same times may occur in many trips. */
@@ -49,6 +55,28 @@ public class Deduplicator implements Serializable {
         return canonical;
     }
 
+    /**
+     * Deduplicate a string that has not yet been decoded from UTF-8, as read from a CSV file. When the same bytes have
+     * been seen before, no String or other object is created.
+     */
+    public String deduplicateString(byte[] utf8, int offset, int length) {
+        probe.bytes = utf8;
+        probe.offset = offset;
+        probe.length = length;
+        probe.hash = probe.computeHash();
+        String canonical = canonicalStringsForBytes.get(probe);
+        probe.bytes = null;
+        if (canonical == null) {
+            ByteSlice key = new ByteSlice();
+            key.bytes = Arrays.copyOfRange(utf8, offset, offset + length);
+            key.length = length;
+            key.hash = key.computeHash();
+            canonical = deduplicateString(new String(key.bytes, StandardCharsets.UTF_8));
+            canonicalStringsForBytes.put(key, canonical);
+        }
+        return canonical;
+    }
+
     public BitSet deduplicateBitSet(BitSet original) {
         if (original == null) return null;
         BitSet canonical = canonicalBitSets.get(original);
@@ -88,6 +116,34 @@ public class Deduplicator implements Serializable {
         }
     }
 
+    /** A range of a byte array. Probes point into a larger array, while stored keys have their own copy. */
+    private static class ByteSlice implements Serializable {
+        private static final long serialVersionUID = 20140524L;
+        byte[] bytes;
+        int offset;
+        int length;
+        int hash;
+        int computeHash() {
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) h = 31 * h + bytes[i];
+            return h;
+        }
+        @Override
+        public boolean equals (Object other) {
+            if (!(other instanceof ByteSlice)) return false;
+            ByteSlice that = (ByteSlice) other;
+            if (length != that.length || hash != that.hash) return false;
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != that.bytes[that.offset + i]) return false;
+            }
+            return true;
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     /** A wrapper for a String array. Optionally, the individual Strings may be deduplicated too. */
     private class StringArray implements Serializable {
         private static final long serialVersionUID = 20140524L;
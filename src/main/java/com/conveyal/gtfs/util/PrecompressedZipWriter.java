@@ -0,0 +1,257 @@
+package com.conveyal.gtfs.util;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a zip file out of entries that have already been deflated, so that the entries can be compressed concurrently
+ * on several threads and then copied into the file one after the other. ZipOutputStream cannot do this, as it always
+ * compresses the data it is given itself.
+ *
+ * Each entry is deflated into a temporary file by compress(), which records its CRC and sizes. addEntry() writes the
+ * local header and copies the compressed bytes as they are, and close() writes the central directory. If writing fails
+ * part way through, abort() closes the file without a central directory, so that it cannot be read as a complete zip
+ * file missing some entries. ZIP64 records are written for entries, offsets or entry counts beyond the limits of the
+ * original format, so large feeds are not a problem.
+ */
+public class PrecompressedZipWriter implements Closeable {
+
+    /** Sizes and offsets at or above this must be stored in ZIP64 extra fields. */
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    /** The value of a size or offset field that is stored in the ZIP64 extra field instead. */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int DEFLATED = 8;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    /** Writes the bytes of one entry, e.g. one table of a feed. */
+    @FunctionalInterface
+    public interface EntryWriter {
+        void write (OutputStream out) throws IOException;
+    }
+
+    /** An entry deflated into a temporary file, with the CRC and sizes needed for its headers. */
+    public static class CompressedEntry {
+        public final String name;
+        private final File data;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+
+        private CompressedEntry (String name, File data, long crc, long size, long compressedSize) {
+            this.name = name;
+            this.data = data;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        /** Delete the temporary file holding the compressed data, if it is still there. */
+        public void delete () {
+            data.delete();
+        }
+    }
+
+    /** The central directory record of an entry that has been written. */
+    private static class WrittenEntry {
+        final CompressedEntry entry;
+        final long offset;
+
+        WrittenEntry (CompressedEntry entry, long offset) {
+            this.entry = entry;
+            this.offset = offset;
+        }
+    }
+
+    private final CountingOutputStream out;
+
+    private final List<WrittenEntry> entries = new ArrayList<>();
+
+    /** The modification time of every entry, in MS-DOS format. */
+    private final int dosTime;
+    private final int dosDate;
+
+    private boolean closed = false;
+
+    public PrecompressedZipWriter (OutputStream out) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out));
+        LocalDateTime now = LocalDateTime.now();
+        dosTime = now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() / 2;
+        dosDate = (now.getYear() - 1980) << 9 | now.getMonthValue() << 5 | now.getDayOfMonth();
+    }
+
+    /**
+     * Deflate the bytes written by the given writer into a temporary file, at the same compression level as
+     * ZipOutputStream. This may be called on any thread.
+     */
+    public static CompressedEntry compress (String name, EntryWriter writer) throws IOException {
+        File data = File.createTempFile("gtfs-entry", ".deflate");
+        data.deleteOnExit();
+        CRC32 crc = new CRC32();
+        // Zip entries hold raw deflate data without the zlib header and checksum.
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            try (OutputStream deflated = new DeflaterOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(data)), deflater, 64 * 1024)) {
+                CheckedOutputStream checked = new CheckedOutputStream(deflated, crc);
+                writer.write(checked);
+                checked.flush();
+            }
+            return new CompressedEntry(name, data, crc.getValue(), deflater.getBytesRead(),
+                    deflater.getBytesWritten());
+        } catch (IOException | RuntimeException e) {
+            data.delete();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Write the given entry after those already written, and delete its temporary file. */
+    public void addEntry (CompressedEntry entry) throws IOException {
+        long offset = out.getCount();
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(0); // flags
+        writeShort(DEFLATED);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        writeInt((int) entry.crc);
+        writeInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        writeInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        writeShort(name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(name);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+        Files.copy(entry.data.toPath(), out);
+        entry.delete();
+        entries.add(new WrittenEntry(entry, offset));
+    }
+
+    /** Write the central directory and close the underlying stream. Has no effect once closed or aborted. */
+    @Override
+    public void close () throws IOException {
+        if (closed) return;
+        closed = true;
+        long centralDirectoryOffset = out.getCount();
+        for (WrittenEntry written : entries) {
+            CompressedEntry entry = written.entry;
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            // If any field overflows, all three are stored in the ZIP64 extra field.
+            boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT ||
+                    written.offset >= ZIP64_LIMIT;
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(VERSION_ZIP64); // version made by
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(0); // flags
+            writeShort(DEFLATED);
+            writeShort(dosTime);
+            writeShort(dosDate);
+            writeInt((int) entry.crc);
+            writeInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+            writeInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+            writeShort(name.length);
+            writeShort(zip64 ? 28 : 0);
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt((int) (zip64 ? ZIP64_MAGIC : written.offset));
+            out.write(name);
+            if (zip64) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(24);
+                writeLong(entry.size);
+                writeLong(entry.compressedSize);
+                writeLong(written.offset);
+            }
+        }
+        long centralDirectoryEnd = out.getCount();
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+        boolean zip64 = entries.size() >= 0xFFFF || centralDirectoryOffset >= ZIP64_LIMIT ||
+                centralDirectorySize >= ZIP64_LIMIT;
+        if (zip64) {
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44); // size of the rest of this record
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0); // this disk
+            writeInt(0); // disk of the central directory
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0); // disk of the ZIP64 end record
+            writeLong(centralDirectoryEnd);
+            writeInt(1); // total number of disks
+        }
+        writeInt(END_SIGNATURE);
+        writeShort(0); // this disk
+        writeShort(0); // disk of the central directory
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeInt((int) (zip64 ? ZIP64_MAGIC : centralDirectorySize));
+        writeInt((int) (zip64 ? ZIP64_MAGIC : centralDirectoryOffset));
+        writeShort(0); // comment length
+        out.close();
+    }
+
+    /**
+     * Close the underlying stream without writing the central directory, after an error. Zip readers find the central
+     * directory at the end of the file, so they reject the incomplete file. Has no effect once closed or aborted.
+     */
+    public void abort () throws IOException {
+        if (closed) return;
+        closed = true;
+        out.close();
+    }
+
+    // The zip format is little-endian.
+
+    private void writeShort (int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt (int value) throws IOException {
+        writeShort(value);
+        writeShort(value >>> 16);
+    }
+
+    private void writeLong (long value) throws IOException {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+}
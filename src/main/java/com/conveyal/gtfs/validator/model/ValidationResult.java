@@ -17,7 +17,7 @@ public class ValidationResult implements Serializable {
 	public ValidationResult (String fileName, GTFSFeed feed) {
 		this.fileName = fileName;
 		this.validationTimestamp = new Date().toString();
-		this.errorCount = feed.errors.size();
+		this.errorCount = feed.errorSink.getErrorCount();
 		this.errors = feed.errors;
 	}
 }
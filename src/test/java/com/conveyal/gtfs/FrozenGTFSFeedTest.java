@@ -0,0 +1,76 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.model.Shape;
+import com.conveyal.gtfs.model.StopTime;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.LineString;
+
+import java.io.File;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+
+/**
+ * Test suite for the FrozenGTFSFeed class.
+ */
+public class FrozenGTFSFeedTest {
+
+    /**
+     * Make sure a frozen feed returns the same stop times, shapes and trip geometries as the feed it was written from.
+     */
+    @Test
+    public void canFreezeFeed() throws Exception {
+        GTFSFeed feed = GTFSFeed.fromFile(TestUtils.zipFolderFiles("fake-agency", true));
+        File file = File.createTempFile("fake-agency", ".frozen");
+        FrozenGTFSFeed.write(feed, file);
+
+        try (FrozenGTFSFeed frozenFeed = FrozenGTFSFeed.open(file)) {
+            assertThat(frozenFeed.getTripCount(), equalTo(feed.trips.size()));
+            for (String tripId : feed.trips.keySet()) {
+                List<StopTime> expected = Lists.newArrayList(feed.getOrderedStopTimesForTrip(tripId));
+                List<StopTime> actual = Lists.newArrayList(frozenFeed.getOrderedStopTimesForTrip(tripId));
+                assertThat(actual.size(), equalTo(expected.size()));
+                for (int i = 0; i < expected.size(); i++) {
+                    assertThat(actual.get(i).stop_id, equalTo(expected.get(i).stop_id));
+                    assertThat(actual.get(i).stop_sequence, equalTo(expected.get(i).stop_sequence));
+                    assertThat(actual.get(i).arrival_time, equalTo(expected.get(i).arrival_time));
+                    assertThat(actual.get(i).departure_time, equalTo(expected.get(i).departure_time));
+                    assertThat(actual.get(i).stop_headsign, equalTo(expected.get(i).stop_headsign));
+                    assertThat(actual.get(i).pickup_type, equalTo(expected.get(i).pickup_type));
+                    assertThat(actual.get(i).drop_off_type, equalTo(expected.get(i).drop_off_type));
+                    assertThat(actual.get(i).timepoint, equalTo(expected.get(i).timepoint));
+                    assertThat(actual.get(i).shape_dist_traveled, equalTo(expected.get(i).shape_dist_traveled));
+                }
+                assertThat(frozenFeed.getOrderedStopListForTrip(tripId), equalTo(feed.getOrderedStopListForTrip(tripId)));
+
+                LineString expectedGeometry = feed.getTripGeometry(tripId);
+                LineString actualGeometry = frozenFeed.getTripGeometry(tripId);
+                if (expectedGeometry == null) {
+                    assertThat(actualGeometry, nullValue());
+                    continue;
+                }
+                assertThat(actualGeometry.getNumPoints(), equalTo(expectedGeometry.getNumPoints()));
+                for (int i = 0; i < expectedGeometry.getNumPoints(); i++) {
+                    Coordinate expectedCoordinate = expectedGeometry.getCoordinateN(i);
+                    Coordinate actualCoordinate = actualGeometry.getCoordinateN(i);
+                    assertThat(actualCoordinate.x, closeTo(expectedCoordinate.x, 1e-7));
+                    assertThat(actualCoordinate.y, closeTo(expectedCoordinate.y, 1e-7));
+                }
+            }
+            String shapeId = "5820f377-f947-4728-ac29-ac0102cbc34e";
+            Shape expectedShape = feed.getShape(shapeId);
+            Shape actualShape = frozenFeed.getShape(shapeId);
+            assertThat(actualShape.shape_dist_traveled, equalTo(expectedShape.shape_dist_traveled));
+            assertThat(frozenFeed.getShape("no-such-shape"), nullValue());
+            assertThat(frozenFeed.getTripGeometry("no-such-trip"), nullValue());
+        } finally {
+            feed.close();
+            file.delete();
+        }
+    }
+}
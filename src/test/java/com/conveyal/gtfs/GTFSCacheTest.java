@@ -0,0 +1,212 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.storage.StringDictionary;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test suite for the GTFSCache class, working offline without S3.
+ */
+public class GTFSCacheTest {
+
+    private static File simpleGtfsZipFile;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        simpleGtfsZipFile = new File(TestUtils.zipFolderFiles("fake-agency", true));
+    }
+
+    /**
+     * Make sure that idle feeds are evicted to keep the cache under its maximum weight, that leased feeds are not, and
+     * that feeds returned by put() or get() are left open and reused while they are still referenced.
+     */
+    @Test
+    public void canEvictIdleFeeds() throws Exception {
+        // Every feed weighs more than this, so only the most recently used feed is kept unless others are leased.
+        GTFSCache cache = new GTFSCache(null, null, Files.createTempDir(), 1);
+        GTFSFeed feed = cache.put("a", simpleGtfsZipFile);
+        cache.put("b", simpleGtfsZipFile);
+        assertThat(cache.getStats().evictionCount, equalTo(1L));
+        assertThat(cache.getCurrentCacheSize(), equalTo(1L));
+
+        // Feed a is still referenced, so it is reused rather than reopened, and is not evicted while it is leased.
+        try (BaseGTFSCache<GTFSFeed>.Lease lease = cache.lease("a")) {
+            assertThat(lease.get(), sameInstance(feed));
+            cache.put("c", simpleGtfsZipFile);
+            assertThat(cache.getCurrentCacheSize(), equalTo(2L));
+        }
+
+        BaseGTFSCache.Stats stats = cache.getStats();
+        assertThat(stats.reloadCount, equalTo(0L));
+        assertThat(stats.evictionCount, equalTo(3L));
+        assertThat(stats.size, equalTo(1L));
+        // Evicting a feed that has been handed out does not close it.
+        assertThat(feed.trips.isEmpty(), is(false));
+    }
+
+    /**
+     * Make sure that prefetching loads evicted feeds again, and that feeds which cannot be loaded are counted as
+     * failures rather than failing the whole prefetch.
+     */
+    @Test
+    public void canPrefetchFeeds() throws Exception {
+        GTFSCache cache = new GTFSCache(null, null, Files.createTempDir(), 1);
+        cache.put("a", simpleGtfsZipFile);
+        cache.put("b", simpleGtfsZipFile);
+        cache.prefetch(Arrays.asList("a", "missing"), 2).join();
+
+        BaseGTFSCache.Stats stats = cache.getStats();
+        assertThat(stats.loadFailureCount, equalTo(1L));
+        assertThat(stats.size, equalTo(1L));
+        assertThat(cache.get("a").trips.isEmpty(), is(false));
+    }
+
+    /**
+     * Make sure that a feed requested by several threads at once is loaded only once, and that every thread gets the
+     * same instance whether it calls get() or lease().
+     */
+    @Test
+    public void canLoadFeedOnceForConcurrentRequests() throws Exception {
+        int threads = 8;
+        WaitingGTFSCache cache = new WaitingGTFSCache(threads - 1, false);
+        Files.copy(simpleGtfsZipFile, new File(cache.cacheDir, "a.zip"));
+        List<BaseGTFSCache<GTFSFeed>.Lease> leases = new ArrayList<>();
+        List<Callable<GTFSFeed>> requests = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            if (i % 2 == 0) {
+                requests.add(() -> cache.get("a"));
+            } else {
+                requests.add(() -> {
+                    BaseGTFSCache<GTFSFeed>.Lease lease = cache.lease("a");
+                    synchronized (leases) {
+                        leases.add(lease);
+                    }
+                    return lease.get();
+                });
+            }
+        }
+        List<GTFSFeed> feeds = new ArrayList<>();
+        for (Future<GTFSFeed> future : invokeAll(requests)) feeds.add(future.get());
+        for (BaseGTFSCache<GTFSFeed>.Lease lease : leases) lease.close();
+
+        for (GTFSFeed feed : feeds) assertThat(feed, sameInstance(feeds.get(0)));
+        BaseGTFSCache.Stats stats = cache.getStats();
+        assertThat(stats.missCount, equalTo(1L));
+        assertThat(stats.hitCount, equalTo((long) threads - 1));
+        assertThat(stats.loadFailureCount, equalTo(0L));
+        assertThat(feeds.get(0).trips.isEmpty(), is(false));
+    }
+
+    /**
+     * Make sure that when a feed requested by several threads at once fails to load, every thread waiting for it gets
+     * the exception from the one failed load.
+     */
+    @Test
+    public void canFailAllRequestsWaitingForLoad() throws Exception {
+        int threads = 8;
+        WaitingGTFSCache cache = new WaitingGTFSCache(threads - 1, true);
+        Files.copy(simpleGtfsZipFile, new File(cache.cacheDir, "a.zip"));
+        List<Callable<GTFSFeed>> requests = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            if (i % 2 == 0) requests.add(() -> cache.get("a"));
+            else requests.add(() -> cache.lease("a").get());
+        }
+        List<Throwable> causes = new ArrayList<>();
+        for (Future<GTFSFeed> future : invokeAll(requests)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(UncheckedExecutionException.class));
+                causes.add(e.getCause().getCause());
+            }
+        }
+
+        assertThat(causes.size(), equalTo(threads));
+        for (Throwable cause : causes) assertThat(cause, sameInstance(causes.get(0)));
+        BaseGTFSCache.Stats stats = cache.getStats();
+        assertThat(stats.missCount, equalTo(1L));
+        assertThat(stats.loadFailureCount, equalTo(1L));
+        assertThat(stats.size, equalTo(0L));
+    }
+
+    /**
+     * Make sure that a cached feed database which is still open elsewhere, for example in another cache over the same
+     * directory, fails to load without being deleted, and can be loaded once it has been closed.
+     */
+    @Test
+    public void canKeepFeedFilesThatAreStillOpen() throws Exception {
+        File cacheDir = Files.createTempDir();
+        GTFSFeed feed = new GTFSCache(null, cacheDir).put("a", simpleGtfsZipFile);
+        GTFSCache cache = new GTFSCache(null, cacheDir);
+        try {
+            cache.get("a");
+            fail("A feed that is already open should not be opened again.");
+        } catch (UncheckedExecutionException e) {
+            assertThat(e.getCause().getCause(), instanceOf(StringDictionary.AlreadyOpenException.class));
+        }
+        assertThat(new File(cacheDir, "a.db").exists(), is(true));
+
+        feed.close();
+        assertThat(cache.get("a").trips.isEmpty(), is(false));
+    }
+
+    private static <V> List<Future<V>> invokeAll (List<Callable<V>> tasks) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            return executor.invokeAll(tasks, 1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A cache whose loads do not finish until the given number of other requests are waiting for them, so that the
+     * requests of a test are certain to overlap. Its loads can also be made to fail.
+     */
+    private static class WaitingGTFSCache extends GTFSCache {
+        private final long waitingRequests;
+        private final boolean fail;
+
+        WaitingGTFSCache (long waitingRequests, boolean fail) {
+            super(null, null, Files.createTempDir(), DEFAULT_MAXIMUM_WEIGHT);
+            this.waitingRequests = waitingRequests;
+            this.fail = fail;
+        }
+
+        @Override
+        protected GTFSFeed processFeed (GTFSFeed feed) {
+            // Requests that find the feed already loading are counted as hits before they wait for it.
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (getStats().hitCount < waitingRequests && System.currentTimeMillis() < deadline) {
+                Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            }
+            if (fail) {
+                feed.close();
+                throw new IllegalStateException("Failed to process feed.");
+            }
+            return feed;
+        }
+    }
+}
@@ -1,25 +1,58 @@
 package com.conveyal.gtfs;
 
+import com.conveyal.gtfs.model.Calendar;
+import com.conveyal.gtfs.model.CalendarDate;
+import com.conveyal.gtfs.model.Entity;
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.Pattern;
+import com.conveyal.gtfs.model.Service;
+import com.conveyal.gtfs.model.Shape;
+import com.conveyal.gtfs.model.Stop;
 import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.gtfs.storage.ServiceCalendar;
+import com.conveyal.gtfs.storage.StopDepartureIndex;
+import com.conveyal.gtfs.storage.StopSpatialIndex;
 import com.csvreader.CsvReader;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.io.ByteStreams;
 import org.apache.commons.io.input.BOMInputStream;
 import org.hamcrest.comparator.ComparatorMatcherBuilder;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.locationtech.jts.geom.LineString;
+import org.mapdb.Fun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.number.IsCloseTo.closeTo;
 
@@ -170,6 +203,365 @@ public class GTFSFeedTest {
         }
     }
 
+    /**
+     * Make sure that loading tables on several threads produces the same entities and errors as a sequential load.
+     */
+    @Test
+    public void canLoadTablesInParallel() throws Exception {
+        GTFSFeed sequentialFeed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        GTFSFeed parallelFeed = new GTFSFeed();
+        parallelFeed.loadThreads = 4;
+        parallelFeed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+
+        assertThat(parallelFeed.agency.keySet(), equalTo(sequentialFeed.agency.keySet()));
+        assertThat(parallelFeed.routes.keySet(), equalTo(sequentialFeed.routes.keySet()));
+        assertThat(parallelFeed.stops.keySet(), equalTo(sequentialFeed.stops.keySet()));
+        assertThat(parallelFeed.trips.keySet(), equalTo(sequentialFeed.trips.keySet()));
+        assertThat(parallelFeed.services.keySet(), equalTo(sequentialFeed.services.keySet()));
+        assertThat(parallelFeed.fares.keySet(), equalTo(sequentialFeed.fares.keySet()));
+        assertThat(parallelFeed.frequencies.size(), equalTo(sequentialFeed.frequencies.size()));
+        assertThat(parallelFeed.shape_points.size(), equalTo(sequentialFeed.shape_points.size()));
+        assertThat(parallelFeed.stop_times.size(), equalTo(sequentialFeed.stop_times.size()));
+        assertThat(parallelFeed.errors.size(), equalTo(sequentialFeed.errors.size()));
+        sequentialFeed.close();
+        parallelFeed.close();
+    }
+
+    /**
+     * Make sure that writing tables on several threads produces a zip file with the same entries and contents as a
+     * sequential write.
+     */
+    @Test
+    public void canWriteTablesInParallel() throws IOException {
+        File sequentialZip = File.createTempFile("fake-agency-sequential", ".zip");
+        File parallelZip = File.createTempFile("fake-agency-parallel", ".zip");
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        feed.toFile(sequentialZip.getAbsolutePath());
+        feed.writeThreads = 4;
+        feed.toFile(parallelZip.getAbsolutePath());
+        int stopTimeCount = feed.stop_times.size();
+        feed.close();
+
+        try (ZipFile sequential = new ZipFile(sequentialZip); ZipFile parallel = new ZipFile(parallelZip)) {
+            List<String> entryNames = Collections.list(sequential.entries()).stream()
+                .map(ZipEntry::getName)
+                .collect(Collectors.toList());
+            assertThat(
+                Collections.list(parallel.entries()).stream().map(ZipEntry::getName).collect(Collectors.toList()),
+                equalTo(entryNames)
+            );
+            for (String entryName : entryNames) {
+                assertThat(
+                    ByteStreams.toByteArray(parallel.getInputStream(parallel.getEntry(entryName))),
+                    equalTo(ByteStreams.toByteArray(sequential.getInputStream(sequential.getEntry(entryName))))
+                );
+            }
+        }
+        // The parallel output must also load as a feed.
+        GTFSFeed reloadedFeed = GTFSFeed.fromFile(parallelZip.getAbsolutePath());
+        assertThat(reloadedFeed.stop_times.size(), equalTo(stopTimeCount));
+        reloadedFeed.close();
+    }
+
+    /**
+     * Make sure that a progress event is posted to the event bus when each table is started and finished, both when
+     * the feed is loaded and when it is written.
+     */
+    @Test
+    public void canPostTableProgressEvents() throws Exception {
+        TableProgressListener listener = new TableProgressListener();
+        EventBus eventBus = new EventBus();
+        eventBus.register(listener);
+        GTFSFeed feed = new GTFSFeed();
+        feed.eventBus = eventBus;
+        feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+        File zip = File.createTempFile("fake-agency-events", ".zip");
+        feed.toFile(zip.getAbsolutePath());
+
+        for (TableProgressEvent.Operation operation : TableProgressEvent.Operation.values()) {
+            List<TableProgressEvent> stopTimeEvents = listener.events.stream()
+                .filter(event -> event.operation == operation && event.tableName.equals("stop_times"))
+                .collect(Collectors.toList());
+            assertThat(stopTimeEvents.size(), equalTo(2));
+            assertThat(stopTimeEvents.get(0).stage, equalTo(TableProgressEvent.Stage.STARTED));
+            TableProgressEvent finished = stopTimeEvents.get(1);
+            assertThat(finished.stage, equalTo(TableProgressEvent.Stage.FINISHED));
+            assertThat(finished.rows, equalTo((long) feed.stop_times.size()));
+            assertThat(finished.bytes > 0, is(true));
+        }
+        feed.close();
+    }
+
+    private static class TableProgressListener {
+        final List<TableProgressEvent> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Subscribe
+        public void onTableProgress (TableProgressEvent event) {
+            events.add(event);
+        }
+    }
+
+    /**
+     * Make sure that building stop_times and shape_points with the MapDB data pump yields the same maps as inserting
+     * them one row at a time.
+     */
+    @Test
+    public void canBulkLoadStopTimesAndShapes() throws Exception {
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        GTFSFeed bulkLoadedFeed = new GTFSFeed();
+        bulkLoadedFeed.bulkLoad = true;
+        bulkLoadedFeed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+
+        assertThat(bulkLoadedFeed.stop_times.keySet(), equalTo(feed.stop_times.keySet()));
+        assertThat(bulkLoadedFeed.shape_points.keySet(), equalTo(feed.shape_points.keySet()));
+        String tripId = "a30277f8-e50a-4a85-9141-b1e0da9d429d";
+        assertThat(
+            bulkLoadedFeed.getOrderedStopListForTrip(tripId),
+            equalTo(feed.getOrderedStopListForTrip(tripId))
+        );
+        feed.close();
+        bulkLoadedFeed.close();
+    }
+
+    /**
+     * Make sure that updating a feed from a new version in which only calendar_dates has changed reloads the services
+     * and leaves the other tables, and the patterns found from them, as they were.
+     */
+    @Test
+    public void canUpdateFromFile() throws Exception {
+        File dbFile = File.createTempFile("fake-agency", ".db");
+        dbFile.delete();
+        GTFSFeed feed = new GTFSFeed(dbFile.getAbsolutePath());
+        feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+        feed.findPatterns();
+        int stopTimeCount = feed.stop_times.size();
+        long errorCount = feed.errorSink.getErrorCount();
+        Map<String, String> tripPatternMap = new HashMap<>(feed.tripPatternMap);
+        Set<String> patternIds = new HashSet<>(feed.patterns.keySet());
+        feed.close();
+
+        // Copy the feed, adding a row to calendar_dates.txt.
+        File newZipFile = copyFeedAddingRows(Collections.singletonMap(
+            "calendar_dates.txt", "04100312-8fe1-46a5-a9f2-556f39478f57,20170917,2"
+        ));
+
+        GTFSFeed reopenedFeed = new GTFSFeed(dbFile.getAbsolutePath());
+        reopenedFeed.updateFromFile(new ZipFile(newZipFile));
+        Service service = reopenedFeed.services.get("04100312-8fe1-46a5-a9f2-556f39478f57");
+        assertThat(service.calendar_dates.containsKey(LocalDate.of(2017, 9, 17)), is(true));
+        assertThat(service.calendar_dates.containsKey(LocalDate.of(2017, 9, 16)), is(true));
+        assertThat(reopenedFeed.stop_times.size(), equalTo(stopTimeCount));
+        assertThat(reopenedFeed.errorSink.getErrorCount(), equalTo(errorCount));
+        assertThat(patternIds.isEmpty(), is(false));
+        assertThat(reopenedFeed.patterns.keySet(), equalTo(patternIds));
+        assertThat(reopenedFeed.tripPatternMap, equalTo(tripPatternMap));
+        reopenedFeed.close();
+    }
+
+    /**
+     * Copy the simple feed to a new zip file, adding rows to the end of some of its tables.
+     * @param rowsForFile the rows to add, keyed on the name of the file they are added to.
+     */
+    private static File copyFeedAddingRows (Map<String, String> rowsForFile) throws IOException {
+        File newZipFile = File.createTempFile("fake-agency-copy", ".zip");
+        try (ZipFile zip = new ZipFile(simpleGtfsZipFileName);
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(newZipFile))) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                ByteStreams.copy(zip.getInputStream(entry), out);
+                String rows = rowsForFile.get(new File(entry.getName()).getName());
+                if (rows != null) out.write(("\n" + rows + "\n").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return newZipFile;
+    }
+
+    /**
+     * Make sure that storing stop_times and shape_points with integer keys yields the same entries and the same
+     * per-trip and per-shape range queries as Tuple2 keys, whether the maps are loaded row by row or in bulk.
+     */
+    @Test
+    public void canUseIntegerKeys() throws Exception {
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        for (boolean bulkLoad : new boolean[] {false, true}) {
+            GTFSFeed integerKeyedFeed = new GTFSFeed(true);
+            integerKeyedFeed.bulkLoad = bulkLoad;
+            integerKeyedFeed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+
+            assertThat(integerKeyedFeed.integerKeys, is(true));
+            assertThat(integerKeyedFeed.stop_times.keySet(), equalTo(feed.stop_times.keySet()));
+            assertThat(integerKeyedFeed.shape_points.keySet(), equalTo(feed.shape_points.keySet()));
+            for (String tripId : feed.trips.keySet()) {
+                assertThat(
+                    integerKeyedFeed.getOrderedStopListForTrip(tripId),
+                    equalTo(feed.getOrderedStopListForTrip(tripId))
+                );
+            }
+            for (Trip trip : feed.trips.values()) {
+                if (trip.shape_id == null) continue;
+                Shape shape = integerKeyedFeed.getShape(trip.shape_id);
+                assertThat(shape.geometry.equalsExact(feed.getShape(trip.shape_id).geometry), is(true));
+            }
+            integerKeyedFeed.close();
+        }
+        feed.close();
+    }
+
+    /**
+     * Make sure that a stop time or shape point whose trip_id or shape_id is empty is recorded as an error rather than
+     * aborting the load, with integer keys as with Tuple2 keys, whether the maps are loaded row by row or in bulk.
+     */
+    @Test
+    public void canLoadRowsWithoutTripOrShapeId() throws Exception {
+        Map<String, String> rowsForFile = new HashMap<>();
+        rowsForFile.put("stop_times.txt", ",07:00:00,07:00:00,4u6g,1,,0,0,0.0000000,");
+        rowsForFile.put("shapes.txt", ",37.0612132,-122.0074332,1,0.0000000");
+        File zipFile = copyFeedAddingRows(rowsForFile);
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        String tripId = "a30277f8-e50a-4a85-9141-b1e0da9d429d";
+        for (boolean integerKeys : new boolean[] {false, true}) {
+            for (boolean bulkLoad : new boolean[] {false, true}) {
+                GTFSFeed feedWithEmptyIds = new GTFSFeed(integerKeys);
+                feedWithEmptyIds.bulkLoad = bulkLoad;
+                feedWithEmptyIds.loadFromFile(new ZipFile(zipFile));
+
+                for (String table : new String[] {"stop_times", "shapes"}) {
+                    assertThat(feedWithEmptyIds.errors.stream().anyMatch(error ->
+                        error.errorType.equals("EmptyFieldError") && error.file.equals(table)), is(true));
+                }
+                assertThat(feedWithEmptyIds.stop_times.size(), equalTo(feed.stop_times.size() + 1));
+                assertThat(feedWithEmptyIds.shape_points.size(), equalTo(feed.shape_points.size() + 1));
+                assertThat(
+                    feedWithEmptyIds.getOrderedStopListForTrip(tripId),
+                    equalTo(feed.getOrderedStopListForTrip(tripId))
+                );
+                feedWithEmptyIds.close();
+            }
+        }
+        feed.close();
+    }
+
+    /**
+     * Make sure that streaming trips with their stop times yields every trip once, with the same stop times as a
+     * lookup per trip, for both Tuple2 and integer keys.
+     */
+    @Test
+    public void canStreamTripsWithStopTimes() throws Exception {
+        for (boolean integerKeys : new boolean[] {false, true}) {
+            GTFSFeed feed = new GTFSFeed(integerKeys);
+            feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+            Map<String, List<String>> stopsForTrip = feed.tripsWithStopTimes()
+                .parallel()
+                .collect(Collectors.toMap(
+                    tripWithStopTimes -> tripWithStopTimes.a.trip_id,
+                    tripWithStopTimes -> tripWithStopTimes.b.stream()
+                        .map(stopTime -> stopTime.stop_id)
+                        .collect(Collectors.toList())
+                ));
+            assertThat(stopsForTrip.keySet(), equalTo(feed.trips.keySet()));
+            for (String tripId : feed.trips.keySet()) {
+                assertThat(stopsForTrip.get(tripId), equalTo(feed.getOrderedStopListForTrip(tripId)));
+            }
+            feed.close();
+        }
+    }
+
+    /**
+     * Make sure that a stream of trips with their stop times is split into ranges that each yield their own trips with
+     * all their stop times, for both Tuple2 and integer keys. The feed has enough trips to be split several times, and
+     * stop times of trips that are not in the trips table between them, some of which fall between two ranges.
+     */
+    @Test
+    public void canSplitTripsWithStopTimes() {
+        for (boolean integerKeys : new boolean[] {false, true}) {
+            GTFSFeed feed = new GTFSFeed(integerKeys);
+            // With integer keys, trips are ordered by the order in which their stop times are first stored.
+            for (int i = 0; i < 1000; i++) {
+                String tripId = String.format("trip-%04d", i);
+                Trip trip = new Trip();
+                trip.trip_id = tripId;
+                feed.trips.put(tripId, trip);
+                // Some trips have no stop times.
+                if (i % 7 != 0) putStopTimes(feed, tripId, 1 + i % 5);
+                // Orphans fall between trips, including between the last trip of a range and the first of the next.
+                if (i % 25 == 0 || i % 125 == 124) putStopTimes(feed, tripId + "-orphan", 3);
+            }
+
+            List<Spliterator<Fun.Tuple2<Trip, List<StopTime>>>> ranges = new ArrayList<>();
+            splitFully(feed.tripsWithStopTimes().spliterator(), ranges);
+            assertThat(ranges.size() > 4, is(true));
+            List<String> tripIds = new ArrayList<>();
+            for (Spliterator<Fun.Tuple2<Trip, List<StopTime>>> range : ranges) {
+                range.forEachRemaining(tripWithStopTimes -> {
+                    String tripId = tripWithStopTimes.a.trip_id;
+                    tripIds.add(tripId);
+                    List<String> stopIds = tripWithStopTimes.b.stream()
+                        .map(stopTime -> stopTime.stop_id)
+                        .collect(Collectors.toList());
+                    assertThat(stopIds, equalTo(feed.getOrderedStopListForTrip(tripId)));
+                });
+            }
+            assertThat(tripIds.size(), equalTo(feed.trips.size()));
+            assertThat(new HashSet<>(tripIds), equalTo(feed.trips.keySet()));
+
+            // The same holds when the stream is split by the fork join pool.
+            long stopTimeCount = feed.tripsWithStopTimes().parallel().mapToLong(tripWithStopTimes -> {
+                assertThat(tripWithStopTimes.b.size(), equalTo(
+                    feed.getOrderedStopListForTrip(tripWithStopTimes.a.trip_id).size()));
+                return tripWithStopTimes.b.size();
+            }).sum();
+            assertThat(stopTimeCount, equalTo(feed.stop_times.size() - 3L * 48));
+            feed.close();
+        }
+    }
+
+    private static void putStopTimes (GTFSFeed feed, String tripId, int count) {
+        for (int sequence = 1; sequence <= count; sequence++) {
+            StopTime stopTime = new StopTime();
+            stopTime.trip_id = tripId;
+            stopTime.stop_id = "stop-" + sequence;
+            stopTime.stop_sequence = sequence;
+            feed.stop_times.put(new Fun.Tuple2<>(tripId, sequence), stopTime);
+        }
+    }
+
+    /** Split the given spliterator until it will split no further, adding the resulting ranges in order. */
+    private static <T> void splitFully (Spliterator<T> spliterator, List<Spliterator<T>> ranges) {
+        Spliterator<T> prefix = spliterator.trySplit();
+        if (prefix != null) splitFully(prefix, ranges);
+        if (prefix == null) ranges.add(spliterator);
+        else splitFully(spliterator, ranges);
+    }
+
+    /**
+     * Make sure that patterns are found for every trip, and that they and the pattern of each trip are still there
+     * when the feed is reopened.
+     */
+    @Test
+    public void canFindAndPersistPatterns() throws Exception {
+        File dbFile = File.createTempFile("fake-agency", ".db");
+        dbFile.delete();
+        GTFSFeed feed = new GTFSFeed(dbFile.getAbsolutePath());
+        feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+        feed.findPatterns();
+        assertThat(feed.patterns.isEmpty(), is(false));
+        assertThat(feed.tripPatternMap.keySet(), equalTo(feed.trips.keySet()));
+        for (String tripId : feed.trips.keySet()) {
+            Pattern pattern = feed.patterns.get(feed.tripPatternMap.get(tripId));
+            assertThat(pattern.associatedTrips.contains(tripId), is(true));
+            assertThat(pattern.orderedStops, equalTo(feed.getOrderedStopListForTrip(tripId)));
+        }
+        Map<String, String> tripPatternMap = new HashMap<>(feed.tripPatternMap);
+        feed.close();
+
+        GTFSFeed reopenedFeed = new GTFSFeed(dbFile.getAbsolutePath());
+        assertThat(reopenedFeed.tripPatternMap, equalTo(tripPatternMap));
+        reopenedFeed.findPatterns();
+        assertThat(reopenedFeed.tripPatternMap, equalTo(tripPatternMap));
+        reopenedFeed.close();
+    }
+
     /**
      * Make sure that a GTFS feed with interpolated stop times have calculated times after feed processing
      * @throws GTFSFeed.FirstAndLastStopsDoNotHaveTimes
@@ -220,6 +612,35 @@ public class GTFSFeedTest {
         }
     }
 
+    /**
+     * Make sure that the stop times interpolated for all trips at once match those interpolated for each trip.
+     */
+    @Test
+    public void canInterpolateAllStopTimes() throws GTFSFeed.FirstAndLastStopsDoNotHaveTimes, IOException {
+        String gtfsZipFileName = TestUtils.zipFolderFiles("fake-agency-interpolated-stop-times", true);
+        GTFSFeed feed = GTFSFeed.fromFile(gtfsZipFileName);
+
+        Map<String, List<Integer>> timesByTrip = new HashMap<>();
+        for (String tripId : feed.trips.keySet()) {
+            timesByTrip.put(tripId, interpolatedTimes(feed, tripId));
+        }
+        feed.interpolateStopTimes();
+        for (String tripId : feed.trips.keySet()) {
+            assertThat(interpolatedTimes(feed, tripId), equalTo(timesByTrip.get(tripId)));
+        }
+    }
+
+    private static List<Integer> interpolatedTimes(GTFSFeed feed, String tripId)
+        throws GTFSFeed.FirstAndLastStopsDoNotHaveTimes {
+        List<Integer> times = new ArrayList<>();
+        for (StopTime st : feed.getInterpolatedStopTimesForTrip(tripId)) {
+            assertThat(st.arrival_time, not(equalTo(Entity.INT_MISSING)));
+            times.add(st.arrival_time);
+            times.add(st.departure_time);
+        }
+        return times;
+    }
+
     /**
      * Make sure a spatial index of stops can be calculated
      */
@@ -233,6 +654,324 @@ public class GTFSFeedTest {
         );
     }
 
+    /**
+     * Make sure the stop spatial index orders stops by distance, and is still there when the feed is reopened.
+     */
+    @Test
+    public void canFindNearestStops() throws Exception {
+        File dbFile = File.createTempFile("fake-agency", ".db");
+        dbFile.delete();
+        GTFSFeed feed = new GTFSFeed(dbFile.getAbsolutePath());
+        feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+        Stop origin = feed.stops.get("4u6g");
+        List<String> expected = feed.stops.values().stream()
+            .sorted(Comparator.comparingDouble(stop ->
+                StopSpatialIndex.distanceMeters(origin.stop_lat, origin.stop_lon, stop.stop_lat, stop.stop_lon)))
+            .map(stop -> stop.stop_id)
+            .collect(Collectors.toList());
+        Stop third = feed.stops.get(expected.get(2));
+        double radius = StopSpatialIndex.distanceMeters(origin.stop_lat, origin.stop_lon, third.stop_lat, third.stop_lon);
+        feed.close();
+
+        GTFSFeed reopenedFeed = new GTFSFeed(dbFile.getAbsolutePath());
+        assertThat(reopenedFeed.getStopSpatialIndex().size(), equalTo(5));
+        assertThat(stopIds(reopenedFeed.nearestStops(origin.stop_lat, origin.stop_lon, 3)),
+            equalTo(expected.subList(0, 3)));
+        assertThat(stopIds(reopenedFeed.nearestStops(origin.stop_lat, origin.stop_lon, 10)), equalTo(expected));
+        assertThat(stopIds(reopenedFeed.findStopsWithinMeters(origin.stop_lat, origin.stop_lon, radius + 1)),
+            equalTo(expected.subList(0, 3)));
+        reopenedFeed.close();
+    }
+
+    private static List<String> stopIds (List<Stop> stops) {
+        return stops.stream().map(stop -> stop.stop_id).collect(Collectors.toList());
+    }
+
+    /**
+     * Make sure the compiled service calendar agrees with Service.activeOn and finds the trips running on each date.
+     */
+    @Test
+    public void canGetTripsOnDate() {
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        ServiceCalendar serviceCalendar = feed.getServiceCalendar();
+        assertThat(serviceCalendar.getFirstDate(), equalTo(LocalDate.of(2017, 9, 15)));
+        assertThat(serviceCalendar.getLastDate(), equalTo(LocalDate.of(2017, 9, 17)));
+        for (int day = 10; day < 20; day++) {
+            LocalDate date = LocalDate.of(2017, 9, day);
+            for (Service service : feed.services.values()) {
+                assertThat(serviceCalendar.activeOn(service.service_id, date), equalTo(service.activeOn(date)));
+            }
+            List<String> expectedTripIds = feed.trips.values().stream()
+                .filter(trip -> feed.services.containsKey(trip.service_id))
+                .filter(trip -> feed.services.get(trip.service_id).activeOn(date))
+                .map(trip -> trip.trip_id)
+                .sorted()
+                .collect(Collectors.toList());
+            List<String> tripIds = new ArrayList<>(feed.getTripsOnDate(date));
+            Collections.sort(tripIds);
+            assertThat(tripIds, equalTo(expectedTripIds));
+        }
+        // The calendar of the test feed is interrupted by an exception on the 16th.
+        assertThat(feed.getTripsOnDate(LocalDate.of(2017, 9, 15)).isEmpty(), is(false));
+        assertThat(feed.getTripsOnDate(LocalDate.of(2017, 9, 16)).isEmpty(), is(true));
+    }
+
+    /**
+     * Make sure a calendar whose dates could not be parsed is never active, rather than failing the whole calendar, and
+     * that the calendar_dates of its service still apply.
+     */
+    @Test
+    public void canSkipCalendarsWithoutDates() {
+        Service service = new Service("unparseable-dates");
+        service.calendar = new Calendar();
+        service.calendar.monday = 1;
+        service.calendar.end_date = LocalDate.of(2017, 9, 30);
+        CalendarDate calendarDate = new CalendarDate();
+        calendarDate.exception_type = 1;
+        service.calendar_dates.put(LocalDate.of(2017, 9, 18), calendarDate);
+        Trip trip = new Trip();
+        trip.trip_id = "trip";
+        trip.service_id = service.service_id;
+
+        ServiceCalendar serviceCalendar =
+            new ServiceCalendar(Collections.singletonList(service), Collections.singletonList(trip));
+        assertThat(serviceCalendar.getFirstDate(), equalTo(LocalDate.of(2017, 9, 18)));
+        assertThat(serviceCalendar.getLastDate(), equalTo(LocalDate.of(2017, 9, 18)));
+        assertThat(serviceCalendar.getTripsOnDate(LocalDate.of(2017, 9, 18)), equalTo(Arrays.asList("trip")));
+        assertThat(service.activeOn(LocalDate.of(2017, 9, 25)), is(false));
+    }
+
+    /**
+     * Make sure a calendar that ends before it starts is never active, and does not make the range of dates of the
+     * feed negative when it is the only calendar.
+     */
+    @Test
+    public void canSkipInvertedCalendars() {
+        Service service = new Service("inverted-dates");
+        service.calendar = new Calendar();
+        service.calendar.monday = 1;
+        service.calendar.start_date = LocalDate.of(2017, 9, 30);
+        service.calendar.end_date = LocalDate.of(2017, 9, 18);
+        Trip trip = new Trip();
+        trip.trip_id = "trip";
+        trip.service_id = service.service_id;
+
+        ServiceCalendar serviceCalendar =
+            new ServiceCalendar(Collections.singletonList(service), Collections.singletonList(trip));
+        assertThat(serviceCalendar.getFirstDate(), nullValue());
+        assertThat(serviceCalendar.getTripsOnDate(LocalDate.of(2017, 9, 25)).isEmpty(), is(true));
+        assertThat(serviceCalendar.getTripCount(), equalTo(0));
+        assertThat(service.activeOn(LocalDate.of(2017, 9, 25)), is(false));
+    }
+
+    /**
+     * Make sure departure boards include scheduled and frequency-based trips running on the date, in order of time.
+     */
+    @Test
+    public void canGetDepartures() {
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        LocalDate date = LocalDate.of(2017, 9, 15);
+        List<StopDepartureIndex.Departure> departures = feed.getDepartures("4u6g", date, 0, 24 * 60 * 60);
+        assertThat(departureTimes(departures), equalTo(Arrays.asList(7 * 3600, 8 * 3600, 8 * 3600 + 1800)));
+        assertThat(departures.get(0).trip_id, equalTo("a30277f8-e50a-4a85-9141-b1e0da9d429d"));
+        assertThat(departures.get(1).trip_id, equalTo("frequency-trip"));
+        // The window includes its start and excludes its end.
+        assertThat(departureTimes(feed.getDepartures("4u6g", date, 7 * 3600 + 1, 8 * 3600 + 1800)),
+            equalTo(Arrays.asList(8 * 3600)));
+        // Departures downstream of a frequency-based trip are offset from the start of each vehicle.
+        assertThat(departureTimes(feed.getDepartures("1234", date, 8 * 3600 + 30 * 60, 24 * 60 * 60)),
+            equalTo(Arrays.asList(8 * 3600 + 59 * 60)));
+        // There is no service on the 16th.
+        assertThat(feed.getDepartures("4u6g", LocalDate.of(2017, 9, 16), 0, 24 * 60 * 60).isEmpty(), is(true));
+    }
+
+    /**
+     * Make sure trips defined by frequencies are expanded into one instance per headway, sharing one time profile.
+     */
+    @Test
+    public void canExpandTripInstances() {
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        TripInstanceIterator instances = feed.getTripInstances("frequency-trip");
+        assertThat(instances.isFrequencyBased(), is(true));
+        List<Integer> arrivalTimes = new ArrayList<>();
+        while (instances.hasNext()) {
+            int startTime = instances.nextInt();
+            assertThat(instances.getDepartureTime(0), equalTo(startTime));
+            arrivalTimes.add(instances.getArrivalTime(1));
+        }
+        // The frequency entry runs from 08:00 to 09:00 every 30 minutes, and the second stop is 29 minutes in.
+        assertThat(arrivalTimes, equalTo(Arrays.asList(8 * 3600 + 29 * 60, 8 * 3600 + 59 * 60)));
+
+        TripInstanceIterator scheduled = feed.getTripInstances("a30277f8-e50a-4a85-9141-b1e0da9d429d");
+        assertThat(scheduled.isFrequencyBased(), is(false));
+        assertThat(scheduled.nextInt(), equalTo(7 * 3600));
+        assertThat(scheduled.hasNext(), is(false));
+
+        long instanceCount = feed.tripInstances().mapToLong(trip -> {
+            long count = 0;
+            while (trip.hasNext()) {
+                trip.nextInt();
+                count++;
+            }
+            return count;
+        }).sum();
+        assertThat(instanceCount, equalTo(3L));
+    }
+
+    /**
+     * Make sure a trip defined by frequencies with a dwell at its first stop starts at the departure from that stop,
+     * both as trip instances and in the departures from each stop.
+     */
+    @Test
+    public void canStartFrequencyTripsAtFirstDeparture() {
+        List<StopTime> stopTimes = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            StopTime stopTime = new StopTime();
+            stopTime.trip_id = "dwelling-trip";
+            stopTime.stop_id = "stop-" + i;
+            stopTime.stop_sequence = i;
+            stopTime.arrival_time = 600 * i;
+            // A one minute dwell at each stop.
+            stopTime.departure_time = 600 * i + 60;
+            stopTimes.add(stopTime);
+        }
+        Frequency frequency = new Frequency();
+        frequency.trip_id = "dwelling-trip";
+        frequency.start_time = 8 * 3600;
+        frequency.end_time = 9 * 3600;
+        frequency.headway_secs = 1800;
+        List<Frequency> frequencies = Collections.singletonList(frequency);
+
+        List<Integer> instanceDepartures = new ArrayList<>();
+        TripInstanceIterator instances = new TripInstanceIterator("dwelling-trip", stopTimes, frequencies);
+        while (instances.hasNext()) {
+            instances.nextInt();
+            instanceDepartures.add(instances.getDepartureTime(0));
+        }
+        assertThat(instanceDepartures, equalTo(Arrays.asList(8 * 3600, 8 * 3600 + 1800)));
+
+        Trip trip = new Trip();
+        trip.trip_id = "dwelling-trip";
+        trip.service_id = "one-day";
+        Service service = new Service("one-day");
+        CalendarDate calendarDate = new CalendarDate();
+        calendarDate.exception_type = 1;
+        service.calendar_dates.put(LocalDate.of(2017, 9, 18), calendarDate);
+        StopDepartureIndex.Builder builder = new StopDepartureIndex.Builder();
+        builder.addTrip(trip, stopTimes, frequencies);
+        List<StopDepartureIndex.Departure> departures = builder.build().getDepartures("stop-0",
+                LocalDate.of(2017, 9, 18), 0, 24 * 3600,
+                new ServiceCalendar(Collections.singletonList(service), Collections.singletonList(trip)));
+        assertThat(departureTimes(departures), equalTo(instanceDepartures));
+    }
+
+    private static List<Integer> departureTimes (List<StopDepartureIndex.Departure> departures) {
+        return departures.stream().map(departure -> departure.departure_time).collect(Collectors.toList());
+    }
+
+    /**
+     * Make sure shapes are cached, and that simplified shapes keep their end points and are stored in the database.
+     */
+    @Test
+    public void canGetSimplifiedShapes() throws Exception {
+        String shapeId = "5820f377-f947-4728-ac29-ac0102cbc34e";
+        File dbFile = File.createTempFile("fake-agency", ".db");
+        dbFile.delete();
+        GTFSFeed feed = new GTFSFeed(dbFile.getAbsolutePath());
+        feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+        Shape shape = feed.getShape(shapeId);
+        assertThat(feed.getShape(shapeId) == shape, is(true));
+        assertThat(feed.getShape("no-such-shape"), nullValue());
+
+        LineString simplified = feed.getSimplifiedShapeGeometry(shapeId, 0.001);
+        assertThat(simplified.getNumPoints() <= shape.geometry.getNumPoints(), is(true));
+        assertThat(simplified.getStartPoint().equalsExact(shape.geometry.getStartPoint()), is(true));
+        assertThat(simplified.getEndPoint().equalsExact(shape.geometry.getEndPoint()), is(true));
+        feed.close();
+
+        GTFSFeed reopenedFeed = new GTFSFeed(dbFile.getAbsolutePath());
+        assertThat(reopenedFeed.getSimplifiedShapeGeometry(shapeId, 0.001).equalsExact(simplified), is(true));
+        reopenedFeed.close();
+    }
+
+    /**
+     * Make sure that changes to an overlay feed are merged into its tables and written out with it, and that they leave
+     * the base feed untouched, for both Tuple2 and integer keys.
+     */
+    @Test
+    public void canOverlayFeed() throws Exception {
+        String tripId = "a30277f8-e50a-4a85-9141-b1e0da9d429d";
+        // Sorts before frequency-trip alphabetically, but after it in the dictionary order of integer keys.
+        String copiedTripId = "copied-frequency-trip";
+        for (boolean integerKeys : new boolean[] {false, true}) {
+            GTFSFeed feed = new GTFSFeed(integerKeys);
+            feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+            int stopTimeCount = feed.stop_times.size();
+            int frequencyCount = feed.frequencies.size();
+            List<String> tripStops = feed.getOrderedStopListForTrip(tripId);
+            List<String> copiedTripStops = feed.getOrderedStopListForTrip("frequency-trip");
+
+            // Remove one trip and copy the other under a new ID, which is not in the dictionary of integer keys.
+            GTFSFeed overlay = feed.overlay();
+            overlay.trips.remove(tripId);
+            overlay.stop_times.subMap(Fun.t2(tripId, null), Fun.t2(tripId, Fun.HI)).clear();
+            Trip trip = feed.trips.get("frequency-trip");
+            Trip copiedTrip = new Trip();
+            copiedTrip.trip_id = copiedTripId;
+            copiedTrip.route_id = trip.route_id;
+            copiedTrip.service_id = trip.service_id;
+            copiedTrip.shape_id = trip.shape_id;
+            overlay.trips.put(copiedTripId, copiedTrip);
+            for (StopTime stopTime : feed.getOrderedStopTimesForTrip("frequency-trip")) {
+                StopTime copy = stopTime.clone();
+                copy.trip_id = copiedTripId;
+                overlay.stop_times.put(Fun.t2(copiedTripId, copy.stop_sequence), copy);
+            }
+            for (Frequency frequency : feed.getFrequencies("frequency-trip")) {
+                Frequency copy = new Frequency();
+                copy.trip_id = copiedTripId;
+                copy.start_time = frequency.start_time;
+                copy.end_time = frequency.end_time;
+                copy.headway_secs = frequency.headway_secs;
+                overlay.frequencies.add(Fun.t2(copiedTripId, copy));
+            }
+
+            Set<String> expectedTripIds = new HashSet<>(Arrays.asList("frequency-trip", copiedTripId));
+            int expectedStopTimeCount = stopTimeCount - tripStops.size() + copiedTripStops.size();
+            assertThat(overlay.trips.keySet(), equalTo(expectedTripIds));
+            assertThat(overlay.stop_times.size(), equalTo(expectedStopTimeCount));
+            assertThat(overlay.getOrderedStopListForTrip(tripId).isEmpty(), is(true));
+            assertThat(overlay.getOrderedStopListForTrip(copiedTripId), equalTo(copiedTripStops));
+            assertThat(overlay.getFrequencies(copiedTripId).size(), equalTo(1));
+            Map<String, List<String>> stopsForTrip = overlay.tripsWithStopTimes()
+                .collect(Collectors.toMap(
+                    tripWithStopTimes -> tripWithStopTimes.a.trip_id,
+                    tripWithStopTimes -> tripWithStopTimes.b.stream()
+                        .map(stopTime -> stopTime.stop_id)
+                        .collect(Collectors.toList())
+                ));
+            assertThat(stopsForTrip.get("frequency-trip"), equalTo(copiedTripStops));
+            assertThat(stopsForTrip.get(copiedTripId), equalTo(copiedTripStops));
+
+            // The base feed is unchanged.
+            assertThat(feed.trips.containsKey(tripId), is(true));
+            assertThat(feed.trips.containsKey(copiedTripId), is(false));
+            assertThat(feed.stop_times.size(), equalTo(stopTimeCount));
+            assertThat(feed.frequencies.size(), equalTo(frequencyCount));
+            assertThat(feed.getOrderedStopListForTrip(tripId), equalTo(tripStops));
+
+            File overlayZip = File.createTempFile("fake-agency-overlay", ".zip");
+            overlay.toFile(overlayZip.getAbsolutePath());
+            overlay.close();
+            feed.close();
+            GTFSFeed reloadedFeed = GTFSFeed.fromFile(overlayZip.getAbsolutePath());
+            assertThat(reloadedFeed.trips.keySet(), equalTo(expectedTripIds));
+            assertThat(reloadedFeed.stop_times.size(), equalTo(expectedStopTimeCount));
+            assertThat(reloadedFeed.getFrequencies(copiedTripId).size(), equalTo(1));
+            reloadedFeed.close();
+        }
+    }
+
     /**
      * Make sure trip speed can be calculated using trip's shape.
      */
@@ -256,4 +995,19 @@ public class GTFSFeedTest {
             is(closeTo(5.18, 0.01))
         );
     }
+
+    /**
+     * Make sure the speed of a trip without stop times is not a number, for both Tuple2 and integer keys, including
+     * for a trip_id that sorts after all others or was never encoded.
+     */
+    @Test
+    public void cannotGetSpeedOfTripWithoutStopTimes() throws Exception {
+        for (boolean integerKeys : new boolean[] {false, true}) {
+            GTFSFeed feed = new GTFSFeed(integerKeys);
+            feed.loadFromFile(new ZipFile(simpleGtfsZipFileName));
+            assertThat(Double.isNaN(feed.getTripSpeed("~unknown-trip")), is(true));
+            assertThat(Double.isNaN(feed.getTripSpeed("")), is(true));
+            feed.close();
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package com.conveyal.gtfs;
+
+import com.conveyal.gtfs.model.FareAttribute;
+import com.conveyal.gtfs.model.Route;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Test suite for the GTFSStreamReader class.
+ */
+public class GTFSStreamReaderTest {
+
+    private static String simpleGtfsZipFileName;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        simpleGtfsZipFileName = TestUtils.zipFolderFiles("fake-agency", true);
+    }
+
+    /**
+     * Make sure streaming a table produces the same entities as loading it into a GTFSFeed.
+     */
+    @Test
+    public void canStreamEntities() throws IOException {
+        GTFSFeed feed = GTFSFeed.fromFile(simpleGtfsZipFileName);
+        try (ZipFile zip = new ZipFile(simpleGtfsZipFileName);
+             GTFSStreamReader reader = new GTFSStreamReader(zip)) {
+            assertThat(reader.getFeedId(), equalTo(feed.feedId));
+
+            List<Stop> stops = new ArrayList<>();
+            reader.forEach(Stop.class, stops::add);
+            assertThat(stops.size(), equalTo(feed.stops.size()));
+            for (Stop stop : stops) {
+                assertThat(stop.stop_name, equalTo(feed.stops.get(stop.stop_id).stop_name));
+            }
+
+            List<Route> routes = new ArrayList<>();
+            reader.forEach(Route.class, routes::add);
+            for (Route route : routes) {
+                assertThat(route.agency_id, equalTo(feed.routes.get(route.route_id).agency_id));
+            }
+
+            int[] stopTimeCount = new int[1];
+            reader.forEachTrip(stopTimes -> {
+                String tripId = stopTimes.get(0).trip_id;
+                int i = 0;
+                for (StopTime stopTime : feed.getOrderedStopTimesForTrip(tripId)) {
+                    assertThat(stopTimes.get(i++).stop_sequence, equalTo(stopTime.stop_sequence));
+                }
+                assertThat(i, equalTo(stopTimes.size()));
+                stopTimeCount[0] += i;
+            });
+            assertThat(stopTimeCount[0], equalTo(feed.stop_times.size()));
+        } finally {
+            feed.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotStreamFares() throws IOException {
+        GTFSStreamReader.forEach(new ZipFile(simpleGtfsZipFileName), FareAttribute.class, fare -> { });
+    }
+}
@@ -0,0 +1,47 @@
+package com.conveyal.gtfs.error;
+
+import org.junit.Test;
+import org.mapdb.Fun.Tuple2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * A test suite to verify that MapDBErrorSink keeps exact counts while only storing a limited sample of errors.
+ */
+public class MapDBErrorSinkTest {
+
+    @Test
+    public void canCountAndSampleErrors () {
+        NavigableSet<GTFSError> errors = new TreeSet<>();
+        Map<Tuple2<String, String>, Long> persistedCounts = new HashMap<>();
+        MapDBErrorSink sink = new MapDBErrorSink(errors, persistedCounts, 10);
+        for (int row = 0; row < 2500; row++) {
+            sink.add(new ReferentialIntegrityError("stop_times", row, "trip_id", "missing_trip"));
+        }
+        for (int row = 0; row < 5; row++) {
+            sink.add(new EmptyFieldError("stops", row, "stop_name"));
+        }
+        sink.add(new NoAgencyInFeedError());
+        sink.flush();
+
+        assertThat(sink.getErrorCount(), equalTo(2506L));
+        assertThat(sink.getErrorCounts().get("stop_times").get("ReferentialIntegrityError"), equalTo(2500L));
+        assertThat(sink.getErrorCounts().get("stops").get("EmptyFieldError"), equalTo(5L));
+        assertThat(sink.getErrorCounts().get("agency").get("NoAgencyInFeedError"), equalTo(1L));
+        assertThat(errors.size(), equalTo(16));
+
+        // A sink reopened on the same storage starts from the persisted counts.
+        MapDBErrorSink reopened = new MapDBErrorSink(errors, persistedCounts, 10);
+        assertThat(reopened.getErrorCount(), equalTo(2506L));
+        reopened.add(new EmptyFieldError("stops", 5, "stop_name"));
+        reopened.flush();
+        assertThat(reopened.getErrorCounts().get("stops").get("EmptyFieldError"), equalTo(6L));
+        assertThat(errors.size(), equalTo(17));
+    }
+}
@@ -0,0 +1,98 @@
+package com.conveyal.gtfs.model;
+
+import org.junit.Test;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+/**
+ * Make sure that Entity.Writer formats decimals, times and dates exactly as the Formatter and DateTimeFormatter calls it
+ * replaced, so that feeds are written byte for byte as before.
+ */
+public class EntityWriterTest {
+
+    private static String decimal (double value) {
+        StringBuilder sb = new StringBuilder();
+        Entity.Writer.appendDecimal7(sb, value);
+        return sb.toString();
+    }
+
+    private static void assertDecimal (double value) {
+        assertThat("Formatting " + value, decimal(value), is(String.format(Locale.US, "%.7f", value)));
+    }
+
+    /** The format the time fields were written with before. */
+    private static String formattedTime (int secsSinceMidnight) {
+        int seconds = secsSinceMidnight % 60;
+        secsSinceMidnight -= seconds;
+        int minutes = secsSinceMidnight % 3600;
+        secsSinceMidnight -= minutes;
+        return String.format("%02d:%02d:%02d", secsSinceMidnight / 3600, minutes / 60, seconds);
+    }
+
+    @Test
+    public void canFormatDecimalsAsFormatterDoes() {
+        double[] values = {
+            0.0, -0.0, Double.MIN_VALUE, -Double.MIN_VALUE,
+            // Negative values that round to zero keep their sign.
+            -1e-9, -4.9e-8, -5e-8, -5.1e-8,
+            // Ties in the eighth decimal place, which are rarely exact in binary.
+            5e-8, 1.5e-7, 2.5e-7, 0.12345675, -0.12345675, 1.00000005, 45.12345665,
+            // Values on either side of 100000, above which Formatter is used.
+            99999.9999999, 99999.99999995, 99999.99999999, 100000.0, 100000.00000005, -99999.99999995, -100000.0,
+            1e12, Double.MAX_VALUE, -180.0, 180.0,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        for (double value : values) assertDecimal(value);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // Coordinates, tiny values, exact ties and values near the limit.
+            assertDecimal((random.nextDouble() - 0.5) * 360);
+            assertDecimal((random.nextDouble() - 0.5) * 2e-6);
+            assertDecimal((Math.floor(random.nextDouble() * 2e9) + 0.5) / 1e8 * (random.nextBoolean() ? 1 : -1));
+            assertDecimal(100_000 + (random.nextDouble() - 0.5) * 1e-3);
+            assertDecimal(-100_000 + (random.nextDouble() - 0.5) * 1e-3);
+        }
+    }
+
+    @Test
+    public void canFormatTimesAsFormatterDoes() {
+        // Negative times, times after midnight and times of several days.
+        for (int time = -200_000; time <= 200_000; time++) {
+            assertThat(Entity.Writer.convertToGtfsTime(time), is(formattedTime(time)));
+        }
+        int[] times = {24 * 3600, 48 * 3600 + 59, 100 * 3600, Integer.MAX_VALUE, Integer.MIN_VALUE + 1};
+        for (int time : times) assertThat(Entity.Writer.convertToGtfsTime(time), is(formattedTime(time)));
+    }
+
+    @Test
+    public void canFormatDatesAsFormatterDoes() {
+        LocalDate[] dates = {
+            LocalDate.of(2017, 9, 18), LocalDate.of(1, 1, 1), LocalDate.of(0, 1, 1), LocalDate.of(999, 12, 31),
+            LocalDate.of(9999, 12, 31)
+        };
+        for (LocalDate date : dates) {
+            StringBuilder sb = new StringBuilder();
+            Entity.Writer.appendDate(sb, date);
+            assertThat(sb.toString(), is(date.format(DateTimeFormatter.BASIC_ISO_DATE)));
+        }
+        // Like the formatter, dates before year zero or after year 9999 cannot be written.
+        LocalDate[] unprintableDates = {LocalDate.of(-1, 1, 1), LocalDate.of(10000, 1, 1), LocalDate.MAX};
+        for (LocalDate date : unprintableDates) {
+            try {
+                Entity.Writer.appendDate(new StringBuilder(), date);
+                fail("Years that do not fit in four digits should not be formatted.");
+            } catch (DateTimeException e) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.conveyal.gtfs.storage;
+
+import org.junit.Test;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkTreeMapBuilderTest {
+
+    /**
+     * Check that entries spilled across several sorted runs come back merged in descending key order, with only the
+     * last value added for each key.
+     */
+    @Test
+    public void testMergesRunsInDescendingOrder() throws IOException {
+        BulkTreeMapBuilder<Integer, String> builder = new BulkTreeMapBuilder<>(Serializer.INTEGER, Serializer.STRING, 3);
+        int[] keys = {5, 1, 9, 3, 5, 7, 2, 9, 8, 1};
+        for (int i = 0; i < keys.length; i++) builder.put(keys[i], "value" + i);
+        assertEquals(keys.length, builder.size());
+
+        List<Integer> mergedKeys = new ArrayList<>();
+        List<String> mergedValues = new ArrayList<>();
+        Iterator<Fun.Tuple2<Integer, String>> iterator = builder.iterator();
+        while (iterator.hasNext()) {
+            Fun.Tuple2<Integer, String> entry = iterator.next();
+            mergedKeys.add(entry.a);
+            mergedValues.add(entry.b);
+        }
+        builder.close();
+
+        assertEquals(Arrays.asList(9, 8, 7, 5, 3, 2, 1), mergedKeys);
+        assertEquals(Arrays.asList("value7", "value8", "value5", "value4", "value3", "value6", "value9"), mergedValues);
+    }
+}
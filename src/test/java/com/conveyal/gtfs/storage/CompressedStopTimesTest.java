@@ -0,0 +1,111 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.TestUtils;
+import com.conveyal.gtfs.model.StopTime;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.conveyal.gtfs.model.Entity.INT_MISSING;
+import static org.junit.Assert.*;
+
+public class CompressedStopTimesTest {
+
+    private static StopTime stopTime (String tripId, String stopId, int stopSequence, int arrival, int departure) {
+        StopTime stopTime = new StopTime();
+        stopTime.trip_id = tripId;
+        stopTime.stop_id = stopId;
+        stopTime.stop_sequence = stopSequence;
+        stopTime.arrival_time = arrival;
+        stopTime.departure_time = departure;
+        return stopTime;
+    }
+
+    /** Three stops with a dwell at the second one, starting at the given time. */
+    private static List<StopTime> trip (String tripId, int startTime) {
+        List<StopTime> stopTimes = new ArrayList<>();
+        stopTimes.add(stopTime(tripId, "a", 1, startTime, startTime));
+        stopTimes.add(stopTime(tripId, "b", 2, startTime + 300, startTime + 360));
+        stopTimes.add(stopTime(tripId, "c", 3, startTime + 600, startTime + 600));
+        return stopTimes;
+    }
+
+    private static void assertSameStopTimes (List<StopTime> expected, Iterable<StopTime> actual) {
+        List<StopTime> actualList = Lists.newArrayList(actual);
+        assertEquals(expected.size(), actualList.size());
+        for (int i = 0; i < expected.size(); i++) {
+            StopTime e = expected.get(i);
+            StopTime a = actualList.get(i);
+            assertEquals(e.trip_id, a.trip_id);
+            assertEquals(e.stop_id, a.stop_id);
+            assertEquals(e.stop_sequence, a.stop_sequence);
+            assertEquals(e.arrival_time, a.arrival_time);
+            assertEquals(e.departure_time, a.departure_time);
+            assertEquals(e.stop_headsign, a.stop_headsign);
+            assertEquals(e.pickup_type, a.pickup_type);
+            assertEquals(e.drop_off_type, a.drop_off_type);
+            assertEquals(e.timepoint, a.timepoint);
+            assertEquals(Double.doubleToRawLongBits(e.shape_dist_traveled), Double.doubleToRawLongBits(a.shape_dist_traveled));
+        }
+    }
+
+    /**
+     * Check that trips differing only in their start time share a pattern and a time profile, that a trip with a
+     * different stop-level field gets its own pattern, and that all of them are rebuilt exactly.
+     */
+    @Test
+    public void testDeduplicatesPatternsAndProfiles() {
+        CompressedStopTimes compressedStopTimes = new CompressedStopTimes();
+        List<StopTime> early = trip("early", 8 * 3600);
+        List<StopTime> late = trip("late", 9 * 3600 + 15);
+        List<StopTime> withHeadsign = trip("headsign", 10 * 3600);
+        withHeadsign.get(1).stop_headsign = "Downtown";
+        withHeadsign.get(1).shape_dist_traveled = 1234.5;
+        // Intermediate times may be left out, and the start time is the first time given.
+        List<StopTime> untimed = trip("untimed", 11 * 3600);
+        untimed.get(0).arrival_time = INT_MISSING;
+        untimed.get(1).arrival_time = INT_MISSING;
+        untimed.get(1).departure_time = INT_MISSING;
+        untimed.get(1).timepoint = 0;
+
+        compressedStopTimes.addTrip("early", early);
+        compressedStopTimes.addTrip("late", late);
+        compressedStopTimes.addTrip("headsign", withHeadsign);
+        compressedStopTimes.addTrip("untimed", untimed);
+
+        assertEquals(4, compressedStopTimes.getTripCount());
+        assertEquals(12, compressedStopTimes.getStopTimeCount());
+        assertEquals(3, compressedStopTimes.getPatterns().size());
+        assertEquals(2, compressedStopTimes.getProfiles().size());
+        assertEquals(compressedStopTimes.getTrip("early")[0], compressedStopTimes.getTrip("late")[0]);
+        assertEquals(compressedStopTimes.getTrip("early")[1], compressedStopTimes.getTrip("late")[1]);
+        assertEquals(9 * 3600 + 15, compressedStopTimes.getTrip("late")[2]);
+
+        assertSameStopTimes(early, compressedStopTimes.getOrderedStopTimesForTrip("early"));
+        assertSameStopTimes(late, compressedStopTimes.getOrderedStopTimesForTrip("late"));
+        assertSameStopTimes(withHeadsign, compressedStopTimes.getOrderedStopTimesForTrip("headsign"));
+        assertSameStopTimes(untimed, compressedStopTimes.getOrderedStopTimesForTrip("untimed"));
+        assertFalse(compressedStopTimes.getOrderedStopTimesForTrip("no-such-trip").iterator().hasNext());
+        assertNull(compressedStopTimes.getTrip("no-such-trip"));
+    }
+
+    /** Check that the stop times of every trip of a feed are rebuilt exactly, apart from their row numbers. */
+    @Test
+    public void testCompressesFeed() throws Exception {
+        GTFSFeed feed = GTFSFeed.fromFile(TestUtils.zipFolderFiles("fake-agency", true));
+        CompressedStopTimes compressedStopTimes = CompressedStopTimes.fromFeed(feed);
+        assertEquals(feed.trips.size(), compressedStopTimes.getTripCount());
+        long stopTimeCount = 0;
+        for (String tripId : feed.trips.keySet()) {
+            List<StopTime> expected = Lists.newArrayList(feed.getOrderedStopTimesForTrip(tripId));
+            assertSameStopTimes(expected, compressedStopTimes.getOrderedStopTimesForTrip(tripId));
+            stopTimeCount += expected.size();
+        }
+        assertEquals(stopTimeCount, compressedStopTimes.getStopTimeCount());
+        assertTrue(compressedStopTimes.getPatterns().size() <= feed.trips.size());
+        feed.close();
+    }
+}
@@ -0,0 +1,206 @@
+package com.conveyal.gtfs.storage;
+
+import com.conveyal.gtfs.model.Entity;
+import com.conveyal.gtfs.model.ShapePoint;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class EntitySerializerTest {
+
+    private DB db;
+    private StringDictionary dictionary;
+
+    @Before
+    public void setUp() {
+        db = DBMaker.newMemoryDB().transactionDisable().make();
+        dictionary = StringDictionary.open(db);
+    }
+
+    @After
+    public void tearDown() {
+        dictionary.close();
+        db.close();
+    }
+
+    private static <T> T roundTrip(Serializer<T> serializer, T value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.serialize(new DataOutputStream(bytes), value);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        T result = serializer.deserialize(in, bytes.size());
+        assertEquals("serializer should consume the whole record", 0, in.available());
+        return result;
+    }
+
+    private static void assertSameDouble(double expected, double actual) {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    /** Two open copies of the same database must not share the dictionary registered for its ID. */
+    @Test(expected = IllegalStateException.class)
+    public void testDictionaryCannotBeOpenedTwice() {
+        DB copy = DBMaker.newMemoryDB().transactionDisable().make();
+        copy.getAtomicString("dictionary_id").set(dictionary.dictionaryId);
+        StringDictionary.open(copy);
+    }
+
+    /** Once closed, a dictionary can be opened again. */
+    @Test
+    public void testDictionaryCanBeReopened() {
+        dictionary.close();
+        dictionary = StringDictionary.open(db);
+        assertSame(dictionary, StringDictionary.forId(dictionary.dictionaryId));
+    }
+
+    @Test
+    public void testStopTimeRoundTrip() throws IOException {
+        StopTimeSerializer serializer = new StopTimeSerializer(dictionary.dictionaryId);
+
+        StopTime st = new StopTime();
+        st.id = 12;
+        st.trip_id = "trip 1";
+        st.stop_id = "stop 1";
+        st.stop_sequence = -3;
+        st.arrival_time = 8 * 3600;
+        st.departure_time = 8 * 3600 + 30;
+        st.stop_headsign = "Downtown";
+        st.pickup_type = 1;
+        st.drop_off_type = 2;
+        st.shape_dist_traveled = 1234.5678901;
+        st.timepoint = 0;
+        assertStopTimesEqual(st, roundTrip(serializer, st));
+
+        // Missing values must come back as the same placeholders, not as zero.
+        StopTime empty = new StopTime();
+        empty.trip_id = "trip 1";
+        empty.stop_id = "stop 2";
+        assertStopTimesEqual(empty, roundTrip(serializer, empty));
+
+        StopTime departureOnly = new StopTime();
+        departureOnly.departure_time = 100;
+        departureOnly.shape_dist_traveled = Double.NaN;
+        assertStopTimesEqual(departureOnly, roundTrip(serializer, departureOnly));
+
+        StopTime sameTimes = new StopTime();
+        sameTimes.arrival_time = sameTimes.departure_time = 25 * 3600;
+        assertStopTimesEqual(sameTimes, roundTrip(serializer, sameTimes));
+    }
+
+    private static void assertStopTimesEqual(StopTime expected, StopTime actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.trip_id, actual.trip_id);
+        assertEquals(expected.stop_id, actual.stop_id);
+        assertEquals(expected.stop_sequence, actual.stop_sequence);
+        assertEquals(expected.arrival_time, actual.arrival_time);
+        assertEquals(expected.departure_time, actual.departure_time);
+        assertEquals(expected.stop_headsign, actual.stop_headsign);
+        assertEquals(expected.pickup_type, actual.pickup_type);
+        assertEquals(expected.drop_off_type, actual.drop_off_type);
+        assertSameDouble(expected.shape_dist_traveled, actual.shape_dist_traveled);
+        assertEquals(expected.timepoint, actual.timepoint);
+    }
+
+    @Test
+    public void testShapePointRoundTrip() throws IOException {
+        ShapePointSerializer serializer = new ShapePointSerializer(dictionary.dictionaryId);
+        double[][] coordinates = {{45.5231234, -122.6765432}, {-33.8688, 151.2093}, {0.1 + 0.2, -0.0},
+                {Entity.DOUBLE_MISSING, Double.NaN}, {1e300, Double.NEGATIVE_INFINITY}};
+        for (double[] coordinate : coordinates) {
+            ShapePoint point = new ShapePoint("shape", coordinate[0], coordinate[1], 7, Double.NaN);
+            point.id = 3;
+            ShapePoint result = roundTrip(serializer, point);
+            assertEquals(point.id, result.id);
+            assertEquals(point.shape_id, result.shape_id);
+            assertSameDouble(point.shape_pt_lat, result.shape_pt_lat);
+            assertSameDouble(point.shape_pt_lon, result.shape_pt_lon);
+            assertEquals(point.shape_pt_sequence, result.shape_pt_sequence);
+            assertSameDouble(point.shape_dist_traveled, result.shape_dist_traveled);
+        }
+    }
+
+    @Test
+    public void testTripRoundTrip() throws IOException {
+        TripSerializer serializer = new TripSerializer(dictionary.dictionaryId);
+        Trip trip = new Trip();
+        trip.id = 99;
+        trip.route_id = "route";
+        trip.service_id = "weekday";
+        trip.trip_id = "trip";
+        trip.trip_headsign = "Airport";
+        trip.direction_id = Entity.INT_MISSING;
+        trip.shape_id = "shape";
+        trip.bikes_allowed = 1;
+        trip.wheelchair_accessible = 2;
+        trip.feed_id = "feed";
+        Trip result = roundTrip(serializer, trip);
+        assertEquals(trip.id, result.id);
+        assertEquals(trip.route_id, result.route_id);
+        assertEquals(trip.service_id, result.service_id);
+        assertEquals(trip.trip_id, result.trip_id);
+        assertEquals(trip.trip_headsign, result.trip_headsign);
+        assertNull(result.trip_short_name);
+        assertEquals(trip.direction_id, result.direction_id);
+        assertNull(result.block_id);
+        assertEquals(trip.shape_id, result.shape_id);
+        assertEquals(trip.bikes_allowed, result.bikes_allowed);
+        assertEquals(trip.wheelchair_accessible, result.wheelchair_accessible);
+        assertEquals(trip.feed_id, result.feed_id);
+    }
+
+    @Test
+    public void testStopRoundTrip() throws IOException {
+        StopSerializer serializer = new StopSerializer(dictionary.dictionaryId);
+        Stop stop = new Stop();
+        stop.id = 4;
+        stop.stop_id = "stop";
+        stop.stop_code = "1234";
+        stop.stop_name = "Gare de l'Est – Quai 2";
+        stop.stop_lat = 48.8763;
+        stop.stop_lon = 2.3591;
+        stop.stop_url = new URL("http://example.com/stops/1234");
+        stop.location_type = 1;
+        stop.parent_station = "station";
+        stop.wheelchair_boarding = "1";
+        Stop result = roundTrip(serializer, stop);
+        assertEquals(stop.id, result.id);
+        assertEquals(stop.stop_id, result.stop_id);
+        assertEquals(stop.stop_code, result.stop_code);
+        assertEquals(stop.stop_name, result.stop_name);
+        assertNull(result.stop_desc);
+        assertSameDouble(stop.stop_lat, result.stop_lat);
+        assertSameDouble(stop.stop_lon, result.stop_lon);
+        assertNull(result.zone_id);
+        assertEquals(stop.stop_url, result.stop_url);
+        assertEquals(stop.location_type, result.location_type);
+        assertEquals(stop.parent_station, result.parent_station);
+        assertNull(result.stop_timezone);
+        assertEquals(stop.wheelchair_boarding, result.wheelchair_boarding);
+    }
+
+    /** The same string must be given the same code, so that IDs are stored once per feed. */
+    @Test
+    public void testDictionaryReusesCodes() {
+        int code = dictionary.encode("trip 1");
+        assertEquals(code, dictionary.encode("trip 1"));
+        assertNotEquals(code, dictionary.encode("trip 2"));
+        assertEquals(0, dictionary.encode(null));
+        assertEquals(-1, dictionary.getCode("never seen"));
+        assertEquals("trip 1", dictionary.decode(code));
+        assertSame(dictionary, StringDictionary.forId(dictionary.dictionaryId));
+    }
+}
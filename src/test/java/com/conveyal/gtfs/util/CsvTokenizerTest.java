@@ -0,0 +1,121 @@
+package com.conveyal.gtfs.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * A test suite to verify that CsvTokenizer splits and decodes fields the same way as CsvReader and the JDK parsers.
+ */
+public class CsvTokenizerTest {
+
+    private static final String CSV = "a, b ,\"c\"\r\n" +
+            "1,  x y ,\"q\"\"uo,te\"\r\n" +
+            "\r\n" +
+            "2,,\"multi\nline\"  \n" +
+            "-3,é,\"\"\"\"\n" +
+            "4";
+
+    /** An input stream that returns one byte per read, so that every record straddles a buffer refill. */
+    private static InputStream oneByteAtATime (byte[] bytes) {
+        return new InputStream() {
+            int i = 0;
+            @Override
+            public int read () {
+                return i < bytes.length ? bytes[i++] & 0xFF : -1;
+            }
+            @Override
+            public int read (byte[] b, int off, int len) {
+                if (i >= bytes.length) return -1;
+                b[off] = bytes[i++];
+                return 1;
+            }
+        };
+    }
+
+    @Test
+    public void canSplitRecords () throws IOException {
+        byte[] bytes = CSV.getBytes(StandardCharsets.UTF_8);
+        testSplitRecords(new CsvTokenizer(new ByteArrayInputStream(bytes)));
+        testSplitRecords(new CsvTokenizer(oneByteAtATime(bytes)));
+    }
+
+    private void testSplitRecords (CsvTokenizer tokenizer) throws IOException {
+        assertThat(tokenizer.readHeaders(), is(true));
+        assertThat(tokenizer.getIndex("b"), is(1));
+        assertThat(tokenizer.getIndex("d"), is(-1));
+        String[][] expected = {
+            {"1", "x y", "q\"uo,te"},
+            {"2", "", "multi\nline"},
+            {"-3", "é", "\""},
+            {"4", "", ""}
+        };
+        for (String[] record : expected) {
+            assertThat(tokenizer.readRecord(), is(true));
+            for (int i = 0; i < record.length; i++) assertThat(tokenizer.get(i), is(record[i]));
+            assertThat(tokenizer.getInt(0), is(Integer.parseInt(record[0])));
+        }
+        assertThat(tokenizer.readRecord(), is(false));
+    }
+
+    @Test
+    public void canParseFields () throws IOException {
+        String[] doubles = {"45.5231234", "-122.6765432", "-0.0", "5.", ".5", "1e5", "123456789012345678", "0.1"};
+        CsvTokenizer tokenizer = tokenize(doubles);
+        for (String value : doubles) {
+            tokenizer.readRecord();
+            assertThat(tokenizer.getDouble(0), is(Double.parseDouble(value)));
+        }
+
+        int[] hms = new int[3];
+        tokenizer = tokenize("07:05:09", "25:00:00", "1:2:3:", "12:3O:00");
+        tokenizer.readRecord();
+        assertThat(tokenizer.getTime(0, hms), is(true));
+        assertThat(hms[0] * 3600 + hms[1] * 60 + hms[2], is(7 * 3600 + 5 * 60 + 9));
+        tokenizer.readRecord();
+        assertThat(tokenizer.getTime(0, hms), is(true));
+        assertThat(hms[0], is(25));
+        // Unusual formats are left to the caller.
+        tokenizer.readRecord();
+        assertThat(tokenizer.getTime(0, hms), is(false));
+        tokenizer.readRecord();
+        assertThat(tokenizer.getTime(0, hms), is(false));
+
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
+        String[] dates = {"20170915", "20160229", "20170229", "20170431"};
+        tokenizer = tokenize(dates);
+        for (String value : dates) {
+            tokenizer.readRecord();
+            assertThat(tokenizer.getDate(0, formatter), is(LocalDate.parse(value, formatter)));
+        }
+    }
+
+    @Test
+    public void canDeduplicateBytes () throws IOException {
+        CsvTokenizer tokenizer = tokenize("trip_1", "trip_1");
+        Deduplicator deduplicator = new Deduplicator();
+        tokenizer.readRecord();
+        String first = deduplicator.deduplicateString(tokenizer.getBuffer(), tokenizer.getStart(0), tokenizer.getLength(0));
+        tokenizer.readRecord();
+        String second = deduplicator.deduplicateString(tokenizer.getBuffer(), tokenizer.getStart(0), tokenizer.getLength(0));
+        assertThat(first, is("trip_1"));
+        assertThat(second == first, is(true));
+        assertThat(deduplicator.deduplicateString("trip_1") == first, is(true));
+    }
+
+    /** @return a tokenizer positioned before the first of the given single-column records. */
+    private static CsvTokenizer tokenize (String... values) throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new ByteArrayInputStream(
+                ("value\n" + String.join("\n", values) + "\n").getBytes(StandardCharsets.UTF_8)));
+        tokenizer.readHeaders();
+        return tokenizer;
+    }
+}
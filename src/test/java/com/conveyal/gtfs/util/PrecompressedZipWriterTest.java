@@ -0,0 +1,59 @@
+package com.conveyal.gtfs.util;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+/**
+ * A test suite for the PrecompressedZipWriter class.
+ */
+public class PrecompressedZipWriterTest {
+
+    private static PrecompressedZipWriter.CompressedEntry compress (String name, String text) throws IOException {
+        return PrecompressedZipWriter.compress(name, out -> out.write(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Assert that entries compressed separately are read back as a normal zip file.
+     */
+    @Test
+    public void canWriteZipFile() throws IOException {
+        File file = File.createTempFile("precompressed", ".zip");
+        try (PrecompressedZipWriter zip = new PrecompressedZipWriter(new FileOutputStream(file))) {
+            zip.addEntry(compress("a.txt", "first entry"));
+            zip.addEntry(compress("b.txt", "second entry"));
+        }
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertThat(zipFile.size(), is(2));
+            byte[] bytes = ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("b.txt")));
+            assertThat(new String(bytes, StandardCharsets.UTF_8), is("second entry"));
+        }
+    }
+
+    /**
+     * Assert that an aborted zip file cannot be read as a complete one, and that closing it afterwards has no effect.
+     */
+    @Test
+    public void cannotReadAbortedZipFile() throws IOException {
+        File file = File.createTempFile("precompressed", ".zip");
+        PrecompressedZipWriter zip = new PrecompressedZipWriter(new FileOutputStream(file));
+        zip.addEntry(compress("a.txt", "first entry"));
+        zip.abort();
+        zip.close();
+        try (ZipFile zipFile = new ZipFile(file)) {
+            fail("An aborted zip file should not be readable.");
+        } catch (ZipException e) {
+            // Expected, as there is no central directory.
+        }
+    }
+}